@@ -0,0 +1,296 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * micro benchmark runner with committed baselines
+ * an operation is warmed up and then timed in rounds, the fastest round counts for ns/op,
+ * allocation comes from the allocation counter of the benchmark thread
+ * allocation is the same on every host, it is always checked and a benchmark
+ * without an allocation baseline fails until one is recorded
+ * time is kept relative to a fixed calibration operation timed next to every round
+ * in the same JVM, the median of the per round ratios is checked with TIME_TOLERANCE,
+ * 0 turns the check off
+ */
+final class Benchmark {
+
+    /**
+     * body of a benchmark, iteration counts up from 0
+     */
+    interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    static final String BASELINES = System.getProperty("benchmark.baselines", "baselines.properties");
+
+    /**
+     * write the results as baselines instead of checking them
+     */
+    static final boolean isRecording = Boolean.parseBoolean(System.getProperty("benchmark.record", "false"));
+
+    /**
+     * time is noisy even relative to the calibration operation, JIT decisions
+     * and GC move single runs by up to about 2x, a result may be this much
+     * slower than its baseline, 0 when time is only reported
+     */
+    static final double TIME_TOLERANCE = Double.parseDouble(System.getProperty("benchmark.timeTolerance", "3"));
+
+    /**
+     * allocation is nearly deterministic, the slack covers JIT noise
+     */
+    static final double ALLOCATION_TOLERANCE = 1.1;
+    static final double ALLOCATION_SLACK_BYTES = 16;
+
+    private static final int ROUNDS = 7;
+
+    /**
+     * the calibration operation, timed before every round,
+     * each round is divided by the calibration next to it
+     */
+    private static final int CALIBRATION_WARMUP = 20000;
+    private static final int CALIBRATION_ITERATIONS = 200000;
+
+    private static final String TIME_SUFFIX = ".relTime";
+    private static final String ALLOCATION_SUFFIX = ".bytesPerOp";
+
+    private static final Map<String, Result> sResults = new TreeMap<>();
+
+    private static double sCalibrationNanos;
+    private static volatile long sCalibrationSink;
+
+    private Benchmark() {
+    }
+
+    static final class Result {
+        final String name;
+        final double nsPerOp;
+
+        /**
+         * nsPerOp in units of the calibration operation
+         */
+        final double relTime;
+
+        /**
+         * -1 when the JVM can not count allocations
+         */
+        final double bytesPerOp;
+
+        Result(String name, double nsPerOp, double relTime, double bytesPerOp) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.relTime = relTime;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "benchmark %-22s %12.1f ns/op %10.2f x calibration %10.1f B/op",
+                    name, nsPerOp, relTime, bytesPerOp);
+        }
+    }
+
+    /**
+     * run operation and compare the result with its baseline
+     * @param name baseline key
+     * @param warmup iterations before the timed rounds
+     * @param iterations iterations of one timed round
+     * @param operation
+     * @return
+     */
+    static Result run(String name, int warmup, int iterations, Operation operation) throws Exception {
+        Result result = measure(name, warmup, iterations, operation);
+        System.out.println(result);
+        synchronized (sResults) {
+            sResults.put(name, result);
+        }
+        if (!isRecording) check(result, loadBaselines());
+        return result;
+    }
+
+    static Result measure(String name, int warmup, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        calibrationNanos();
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        double[] ratios = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            // timed next to every round, so a slow phase of the host slows both
+            long calibration = Math.max(1, timeCalibration());
+            long bytesBefore = allocatedBytes();
+            long startedAt = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+            long elapsed = System.nanoTime() - startedAt;
+            long bytes = allocatedBytes() - bytesBefore;
+            bestNanos = Math.min(bestNanos, elapsed);
+            bestBytes = Math.min(bestBytes, bytes);
+            ratios[round] = ((double) elapsed / iterations) / ((double) calibration / CALIBRATION_ITERATIONS);
+        }
+        // the best rounds of the two need not come from the same phase of the host,
+        // the median ratio is steadier than the ratio of the minimums
+        Arrays.sort(ratios);
+        double bytesPerOp = allocatedBytes() < 0 ? -1 : (double) bestBytes / iterations;
+        double nsPerOp = (double) bestNanos / iterations;
+        return new Result(name, nsPerOp, ratios[ROUNDS / 2], bytesPerOp);
+    }
+
+    /**
+     * warm up the calibration operation once per JVM
+     * @return ns/op of the calibration operation after the warmup
+     */
+    static synchronized double calibrationNanos() {
+        if (sCalibrationNanos > 0) return sCalibrationNanos;
+        for (int i = 0; i < CALIBRATION_WARMUP; i++) {
+            calibrate(i);
+        }
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            bestNanos = Math.min(bestNanos, timeCalibration());
+        }
+        sCalibrationNanos = Math.max(0.01, (double) bestNanos / CALIBRATION_ITERATIONS);
+        System.out.println(String.format(Locale.US, "benchmark calibration %.2f ns/op", sCalibrationNanos));
+        return sCalibrationNanos;
+    }
+
+    /**
+     * @return ns of one round of CALIBRATION_ITERATIONS calibration operations
+     */
+    private static long timeCalibration() {
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ITERATIONS; i++) {
+            calibrate(i);
+        }
+        return System.nanoTime() - startedAt;
+    }
+
+    /**
+     * the calibration operation, xorshift rounds that neither allocate nor touch memory
+     * @param iteration
+     */
+    private static void calibrate(int iteration) {
+        long x = iteration + 1;
+        for (int i = 0; i < 16; i++) {
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+        }
+        sCalibrationSink = x;
+    }
+
+    /**
+     * @param result
+     * @param baselines
+     */
+    static void check(Result result, Properties baselines) {
+        String record = ", record one with -Pbenchmark.record=true";
+        if (result.bytesPerOp >= 0) {
+            String allocation = baselines.getProperty(result.name + ALLOCATION_SUFFIX);
+            assertNotNull("no allocation baseline for " + result.name + record, allocation);
+            double baselineBytes = Double.parseDouble(allocation);
+            assertTrue(String.format(Locale.US, "%s allocates %.1f B/op, baseline %.1f B/op",
+                    result.name, result.bytesPerOp, baselineBytes),
+                    result.bytesPerOp <= baselineBytes * ALLOCATION_TOLERANCE + ALLOCATION_SLACK_BYTES);
+        }
+
+        if (TIME_TOLERANCE <= 0) {
+            // nothing is gated on a JVM that can not count allocations
+            Assume.assumeTrue("allocation is not counted by this JVM and time is report only",
+                    result.bytesPerOp >= 0);
+            return;
+        }
+        String time = baselines.getProperty(result.name + TIME_SUFFIX);
+        assertNotNull("no time baseline for " + result.name + record, time);
+        double baselineTime = Double.parseDouble(time);
+        assertTrue(String.format(Locale.US, "%s regressed: %.2f x calibration, baseline %.2f x",
+                result.name, result.relTime, baselineTime),
+                result.relTime <= baselineTime * TIME_TOLERANCE);
+    }
+
+    /**
+     * merge the results of this run into the baseline file, call from @AfterClass
+     */
+    static void writeRecorded() throws IOException {
+        if (!isRecording) return;
+        Properties baselines = loadBaselines();
+        synchronized (sResults) {
+            for (Result result : sResults.values()) {
+                baselines.setProperty(result.name + TIME_SUFFIX, String.format(Locale.US, "%.2f", result.relTime));
+                if (result.bytesPerOp >= 0) {
+                    baselines.setProperty(result.name + ALLOCATION_SUFFIX,
+                            String.format(Locale.US, "%.1f", result.bytesPerOp));
+                }
+            }
+        }
+        // sorted by hand, Properties.store keeps no order
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (String key : baselines.stringPropertyNames()) {
+            sorted.put(key, baselines.getProperty(key));
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(BASELINES), "UTF-8");
+        try {
+            writer.write("# benchmark baselines, written by -Pbenchmark.record=true\n");
+            writer.write("# bytesPerOp is always checked with " + ALLOCATION_TOLERANCE + "x + "
+                    + ALLOCATION_SLACK_BYTES + " B, relTime (ns/op over the calibration op)\n");
+            writer.write("# with " + TIME_TOLERANCE + "x, -Pbenchmark.timeTolerance=0 only reports it\n");
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        System.out.println("baselines written to " + BASELINES);
+    }
+
+    static Properties loadBaselines() {
+        Properties baselines = new Properties();
+        File file = new File(BASELINES);
+        if (!file.isFile()) return baselines;
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            baselines.load(inputStream);
+        } catch (IOException exc) {
+            System.out.println("can not read " + BASELINES + ": " + exc.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return baselines;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, -1 when not supported
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) return -1;
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
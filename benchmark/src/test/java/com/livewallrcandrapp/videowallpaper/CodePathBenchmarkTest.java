@@ -0,0 +1,113 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.graphics.BitmapFactory;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * pure java code paths, no Android runtime needed
+ */
+public class CodePathBenchmarkTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 2340;
+
+    /**
+     * the sink keeps the JIT from dropping the benchmarked calls
+     */
+    private static volatile Object sSink;
+    private static volatile float sFloatSink;
+
+    @AfterClass
+    public static void writeBaselines() throws Exception {
+        Benchmark.writeRecorded();
+    }
+
+    private static byte[] header(String ascii, int offset) {
+        byte[] header = new byte[32];
+        byte[] text = ascii.getBytes(Charset.forName("US-ASCII"));
+        System.arraycopy(text, 0, header, offset, text.length);
+        return header;
+    }
+
+    @Test
+    public void mediaTypeDetection() throws Exception {
+        final byte[] jpeg = new byte[32];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+        final byte[][] headers = {
+                jpeg,
+                header("GIF89a", 0),
+                header("RIFF\0\0\0\0WEBP", 0),
+                header("ftypisom\0\0\0\0mp42", 4),
+                header("ftypqt  ", 4),
+        };
+        assertEquals("image/jpeg", MediaSignatures.sniff(jpeg, jpeg.length));
+        Benchmark.run("mediaTypeDetection", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                byte[] header = headers[iteration % headers.length];
+                sSink = MediaSignatures.sniff(header, header.length);
+            }
+        });
+    }
+
+    /**
+     * the draw time placement of an image, replaces setScaleToScreenSize
+     */
+    @Test
+    public void scaleTransform() throws Exception {
+        final ScaleMode[] modes = ScaleMode.values();
+        final float[] transform = new float[4];
+        Benchmark.run("scaleTransform", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                modes[iteration % modes.length].computeTransform(4000 + (iteration & 7), 3000,
+                        SCREEN_WIDTH, SCREEN_HEIGHT, transform);
+                sFloatSink = transform[0];
+            }
+        });
+    }
+
+    @Test
+    public void decodeSizing() throws Exception {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        final ScaleMode[] modes = ScaleMode.values();
+        Benchmark.run("decodeSizing", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                options.outWidth = 4000 + (iteration & 7);
+                options.outHeight = 3000;
+                options.outMimeType = "image/jpeg";
+                BitmapDecoder.configureOptions(options, SCREEN_WIDTH, SCREEN_HEIGHT,
+                        modes[iteration % modes.length]);
+                sSink = options;
+            }
+        });
+    }
+
+    /**
+     * metrics are recorded on the frame path and must not allocate
+     */
+    @Test
+    public void metricsRecord() throws Exception {
+        final WallpaperMetrics metrics = new WallpaperMetrics();
+        Benchmark.Result result = Benchmark.run("metricsRecord", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                metrics.recordNanos(WallpaperMetrics.DRAW, 1000L * (iteration & 1023));
+                metrics.increment(WallpaperMetrics.FRAMES);
+            }
+        });
+        if (result.bytesPerOp >= 0) assertTrue(result.bytesPerOp < 1);
+    }
+}
@@ -0,0 +1,115 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.net.Uri;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * config load, engine construction and the image frame loop on Robolectric
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EngineBenchmarkTest {
+
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 2340;
+
+    private static volatile Object sSink;
+
+    private Context mContext;
+    private VideoWallpaperService mService;
+    private Uri mImageUri;
+
+    @AfterClass
+    public static void writeBaselines() throws Exception {
+        Benchmark.writeRecorded();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        File image = new File(mContext.getCacheDir(), "benchmark.png");
+        if (!image.isFile()) {
+            image.getParentFile().mkdirs();
+            ImageIO.write(new BufferedImage(2000, 3000, BufferedImage.TYPE_INT_RGB), "png", image);
+        }
+        mImageUri = Uri.fromFile(image);
+        ConfigStore.save(mContext, new WallpaperConfig.Builder()
+                .setVideoUrl(mImageUri.toString())
+                .setMimeType("image/png")
+                .build());
+        mService = Robolectric.setupService(VideoWallpaperService.class);
+    }
+
+    /**
+     * read every setting back from SharedPreferences, formerly getSharedPreferencesData
+     */
+    @Test
+    public void configLoad() throws Exception {
+        List<PlaylistItem> playlist = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            playlist.add(new PlaylistItem(mImageUri.toString(), 10000, PlaylistItem.Transition.CROSSFADE)
+                    .withMimeType("image/png"));
+        }
+        ConfigStore.save(mContext, ConfigStore.get(mContext).buildUpon().setPlaylist(playlist).build());
+        assertEquals(5, ConfigStore.load(mContext).getPlaylist().size());
+        Benchmark.run("configLoad", 2000, 20000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                sSink = ConfigStore.load(mContext);
+            }
+        });
+    }
+
+    @Test
+    public void engineConstruction() throws Exception {
+        Benchmark.run("engineConstruction", 500, 5000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                sSink = mService.onCreateEngine();
+            }
+        });
+    }
+
+    /**
+     * steady state frames of an image wallpaper, the drawFrameToCanvas loop
+     */
+    @Test
+    public void drawFrame() throws Exception {
+        final VideoWallpaperService.VideoEngine engine =
+                (VideoWallpaperService.VideoEngine) mService.onCreateEngine();
+        FakeSurfaceHolder holder = new FakeSurfaceHolder(SCREEN_WIDTH, SCREEN_HEIGHT);
+        engine.onSurfaceCreated(holder);
+        engine.onSurfaceChanged(holder, PixelFormat.RGBA_8888, SCREEN_WIDTH, SCREEN_HEIGHT);
+        // the first frame decodes the image
+        engine.onRenderFrame(0);
+        assertEquals(1, holder.getCanvas().getBitmapDraws());
+
+        Benchmark.run("drawFrame", 2000, 20000, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                engine.onRenderFrame(iteration * 16666667L);
+            }
+        });
+        assertEquals(holder.getPostedFrames(), holder.getCanvas().getBitmapDraws());
+        engine.onSurfaceDestroyed(holder);
+    }
+}
@@ -0,0 +1,146 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * surface holder whose canvas only counts the draw calls,
+ * so a draw benchmark measures the engine and not the rasterizer
+ * and a lifecycle test can count canvas locks
+ */
+final class FakeSurfaceHolder implements SurfaceHolder {
+
+    private final CountingCanvas mCanvas;
+    private final Rect mFrame;
+    private int mLockedCanvases;
+    private int mPostedFrames;
+    private Surface mSurface;
+
+    FakeSurfaceHolder(int width, int height) {
+        mCanvas = new CountingCanvas(width, height);
+        mFrame = new Rect(0, 0, width, height);
+    }
+
+    int getPostedFrames() {
+        return mPostedFrames;
+    }
+
+    int getLockedCanvases() {
+        return mLockedCanvases;
+    }
+
+    CountingCanvas getCanvas() {
+        return mCanvas;
+    }
+
+    /**
+     * @param surface handed to the players, null by default so video frames go nowhere
+     */
+    void setSurface(Surface surface) {
+        mSurface = surface;
+    }
+
+    @Override
+    public void addCallback(Callback callback) {
+    }
+
+    @Override
+    public void removeCallback(Callback callback) {
+    }
+
+    @Override
+    public boolean isCreating() {
+        return false;
+    }
+
+    @Override
+    public void setType(int type) {
+    }
+
+    @Override
+    public void setFixedSize(int width, int height) {
+    }
+
+    @Override
+    public void setSizeFromLayout() {
+    }
+
+    @Override
+    public void setFormat(int format) {
+    }
+
+    @Override
+    public void setKeepScreenOn(boolean screenOn) {
+    }
+
+    @Override
+    public Canvas lockCanvas() {
+        mLockedCanvases++;
+        return mCanvas;
+    }
+
+    @Override
+    public Canvas lockCanvas(Rect dirty) {
+        mLockedCanvases++;
+        return mCanvas;
+    }
+
+    @Override
+    public void unlockCanvasAndPost(Canvas canvas) {
+        mPostedFrames++;
+    }
+
+    @Override
+    public Rect getSurfaceFrame() {
+        return mFrame;
+    }
+
+    @Override
+    public Surface getSurface() {
+        return mSurface;
+    }
+
+    static final class CountingCanvas extends Canvas {
+        private final int mWidth;
+        private final int mHeight;
+        private int mBitmapDraws;
+
+        CountingCanvas(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        int getBitmapDraws() {
+            return mBitmapDraws;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void drawColor(int color) {
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Matrix matrix, Paint paint) {
+            mBitmapDraws++;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            mBitmapDraws++;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.graphics.SurfaceTexture;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.view.Surface;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowMediaPlayer;
+import org.robolectric.shadows.util.DataSource;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * scripted engine lifecycles on a simulated clock with budgets per simulated minute,
+ * a decode per frame, a redraw loop, a canvas lock on a video surface
+ * or a leaked player fails the build
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LifecycleBudgetTest {
+
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 2340;
+
+    /**
+     * launcher scrolls per simulated second
+     */
+    private static final int SCROLLS_PER_SECOND = 4;
+
+    /**
+     * redraws not caused by a scroll: visibility and screen changes
+     */
+    private static final double EXTRA_LOCKS_PER_MINUTE = 10;
+
+    /**
+     * steady state allocation on the main thread, Robolectric's own included
+     */
+    private static final double ALLOCATED_BYTES_PER_MINUTE = 4 * 1024 * 1024;
+
+    private static final int VIDEO_DURATION_MS = 10000;
+    private static final int VIDEO_PREPARE_MS = 200;
+
+    private Context mContext;
+    private LifecycleHarness mHarness;
+    private Uri mImageUri;
+    private Uri mVideoUri;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        File image = new File(mContext.getCacheDir(), "lifecycle.png");
+        if (!image.isFile()) {
+            image.getParentFile().mkdirs();
+            ImageIO.write(new BufferedImage(2000, 3000, BufferedImage.TYPE_INT_RGB), "png", image);
+        }
+        mImageUri = Uri.fromFile(image);
+        File video = new File(mContext.getCacheDir(), "lifecycle.mp4");
+        mVideoUri = Uri.fromFile(video);
+        ShadowMediaPlayer.MediaInfo info = new ShadowMediaPlayer.MediaInfo(VIDEO_DURATION_MS, VIDEO_PREPARE_MS);
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(mContext, mVideoUri), info);
+        // MediaPlayer opens a file uri by its path
+        ShadowMediaPlayer.addMediaInfo(DataSource.toDataSource(video.getAbsolutePath()), info);
+        mHarness = new LifecycleHarness(SCREEN_WIDTH, SCREEN_HEIGHT);
+    }
+
+    private void useImage() {
+        ConfigStore.save(mContext, new WallpaperConfig.Builder()
+                .setVideoUrl(mImageUri.toString())
+                .setMimeType("image/png")
+                .build());
+    }
+
+    private void useVideo() {
+        ConfigStore.save(mContext, new WallpaperConfig.Builder()
+                .setVideoUrl(mVideoUri.toString())
+                .setMimeType("video/mp4")
+                .build());
+    }
+
+    private void useSeamlessVideo() {
+        ConfigStore.save(mContext, new WallpaperConfig.Builder()
+                .setVideoUrl(mVideoUri.toString())
+                .setMimeType("video/mp4")
+                .setSeamlessLoop(true)
+                .build());
+    }
+
+    /**
+     * one minute of scrolling with a screen off and a visibility toggle,
+     * redraws follow the scrolls and nothing is decoded again
+     */
+    @Test
+    public void imageMinute() {
+        useImage();
+        VideoWallpaperService.VideoEngine engine = mHarness.createEngine();
+        mHarness.showSurface(engine);
+        mHarness.advance(100);
+        assertEquals("first frame", 1, mHarness.getHolder().getPostedFrames());
+
+        mHarness.begin();
+        int scrolls = 0;
+        for (int second = 0; second < 60; second++) {
+            if (second == 20) mHarness.screenOff(engine);
+            if (second == 25) mHarness.screenOn(engine);
+            if (second == 40) mHarness.setVisible(engine, false);
+            if (second == 42) mHarness.setVisible(engine, true);
+            boolean isShown = second < 20 || (second >= 25 && second < 40) || second >= 42;
+            for (int i = 0; i < SCROLLS_PER_SECOND; i++) {
+                mHarness.scroll(engine, (second * SCROLLS_PER_SECOND + i) % 100 / 100f);
+                if (isShown) scrolls++;
+                mHarness.advance(1000 / SCROLLS_PER_SECOND);
+            }
+        }
+        LifecycleHarness.Usage usage = mHarness.end();
+        mHarness.destroy(engine);
+
+        LifecycleHarness.assertBudget("image decodes", usage.perMinute(usage.decodes), 0);
+        LifecycleHarness.assertBudget("canvas locks", usage.perMinute(usage.canvasLocks),
+                usage.perMinute(scrolls) + EXTRA_LOCKS_PER_MINUTE);
+        if (usage.allocatedBytes >= 0) {
+            LifecycleHarness.assertBudget("allocated bytes", usage.perMinute(usage.allocatedBytes),
+                    ALLOCATED_BYTES_PER_MINUTE);
+        }
+        assertEquals(mHarness.getHolder().getLockedCanvases(), mHarness.getHolder().getPostedFrames());
+    }
+
+    /**
+     * a hidden image engine draws nothing however often it is invalidated
+     */
+    @Test
+    public void hiddenImage_locksNoCanvas() {
+        useImage();
+        VideoWallpaperService.VideoEngine engine = mHarness.createEngine();
+        mHarness.showSurface(engine);
+        mHarness.advance(100);
+        mHarness.setVisible(engine, false);
+
+        mHarness.begin();
+        for (int i = 0; i < 600; i++) {
+            mHarness.scroll(engine, i % 100 / 100f);
+            mHarness.advance(100);
+        }
+        LifecycleHarness.Usage usage = mHarness.end();
+        mHarness.destroy(engine);
+        assertEquals(0, usage.canvasLocks);
+        assertEquals(0, usage.decodes);
+    }
+
+    /**
+     * one minute of video with visibility toggles shorter than the idle timeout
+     * and a screen off, one codec does it all and the canvas is never locked
+     */
+    @Test
+    public void videoMinute() {
+        useVideo();
+        mHarness.begin();
+        VideoWallpaperService.VideoEngine engine = mHarness.createEngine();
+        mHarness.showSurface(engine);
+        for (int second = 0; second < 60; second++) {
+            if (second == 10 || second == 40) mHarness.setVisible(engine, false);
+            if (second == 13 || second == 43) mHarness.setVisible(engine, true);
+            if (second == 25) mHarness.screenOff(engine);
+            if (second == 30) mHarness.screenOn(engine);
+            for (int i = 0; i < SCROLLS_PER_SECOND; i++) {
+                mHarness.scroll(engine, (second * SCROLLS_PER_SECOND + i) % 100 / 100f);
+                mHarness.advance(1000 / SCROLLS_PER_SECOND);
+            }
+        }
+        LifecycleHarness.Usage usage = mHarness.end();
+
+        LifecycleHarness.assertBudget("players", usage.perMinute(usage.players), 1);
+        assertEquals("canvas locks on the video surface", 0, usage.canvasLocks);
+        assertEquals(0, usage.decodes);
+        if (usage.allocatedBytes >= 0) {
+            LifecycleHarness.assertBudget("allocated bytes", usage.perMinute(usage.allocatedBytes),
+                    ALLOCATED_BYTES_PER_MINUTE);
+        }
+
+        mHarness.destroy(engine);
+        mHarness.advance(PlayerPool.PARK_TIMEOUT_MS + 1);
+        assertEquals("players left after destroy", 0, mHarness.livePlayers());
+    }
+
+    /**
+     * in seamless loop mode the standby player takes over before the end of the clip,
+     * no player ever plays to its completion and two decoders do all the loops
+     */
+    @Test
+    public void seamlessLoop_swapsBeforeTheEnd() {
+        final List<ShadowMediaPlayer> players = new ArrayList<>();
+        ShadowMediaPlayer.setCreateListener(new ShadowMediaPlayer.CreateListener() {
+            @Override
+            public void onCreate(MediaPlayer player, ShadowMediaPlayer shadow) {
+                players.add(shadow);
+            }
+        });
+        useSeamlessVideo();
+        // the swap hands the surface over, it needs one to hand
+        mHarness.getHolder().setSurface(new Surface(new SurfaceTexture(0)));
+        mHarness.begin();
+        VideoWallpaperService.VideoEngine engine = mHarness.createEngine();
+        mHarness.showSurface(engine);
+        int swaps = 0;
+        ShadowMediaPlayer playing = null;
+        for (int step = 0; step < 4 * VIDEO_DURATION_MS / 100; step++) {
+            mHarness.advance(100);
+            for (ShadowMediaPlayer player : players) {
+                assertNotEquals("a player reached its end at " + mHarness.now() + " ms",
+                        ShadowMediaPlayer.State.PLAYBACK_COMPLETED, player.getState());
+                if (player.getState() != ShadowMediaPlayer.State.STARTED || player == playing) continue;
+                if (playing != null) swaps++;
+                playing = player;
+            }
+        }
+        LifecycleHarness.Usage usage = mHarness.end();
+        assertEquals("players", 2, usage.players);
+        assertEquals("swaps", 3, swaps);
+
+        mHarness.destroy(engine);
+        mHarness.advance(PlayerPool.PARK_TIMEOUT_MS + 1);
+        assertEquals("players left after destroy", 0, mHarness.livePlayers());
+    }
+
+    /**
+     * preview and wallpaper engines come and go on the same source,
+     * the parked player goes from one to the next and none is left behind
+     */
+    @Test
+    public void engineChurn_leaksNoPlayer() {
+        useVideo();
+        mHarness.begin();
+        for (int i = 0; i < 10; i++) {
+            VideoWallpaperService.VideoEngine engine = mHarness.createEngine();
+            mHarness.showSurface(engine);
+            mHarness.advance(VIDEO_PREPARE_MS * 2);
+            mHarness.destroy(engine);
+            mHarness.advance(100);
+        }
+        LifecycleHarness.Usage usage = mHarness.end();
+        assertEquals("players created", 1, usage.players);
+
+        mHarness.advance(PlayerPool.PARK_TIMEOUT_MS + 1);
+        assertEquals("players left after destroy", 0, mHarness.livePlayers());
+    }
+}
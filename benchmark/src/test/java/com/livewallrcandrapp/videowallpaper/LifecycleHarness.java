@@ -0,0 +1,243 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Intent;
+import android.graphics.PixelFormat;
+import android.os.Looper;
+
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowChoreographer;
+import org.robolectric.util.Scheduler;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * drives VideoWallpaperService engines through scripted lifecycles on Robolectric
+ * the engines draw on the main looper and time only moves with advance(),
+ * so a simulated minute runs in milliseconds and every count is exact
+ * what happened between begin() and end() is checked against per minute budgets
+ * usage:
+ *     LifecycleHarness harness = new LifecycleHarness(1080, 2340);
+ *     VideoWallpaperService.VideoEngine engine = harness.createEngine();
+ *     harness.showSurface(engine);
+ *     harness.begin();
+ *     harness.advance(60000);
+ *     LifecycleHarness.Usage usage = harness.end();
+ */
+final class LifecycleHarness {
+
+    /**
+     * vsync period of the simulated display
+     */
+    static final int VSYNC_MS = 16;
+
+    private static final long MINUTE_MS = 60000;
+
+    /**
+     * service whose engines draw on the main looper instead of their own threads
+     */
+    public static class Service extends VideoWallpaperService {
+        @Override
+        RenderThread newRenderThread(String name, RenderThread.Renderer renderer, int targetFps) {
+            return new RenderThread(renderer, targetFps, Looper.getMainLooper());
+        }
+    }
+
+    /**
+     * what the engines did between begin() and end()
+     */
+    static final class Usage {
+        final long simulatedMillis;
+        final long decodes;
+        final long canvasLocks;
+        final long players;
+
+        /**
+         * bytes allocated on the main thread, -1 when the JVM can not count them
+         */
+        final long allocatedBytes;
+
+        Usage(long simulatedMillis, long decodes, long canvasLocks, long players, long allocatedBytes) {
+            this.simulatedMillis = simulatedMillis;
+            this.decodes = decodes;
+            this.canvasLocks = canvasLocks;
+            this.players = players;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * @param value count over the whole run
+         * @return value per simulated minute
+         */
+        double perMinute(long value) {
+            return value * (double) MINUTE_MS / Math.max(1, simulatedMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f s simulated: %d decodes, %d canvas locks, %d players, %d B allocated",
+                    simulatedMillis / 1000.0, decodes, canvasLocks, players, allocatedBytes);
+        }
+    }
+
+    private final Scheduler mScheduler;
+    private final Service mService;
+    private final FakeSurfaceHolder mHolder;
+    private final int mWidth;
+    private final int mHeight;
+
+    private long mBeganAt = -1;
+    private long mDecodesAtBegin;
+    private long mLocksAtBegin;
+    private long mPlayersAtBegin;
+    private long mBytesAtBegin;
+
+    /**
+     * @param width surface width
+     * @param height surface height
+     */
+    LifecycleHarness(int width, int height) {
+        mScheduler = Robolectric.getForegroundThreadScheduler();
+        // nothing runs until the clock is advanced
+        mScheduler.pause();
+        ShadowChoreographer.setPostFrameCallbackDelay(VSYNC_MS);
+        mService = Robolectric.setupService(Service.class);
+        mHolder = new FakeSurfaceHolder(width, height);
+        mWidth = width;
+        mHeight = height;
+    }
+
+    Service getService() {
+        return mService;
+    }
+
+    FakeSurfaceHolder getHolder() {
+        return mHolder;
+    }
+
+    /**
+     * @return simulated uptime in milliseconds
+     */
+    long now() {
+        return mScheduler.getCurrentTime();
+    }
+
+    /**
+     * run everything due within millis, frames included
+     * @param millis
+     */
+    void advance(long millis) {
+        mScheduler.advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return engine attached like the system does before its surface exists
+     */
+    VideoWallpaperService.VideoEngine createEngine() {
+        VideoWallpaperService.VideoEngine engine = (VideoWallpaperService.VideoEngine) mService.onCreateEngine();
+        engine.onCreate(mHolder);
+        return engine;
+    }
+
+    /**
+     * surface created and sized, then shown
+     * @param engine
+     */
+    void showSurface(VideoWallpaperService.VideoEngine engine) {
+        engine.onSurfaceCreated(mHolder);
+        engine.onSurfaceChanged(mHolder, PixelFormat.RGBA_8888, mWidth, mHeight);
+        engine.onVisibilityChanged(true);
+    }
+
+    void setVisible(VideoWallpaperService.VideoEngine engine, boolean visible) {
+        engine.onVisibilityChanged(visible);
+    }
+
+    /**
+     * a launcher page scroll
+     * @param engine
+     * @param xOffset 0 to 1
+     */
+    void scroll(VideoWallpaperService.VideoEngine engine, float xOffset) {
+        engine.onOffsetsChanged(xOffset, 0.5f, 0.25f, 0f, 0, 0);
+    }
+
+    /**
+     * the screen goes off, the wallpaper is hidden with it
+     * @param engine
+     */
+    void screenOff(VideoWallpaperService.VideoEngine engine) {
+        ScreenStateDispatcher.dispatch(mService, new Intent(Intent.ACTION_SCREEN_OFF));
+        engine.onVisibilityChanged(false);
+    }
+
+    /**
+     * the screen comes on to the keyguard, which shows the wallpaper
+     * @param engine
+     */
+    void screenOn(VideoWallpaperService.VideoEngine engine) {
+        engine.onVisibilityChanged(true);
+        ScreenStateDispatcher.dispatch(mService, new Intent(Intent.ACTION_SCREEN_ON));
+    }
+
+    /**
+     * hidden, surface destroyed and detached, in the order of the system
+     * @param engine
+     */
+    void destroy(VideoWallpaperService.VideoEngine engine) {
+        engine.onVisibilityChanged(false);
+        engine.onSurfaceDestroyed(mHolder);
+        engine.onDestroy();
+    }
+
+    /**
+     * @return players held by the service, leased or parked
+     */
+    int livePlayers() {
+        PlayerPool pool = mService.getPlayerPool();
+        return pool != null ? pool.size() : 0;
+    }
+
+    /**
+     * start counting
+     */
+    void begin() {
+        MetricsSnapshot snapshot = WallpaperMetrics.get().snapshot();
+        mBeganAt = now();
+        mDecodesAtBegin = decodesOf(snapshot);
+        mLocksAtBegin = mHolder.getLockedCanvases();
+        mPlayersAtBegin = snapshot.getCounter(MetricsSnapshot.PLAYERS);
+        mBytesAtBegin = Benchmark.allocatedBytes();
+    }
+
+    /**
+     * @return what happened since begin()
+     */
+    Usage end() {
+        long bytes = Benchmark.allocatedBytes();
+        if (mBeganAt < 0) throw new IllegalStateException("begin() was not called");
+        MetricsSnapshot snapshot = WallpaperMetrics.get().snapshot();
+        Usage usage = new Usage(now() - mBeganAt, decodesOf(snapshot) - mDecodesAtBegin,
+                mHolder.getLockedCanvases() - mLocksAtBegin,
+                snapshot.getCounter(MetricsSnapshot.PLAYERS) - mPlayersAtBegin,
+                bytes < 0 || mBytesAtBegin < 0 ? -1 : bytes - mBytesAtBegin);
+        System.out.println("lifecycle " + usage);
+        return usage;
+    }
+
+    /**
+     * @param what
+     * @param perMinute measured value per simulated minute
+     * @param budget
+     */
+    static void assertBudget(String what, double perMinute, double budget) {
+        assertTrue(String.format(Locale.US, "%s: %.1f per minute, budget %.1f", what, perMinute, budget),
+                perMinute <= budget);
+    }
+
+    private static long decodesOf(MetricsSnapshot snapshot) {
+        return snapshot.getCount(MetricsSnapshot.IMAGE_DECODE) + snapshot.getCount(MetricsSnapshot.TILE_DECODE);
+    }
+}
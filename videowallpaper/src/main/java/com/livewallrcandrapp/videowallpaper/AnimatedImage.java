@@ -0,0 +1,421 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * frame index of an animated GIF or WebP file
+ * only the container is parsed, each frame is repackaged as a single frame
+ * file that BitmapFactory decodes, plain java so it can be tested on the JVM
+ */
+final class AnimatedImage {
+
+    /**
+     * what happens to the area of a frame before the next one is drawn
+     */
+    static final int DISPOSE_NONE = 0;
+    static final int DISPOSE_BACKGROUND = 1;
+    static final int DISPOSE_PREVIOUS = 2;
+
+    /**
+     * delays at or under this are played at DEFAULT_DELAY_MS, the way browsers do
+     */
+    static final int MIN_DELAY_MS = 10;
+    static final int DEFAULT_DELAY_MS = 100;
+
+    private static final byte[] GIF_TRAILER = {0x3B};
+
+    /**
+     * one frame of the animation in canvas pixels
+     */
+    static final class Frame {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final int delayMs;
+        final int disposal;
+
+        /**
+         * false when the frame replaces its area instead of being drawn over it
+         */
+        final boolean isBlended;
+
+        /**
+         * GIF: image descriptor up to the end of the image data
+         * WebP: ALPH chunk if any and the VP8 / VP8L chunk
+         */
+        final int dataOffset;
+        final int dataLength;
+        final int alphaOffset;
+        final int alphaLength;
+
+        /**
+         * GIF graphic control flags, -1 without a graphic control extension
+         */
+        final int controlFlags;
+        final int transparentIndex;
+
+        Frame(int x, int y, int width, int height, int delayMs, int disposal, boolean isBlended,
+              int dataOffset, int dataLength, int alphaOffset, int alphaLength,
+              int controlFlags, int transparentIndex) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.delayMs = delayMs;
+            this.disposal = disposal;
+            this.isBlended = isBlended;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.alphaOffset = alphaOffset;
+            this.alphaLength = alphaLength;
+            this.controlFlags = controlFlags;
+            this.transparentIndex = transparentIndex;
+        }
+    }
+
+    private final byte[] mData;
+    private final boolean isGif;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mLoopCount;
+    private final List<Frame> mFrames;
+
+    /**
+     * GIF only: global color table copied into every frame
+     */
+    private final int mColorTableFlags;
+    private final int mColorTableOffset;
+    private final int mColorTableLength;
+
+    private AnimatedImage(byte[] data, boolean gif, int width, int height, int loopCount, List<Frame> frames,
+                          int colorTableFlags, int colorTableOffset, int colorTableLength) {
+        mData = data;
+        isGif = gif;
+        mWidth = width;
+        mHeight = height;
+        mLoopCount = loopCount;
+        mFrames = Collections.unmodifiableList(frames);
+        mColorTableFlags = colorTableFlags;
+        mColorTableOffset = colorTableOffset;
+        mColorTableLength = colorTableLength;
+    }
+
+    /**
+     * @param mimeType
+     * @return true for the types that can hold an animation
+     */
+    static boolean isAnimatedType(String mimeType) {
+        return MediaSignatures.IMAGE_GIF.equals(mimeType) || MediaSignatures.IMAGE_WEBP.equals(mimeType);
+    }
+
+    /**
+     * @param data whole file
+     * @param length number of valid bytes in data
+     * @return the animation, null for a still image or a file that can not be parsed
+     */
+    static AnimatedImage parse(byte[] data, int length) {
+        if (data == null) return null;
+        length = Math.min(length, data.length);
+        String mimeType = MediaSignatures.sniff(data, length);
+        try {
+            if (MediaSignatures.IMAGE_GIF.equals(mimeType)) return parseGif(data, length);
+            if (MediaSignatures.IMAGE_WEBP.equals(mimeType)) return parseWebp(data, length);
+        } catch (IndexOutOfBoundsException exc) {
+            // truncated file, shown as a still image
+        }
+        return null;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return times the animation is played, 0 for ever
+     */
+    int getLoopCount() {
+        return mLoopCount;
+    }
+
+    int getFrameCount() {
+        return mFrames.size();
+    }
+
+    Frame getFrame(int index) {
+        return mFrames.get(index);
+    }
+
+    /**
+     * @param index
+     * @return size of the single frame file of frame index
+     */
+    int getEncodedSize(int index) {
+        Frame frame = mFrames.get(index);
+        if (isGif) return 6 + 7 + mColorTableLength + 8 + frame.dataLength + GIF_TRAILER.length;
+        if (frame.alphaLength > 0) return 12 + 18 + padded(frame.alphaLength) + padded(frame.dataLength);
+        return 12 + padded(frame.dataLength);
+    }
+
+    /**
+     * write frame index as a file of its own, positioned at 0,0
+     * @param index
+     * @param out at least getEncodedSize(index) bytes
+     * @return number of bytes written
+     */
+    int writeFrame(int index, byte[] out) {
+        Frame frame = mFrames.get(index);
+        return isGif ? writeGifFrame(frame, out) : writeWebpFrame(frame, out);
+    }
+
+    private int writeGifFrame(Frame frame, byte[] out) {
+        int position = putAscii(out, 0, "GIF89a");
+        // logical screen of the frame size, keeping the global color table
+        position = putShortLe(out, position, frame.width);
+        position = putShortLe(out, position, frame.height);
+        out[position++] = (byte) mColorTableFlags;
+        out[position++] = 0;
+        out[position++] = 0;
+        System.arraycopy(mData, mColorTableOffset, out, position, mColorTableLength);
+        position += mColorTableLength;
+        if (frame.controlFlags >= 0) {
+            out[position++] = 0x21;
+            out[position++] = (byte) 0xF9;
+            out[position++] = 4;
+            // disposal is done by the compositor, only transparency is kept
+            out[position++] = (byte) (frame.controlFlags & 0x01);
+            position = putShortLe(out, position, 0);
+            out[position++] = (byte) frame.transparentIndex;
+            out[position++] = 0;
+        }
+        // the image descriptor moved to 0,0
+        System.arraycopy(mData, frame.dataOffset, out, position, frame.dataLength);
+        out[position + 1] = 0;
+        out[position + 2] = 0;
+        out[position + 3] = 0;
+        out[position + 4] = 0;
+        position += frame.dataLength;
+        out[position++] = GIF_TRAILER[0];
+        return position;
+    }
+
+    private int writeWebpFrame(Frame frame, byte[] out) {
+        int position = putAscii(out, 0, "RIFF");
+        position += 4;
+        position = putAscii(out, position, "WEBP");
+        if (frame.alphaLength > 0) {
+            // a lossy frame with alpha needs the extended header
+            position = putAscii(out, position, "VP8X");
+            position = putIntLe(out, position, 10);
+            out[position++] = 0x10;
+            out[position++] = 0;
+            out[position++] = 0;
+            out[position++] = 0;
+            position = putInt24Le(out, position, frame.width - 1);
+            position = putInt24Le(out, position, frame.height - 1);
+            position = putChunk(out, position, frame.alphaOffset, frame.alphaLength);
+        }
+        position = putChunk(out, position, frame.dataOffset, frame.dataLength);
+        putIntLe(out, 4, position - 8);
+        return position;
+    }
+
+    private int putChunk(byte[] out, int position, int offset, int length) {
+        System.arraycopy(mData, offset, out, position, length);
+        position += length;
+        if ((length & 1) != 0) out[position++] = 0;
+        return position;
+    }
+
+    /**
+     * logical screen, global color table, then extensions and images up to the trailer
+     */
+    private static AnimatedImage parseGif(byte[] data, int length) {
+        int width = shortLe(data, 6);
+        int height = shortLe(data, 8);
+        int flags = data[10] & 0xFF;
+        int position = 13;
+        int colorTableOffset = position;
+        int colorTableLength = (flags & 0x80) != 0 ? 3 << ((flags & 0x07) + 1) : 0;
+        position += colorTableLength;
+
+        List<Frame> frames = new ArrayList<>();
+        int loopCount = 1;
+        int controlFlags = -1;
+        int transparentIndex = 0;
+        int delayMs = 0;
+        while (position < length) {
+            int block = data[position] & 0xFF;
+            if (block == 0x3B) break;
+            if (block == 0x21) {
+                int label = data[position + 1] & 0xFF;
+                int start = position + 2;
+                if (label == 0xF9 && (data[start] & 0xFF) >= 4) {
+                    controlFlags = data[start + 1] & 0xFF;
+                    delayMs = shortLe(data, start + 2) * 10;
+                    transparentIndex = data[start + 4] & 0xFF;
+                } else if (label == 0xFF && (data[start] & 0xFF) == 11
+                        && (matchesAscii(data, start + 1, "NETSCAPE2.0") || matchesAscii(data, start + 1, "ANIMEXTS1.0"))
+                        && (data[start + 12] & 0xFF) >= 3 && data[start + 13] == 1) {
+                    loopCount = shortLe(data, start + 14);
+                }
+                position = skipSubBlocks(data, start);
+            } else if (block == 0x2C) {
+                int x = shortLe(data, position + 1);
+                int y = shortLe(data, position + 3);
+                int frameWidth = shortLe(data, position + 5);
+                int frameHeight = shortLe(data, position + 7);
+                int imageFlags = data[position + 9] & 0xFF;
+                int end = position + 10;
+                if ((imageFlags & 0x80) != 0) end += 3 << ((imageFlags & 0x07) + 1);
+                // lzw minimum code size, then the image data
+                end = skipSubBlocks(data, end + 1);
+                if (end > length) break;
+                int disposal = DISPOSE_NONE;
+                if (controlFlags >= 0) {
+                    int method = (controlFlags >> 2) & 0x07;
+                    if (method == 2) disposal = DISPOSE_BACKGROUND;
+                    if (method == 3) disposal = DISPOSE_PREVIOUS;
+                }
+                frames.add(new Frame(x, y, frameWidth, frameHeight, frameDelay(delayMs), disposal, true,
+                        position, end - position, 0, 0, controlFlags, transparentIndex));
+                controlFlags = -1;
+                delayMs = 0;
+                position = end;
+            } else {
+                break;
+            }
+        }
+        if (frames.size() < 2 || width <= 0 || height <= 0) return null;
+        return new AnimatedImage(data, true, width, height, loopCount, frames,
+                flags & 0x87, colorTableOffset, colorTableLength);
+    }
+
+    /**
+     * VP8X with the animation flag, ANIM, then one ANMF chunk per frame
+     */
+    private static AnimatedImage parseWebp(byte[] data, int length) {
+        int end = Math.min(length, 8 + intLe(data, 4));
+        int position = 12;
+        int width = 0;
+        int height = 0;
+        int loopCount = 0;
+        boolean isAnimated = false;
+        List<Frame> frames = new ArrayList<>();
+        while (position + 8 <= end) {
+            int size = intLe(data, position + 4);
+            int payload = position + 8;
+            if (size < 0 || payload + size > end) break;
+            if (matchesAscii(data, position, "VP8X") && size >= 10) {
+                isAnimated = (data[payload] & 0x02) != 0;
+                width = int24Le(data, payload + 4) + 1;
+                height = int24Le(data, payload + 7) + 1;
+            } else if (matchesAscii(data, position, "ANIM") && size >= 6) {
+                loopCount = shortLe(data, payload + 4);
+            } else if (matchesAscii(data, position, "ANMF") && size >= 16) {
+                Frame frame = parseAnimationFrame(data, payload, payload + size);
+                if (frame != null) frames.add(frame);
+            }
+            position = payload + size + (size & 1);
+        }
+        if (!isAnimated || frames.size() < 2 || width <= 0 || height <= 0) return null;
+        return new AnimatedImage(data, false, width, height, loopCount, frames, 0, 0, 0);
+    }
+
+    private static Frame parseAnimationFrame(byte[] data, int payload, int end) {
+        int x = int24Le(data, payload) * 2;
+        int y = int24Le(data, payload + 3) * 2;
+        int width = int24Le(data, payload + 6) + 1;
+        int height = int24Le(data, payload + 9) + 1;
+        int duration = int24Le(data, payload + 12);
+        int flags = data[payload + 15] & 0xFF;
+        int alphaOffset = 0;
+        int alphaLength = 0;
+        int position = payload + 16;
+        while (position + 8 <= end) {
+            int size = intLe(data, position + 4);
+            if (size < 0 || position + 8 + size > end) return null;
+            if (matchesAscii(data, position, "ALPH")) {
+                alphaOffset = position;
+                alphaLength = size + 8;
+            } else if (matchesAscii(data, position, "VP8 ") || matchesAscii(data, position, "VP8L")) {
+                return new Frame(x, y, width, height, frameDelay(duration),
+                        (flags & 0x01) != 0 ? DISPOSE_BACKGROUND : DISPOSE_NONE, (flags & 0x02) == 0,
+                        position, size + 8, alphaOffset, alphaLength, -1, 0);
+            }
+            position += 8 + size + (size & 1);
+        }
+        return null;
+    }
+
+    /**
+     * @param delayMs delay stored in the file
+     * @return delay the frame is shown for
+     */
+    static int frameDelay(int delayMs) {
+        return delayMs <= MIN_DELAY_MS ? DEFAULT_DELAY_MS : delayMs;
+    }
+
+    private static int skipSubBlocks(byte[] data, int position) {
+        int size = data[position] & 0xFF;
+        while (size != 0) {
+            position += size + 1;
+            size = data[position] & 0xFF;
+        }
+        return position + 1;
+    }
+
+    private static int padded(int length) {
+        return length + (length & 1);
+    }
+
+    private static boolean matchesAscii(byte[] data, int offset, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (data[offset + i] != (byte) ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int shortLe(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int int24Le(byte[] data, int offset) {
+        return shortLe(data, offset) | ((data[offset + 2] & 0xFF) << 16);
+    }
+
+    private static int intLe(byte[] data, int offset) {
+        return int24Le(data, offset) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    private static int putAscii(byte[] out, int position, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            out[position++] = (byte) ascii.charAt(i);
+        }
+        return position;
+    }
+
+    private static int putShortLe(byte[] out, int position, int value) {
+        out[position++] = (byte) value;
+        out[position++] = (byte) (value >> 8);
+        return position;
+    }
+
+    private static int putInt24Le(byte[] out, int position, int value) {
+        position = putShortLe(out, position, value);
+        out[position++] = (byte) (value >> 16);
+        return position;
+    }
+
+    private static int putIntLe(byte[] out, int position, int value) {
+        position = putInt24Le(out, position, value);
+        out[position++] = (byte) (value >> 24);
+        return position;
+    }
+}
@@ -0,0 +1,421 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * plays an animated GIF or WebP from a ring of RING_SIZE composed frames,
+ * a decode thread composes the frames ahead into the free slots while the
+ * render thread shows the oldest one, the slots are reused for the whole
+ * animation so memory stays at RING_SIZE canvas bitmaps
+ */
+final class AnimatedImageRenderer {
+
+    private static final String TAG = "AnimatedImageRenderer";
+
+    /**
+     * the frame on screen and two composed ahead
+     */
+    static final int RING_SIZE = 3;
+
+    /**
+     * larger files are shown as a still image
+     */
+    static final int MAX_ENCODED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * redraw delay while the decode thread is behind
+     */
+    static final long RETRY_DELAY_MS = 16;
+
+    private static final long QUIT_TIMEOUT_MS = 500;
+
+    private AnimatedImage mImage;
+
+    /**
+     * composition scale, the ring holds just enough pixels for the surface
+     */
+    private float mScale;
+    private int mSampleSize;
+
+    private final Bitmap[] mRing = new Bitmap[RING_SIZE];
+    private final int[] mRingFrame = new int[RING_SIZE];
+
+    /**
+     * ring state, guarded by mLock: mHead is the oldest occupied slot,
+     * the one on screen once isShowing, mCount slots are occupied from there
+     */
+    private final Object mLock = new Object();
+    private int mHead;
+    private int mCount;
+    private boolean isShowing;
+    private boolean isFinished;
+    private boolean isClosed = true;
+    private long mDueAt;
+
+    private Thread mDecodeThread;
+
+    /**
+     * decode thread only
+     */
+    private final Canvas mCanvas = new Canvas();
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final RectF mFrameRect = new RectF();
+    private final Paint mOverPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mSourcePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mClearPaint = new Paint();
+    private Bitmap mFrameBitmap;
+    private Bitmap mRestoreBitmap;
+    private final Canvas mRestoreCanvas = new Canvas();
+    private byte[] mEncoded = new byte[0];
+
+    AnimatedImageRenderer() {
+        mSourcePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+    }
+
+    /**
+     * read and index the source and start composing frames for the surface,
+     * a renderer is opened once, a new size or source takes a new renderer
+     * @param resolver
+     * @param uri
+     * @param surfaceWidth
+     * @param surfaceHeight
+     * @param scaleMode
+     * @return false when the source is not animated or can not be read,
+     * it is drawn as a still image then
+     */
+    boolean open(ContentResolver resolver, Uri uri, int surfaceWidth, int surfaceHeight, ScaleMode scaleMode) {
+        byte[] data = readSource(resolver, uri);
+        AnimatedImage image = data != null ? AnimatedImage.parse(data, data.length) : null;
+        if (image == null) return false;
+
+        float scale = Math.min(1f, scaleMode.requiredScale(image.getWidth(), image.getHeight(),
+                surfaceWidth, surfaceHeight));
+        int width = Math.max(1, (int) Math.ceil(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.ceil(image.getHeight() * scale));
+        try {
+            for (int i = 0; i < RING_SIZE; i++) {
+                mRing[i] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            }
+        } catch (OutOfMemoryError err) {
+            Log.e(TAG, "[open] out of memory: " + err.getMessage());
+            releaseBitmaps();
+            return false;
+        }
+        mImage = image;
+        mScale = (float) width / image.getWidth();
+        mSampleSize = BitmapDecoder.calculateSampleSize(mScale);
+        int maxEncoded = 0;
+        for (int i = 0; i < image.getFrameCount(); i++) {
+            maxEncoded = Math.max(maxEncoded, image.getEncodedSize(i));
+        }
+        mEncoded = new byte[maxEncoded];
+        synchronized (mLock) {
+            mHead = 0;
+            mCount = 0;
+            isShowing = false;
+            isFinished = false;
+            isClosed = false;
+        }
+        mDecodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                decodeLoop();
+            }
+        }, TAG);
+        mDecodeThread.start();
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[open] " + image.getWidth() + "x" + image.getHeight() + ", " + image.getFrameCount()
+                    + " frames, ring " + width + "x" + height);
+        }
+        return true;
+    }
+
+    /**
+     * @return true while an animation is open
+     */
+    boolean isOpen() {
+        return mImage != null;
+    }
+
+    /**
+     * frame to draw now, the next composed frame replaces the one on screen
+     * once its delay has passed, never waits for the decode thread
+     * @param nowMillis uptime
+     * @param animate false to keep the frame on screen
+     * @return null until the first frame is composed
+     */
+    Bitmap obtainFrame(long nowMillis, boolean animate) {
+        synchronized (mLock) {
+            if (isClosed) return null;
+            if (!isShowing) {
+                if (mCount == 0) return null;
+                isShowing = true;
+                mDueAt = nowMillis + delayOf(mHead);
+            } else if (animate && mCount > 1 && nowMillis >= mDueAt) {
+                mHead = (mHead + 1) % RING_SIZE;
+                mCount--;
+                long delay = delayOf(mHead);
+                // keep the cadence, start over after a long pause
+                mDueAt = nowMillis - mDueAt > delay ? nowMillis + delay : mDueAt + delay;
+                mLock.notifyAll();
+            }
+            return mRing[mHead];
+        }
+    }
+
+    /**
+     * @param nowMillis uptime
+     * @return milliseconds until the next frame should be drawn, -1 when the animation ended
+     */
+    long getNextFrameDelay(long nowMillis) {
+        synchronized (mLock) {
+            if (isClosed || (isFinished && mCount <= 1 && isShowing)) return -1;
+            if (!isShowing || mCount <= 1) return RETRY_DELAY_MS;
+            return Math.max(0, mDueAt - nowMillis);
+        }
+    }
+
+    /**
+     * @return bytes held by the ring, render thread only
+     */
+    long getByteCount() {
+        long bytes = 0;
+        for (int i = 0; i < RING_SIZE; i++) {
+            if (mRing[i] != null) bytes += mRing[i].getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * stop the decode thread and release the ring, render thread only
+     */
+    void close() {
+        Thread decodeThread = mDecodeThread;
+        synchronized (mLock) {
+            isClosed = true;
+            mLock.notifyAll();
+        }
+        if (decodeThread != null) {
+            try {
+                decodeThread.join(QUIT_TIMEOUT_MS);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+            mDecodeThread = null;
+        }
+        // a decode still running after the timeout keeps its bitmaps, it stops at the next frame
+        if (decodeThread == null || !decodeThread.isAlive()) releaseBitmaps();
+        mImage = null;
+    }
+
+    private long delayOf(int slot) {
+        return mImage.getFrame(mRingFrame[slot]).delayMs;
+    }
+
+    /**
+     * compose every frame in order into the next free slot
+     */
+    private void decodeLoop() {
+        AnimatedImage image = mImage;
+        int frameIndex = 0;
+        int loops = 0;
+        while (true) {
+            int slot;
+            synchronized (mLock) {
+                while (!isClosed && mCount >= RING_SIZE) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException exc) {
+                        return;
+                    }
+                }
+                if (isClosed) return;
+                slot = (mHead + mCount) % RING_SIZE;
+            }
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.DECODE_ANIMATION);
+            try {
+                compose(image, frameIndex, slot, (slot + RING_SIZE - 1) % RING_SIZE);
+            } catch (Exception exc) {
+                Log.e(TAG, "[decodeLoop] exception error: " + exc.getMessage());
+            } catch (OutOfMemoryError err) {
+                Log.e(TAG, "[decodeLoop] out of memory: " + err.getMessage());
+            } finally {
+                WallpaperTrace.end(traced);
+            }
+            synchronized (mLock) {
+                if (isClosed) return;
+                mRingFrame[slot] = frameIndex;
+                mCount++;
+            }
+            frameIndex++;
+            if (frameIndex == image.getFrameCount()) {
+                loops++;
+                if (image.getLoopCount() != 0 && loops >= image.getLoopCount()) {
+                    synchronized (mLock) {
+                        isFinished = true;
+                    }
+                    return;
+                }
+                frameIndex = 0;
+            }
+        }
+    }
+
+    /**
+     * the previous composition with its last frame disposed, then frame index on top
+     * @param image
+     * @param index
+     * @param slot
+     * @param previousSlot holds frame index - 1
+     */
+    private void compose(AnimatedImage image, int index, int slot, int previousSlot) {
+        Bitmap target = mRing[slot];
+        mCanvas.setBitmap(target);
+        if (index == 0) {
+            target.eraseColor(Color.TRANSPARENT);
+        } else {
+            mCanvas.drawBitmap(mRing[previousSlot], 0, 0, mSourcePaint);
+            AnimatedImage.Frame previous = image.getFrame(index - 1);
+            if (previous.disposal == AnimatedImage.DISPOSE_BACKGROUND) {
+                setFrameRect(previous);
+                mCanvas.drawRect(mFrameRect, mClearPaint);
+            } else if (previous.disposal == AnimatedImage.DISPOSE_PREVIOUS && mRestoreBitmap != null) {
+                mCanvas.drawBitmap(mRestoreBitmap, 0, 0, mSourcePaint);
+            }
+        }
+
+        AnimatedImage.Frame frame = image.getFrame(index);
+        if (frame.disposal == AnimatedImage.DISPOSE_PREVIOUS) {
+            // one extra canvas bitmap, only for files that restore
+            if (mRestoreBitmap == null) {
+                mRestoreBitmap = Bitmap.createBitmap(target.getWidth(), target.getHeight(), Bitmap.Config.ARGB_8888);
+                mRestoreCanvas.setBitmap(mRestoreBitmap);
+            }
+            mRestoreCanvas.drawBitmap(target, 0, 0, mSourcePaint);
+        }
+        Bitmap frameBitmap = decodeFrame(image, index);
+        if (frameBitmap != null) {
+            setFrameRect(frame);
+            mCanvas.drawBitmap(frameBitmap, null, mFrameRect, frame.isBlended ? mOverPaint : mSourcePaint);
+        }
+        mCanvas.setBitmap(null);
+    }
+
+    private void setFrameRect(AnimatedImage.Frame frame) {
+        mFrameRect.set(frame.x * mScale, frame.y * mScale,
+                (frame.x + frame.width) * mScale, (frame.y + frame.height) * mScale);
+    }
+
+    /**
+     * decode frame index into the reused frame bitmap
+     * @param image
+     * @param index
+     * @return
+     */
+    private Bitmap decodeFrame(AnimatedImage image, int index) {
+        int length = image.writeFrame(index, mEncoded);
+        mOptions.inSampleSize = mSampleSize;
+        mOptions.inMutable = true;
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (mFrameBitmap == null) {
+            // large enough for any frame, every later decode reuses it
+            mFrameBitmap = Bitmap.createBitmap(
+                    Math.max(1, (image.getWidth() + mSampleSize - 1) / mSampleSize),
+                    Math.max(1, (image.getHeight() + mSampleSize - 1) / mSampleSize),
+                    Bitmap.Config.ARGB_8888);
+        }
+        mOptions.inBitmap = mFrameBitmap;
+        try {
+            return BitmapFactory.decodeByteArray(mEncoded, 0, length, mOptions);
+        } catch (IllegalArgumentException exc) {
+            Log.e(TAG, "[decodeFrame] frame " + index + " can not reuse the bitmap: " + exc.getMessage());
+            mOptions.inBitmap = null;
+            Bitmap bitmap = BitmapFactory.decodeByteArray(mEncoded, 0, length, mOptions);
+            if (bitmap != null) {
+                mFrameBitmap.recycle();
+                mFrameBitmap = bitmap;
+            }
+            return bitmap;
+        }
+    }
+
+    private void releaseBitmaps() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            if (mRing[i] != null) {
+                mRing[i].recycle();
+                mRing[i] = null;
+            }
+        }
+        if (mFrameBitmap != null) {
+            mFrameBitmap.recycle();
+            mFrameBitmap = null;
+        }
+        if (mRestoreBitmap != null) {
+            mRestoreCanvas.setBitmap(null);
+            mRestoreBitmap.recycle();
+            mRestoreBitmap = null;
+        }
+        mEncoded = new byte[0];
+    }
+
+    /**
+     * @param resolver
+     * @param uri
+     * @return whole file, null when it is too large or can not be read
+     */
+    private static byte[] readSource(ContentResolver resolver, Uri uri) {
+        InputStream inputStream = null;
+        try {
+            inputStream = resolver.openInputStream(uri);
+            if (inputStream == null) return null;
+            byte[] data = new byte[64 * 1024];
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(data, length, data.length - length)) > 0) {
+                length += read;
+                if (length == data.length) {
+                    if (data.length >= MAX_ENCODED_BYTES) {
+                        Log.e(TAG, "[readSource] " + uri + " is too large to animate");
+                        return null;
+                    }
+                    byte[] larger = new byte[Math.min(MAX_ENCODED_BYTES, data.length * 2)];
+                    System.arraycopy(data, 0, larger, 0, length);
+                    data = larger;
+                }
+            }
+            if (length == data.length) return data;
+            byte[] exact = new byte[length];
+            System.arraycopy(data, 0, exact, 0, length);
+            return exact;
+        } catch (IOException exc) {
+            Log.e(TAG, "[readSource] exception error: " + exc.getMessage());
+            return null;
+        } catch (OutOfMemoryError err) {
+            Log.e(TAG, "[readSource] out of memory: " + err.getMessage());
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.livewallrcandrapp.videowallpaper;
+
+/**
+ * outcome of VideoWallpaper.apply() with the time spent in each step
+ */
+public final class ApplyResult {
+
+    private final String mUrl;
+    private final String mMimeType;
+    private final String mError;
+    private final boolean isSwappedInPlace;
+    private final long mDetectMillis;
+    private final long mPersistMillis;
+    private final long mTotalMillis;
+
+    ApplyResult(String url, String mimeType, String error, boolean swappedInPlace,
+                long detectMillis, long persistMillis, long totalMillis) {
+        mUrl = url;
+        mMimeType = mimeType;
+        mError = error;
+        isSwappedInPlace = swappedInPlace;
+        mDetectMillis = detectMillis;
+        mPersistMillis = persistMillis;
+        mTotalMillis = totalMillis;
+    }
+
+    /**
+     * @return url the wallpaper was set to, the first playlist item for a playlist
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return detected type of the source, null when it could not be detected
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public boolean isSuccessful() {
+        return mError == null;
+    }
+
+    /**
+     * @return why the wallpaper was not set, null on success
+     */
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * @return true when the running wallpaper switched to the new source,
+     * false when the live wallpaper picker was opened
+     */
+    public boolean isSwappedInPlace() {
+        return isSwappedInPlace;
+    }
+
+    /**
+     * @return time spent detecting the media types
+     */
+    public long getDetectMillis() {
+        return mDetectMillis;
+    }
+
+    /**
+     * @return time spent publishing the config, including the wallpaper manager calls
+     */
+    public long getPersistMillis() {
+        return mPersistMillis;
+    }
+
+    /**
+     * @return time from the apply() call to the result
+     */
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ApplyResult{" + mUrl + " " + mMimeType
+                + (mError != null ? " error=" + mError : (isSwappedInPlace ? " in place" : " picker"))
+                + " detect=" + mDetectMillis + "ms persist=" + mPersistMillis + "ms total=" + mTotalMillis + "ms}";
+    }
+}
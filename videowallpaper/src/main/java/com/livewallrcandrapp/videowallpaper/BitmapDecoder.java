@@ -0,0 +1,277 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * decode an image source straight to the size of the target surface
+ * bounds are read first, then the image is sub sampled and density
+ * scaled by the decoder so no full resolution bitmap is ever allocated
+ */
+final class BitmapDecoder {
+
+    private static final String TAG = "BitmapDecoder";
+
+    /**
+     * bytes per pixel of a full resolution ARGB_8888 decode
+     */
+    private static final int FULL_BYTES_PER_PIXEL = 4;
+
+    /**
+     * result of one decode
+     */
+    static final class Result {
+        /**
+         * decoded bitmap, null when decoding failed
+         */
+        Bitmap bitmap;
+
+        /**
+         * size of the source image in pixels
+         */
+        int sourceWidth;
+        int sourceHeight;
+
+        /**
+         * bytes the full resolution ARGB_8888 decode would have used
+         * minus the bytes held by the decoded bitmap
+         */
+        long bytesSaved;
+    }
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * decode the source so that it covers targetWidth x targetHeight
+     * @param resolver
+     * @param uri
+     * @param targetWidth
+     * @param targetHeight
+     * @return
+     */
+    static Result decode(ContentResolver resolver, Uri uri, int targetWidth, int targetHeight) {
+        return decode(resolver, uri, targetWidth, targetHeight, ScaleMode.CENTER_CROP);
+    }
+
+    /**
+     * decode the source with just enough pixels to be drawn on
+     * targetWidth x targetHeight in scaleMode
+     * @param resolver
+     * @param uri
+     * @param targetWidth
+     * @param targetHeight
+     * @param scaleMode
+     * @return
+     */
+    static Result decode(ContentResolver resolver, Uri uri, int targetWidth, int targetHeight,
+                         ScaleMode scaleMode) {
+        return decode(resolver, uri, targetWidth, targetHeight, scaleMode, null);
+    }
+
+    /**
+     * same as above, decoding into a pooled bitmap when one fits,
+     * the result is mutable so it can go back to the pool
+     * @param resolver
+     * @param uri
+     * @param targetWidth
+     * @param targetHeight
+     * @param scaleMode
+     * @param pool may be null
+     * @return
+     */
+    static Result decode(ContentResolver resolver, Uri uri, int targetWidth, int targetHeight,
+                         ScaleMode scaleMode, BitmapPool pool) {
+        Result result = new Result();
+        if (uri == null || targetWidth <= 0 || targetHeight <= 0) {
+            Log.e(TAG, "[decode] uri is null or target size is empty");
+            return result;
+        }
+        boolean traced = WallpaperTrace.begin(WallpaperTrace.DECODE);
+        try {
+            decodeInto(result, resolver, uri, targetWidth, targetHeight, scaleMode, pool);
+        } finally {
+            WallpaperTrace.end(traced);
+        }
+        return result;
+    }
+
+    private static void decodeInto(Result result, ContentResolver resolver, Uri uri, int targetWidth,
+                                   int targetHeight, ScaleMode scaleMode, BitmapPool pool) {
+        BitmapFactory.Options options = decodeBounds(resolver, uri);
+        if (options == null) return;
+        result.sourceWidth = options.outWidth;
+        result.sourceHeight = options.outHeight;
+
+        configureOptions(options, targetWidth, targetHeight, scaleMode);
+        options.inJustDecodeBounds = false;
+        Bitmap reused = null;
+        if (pool != null && BitmapPool.isSupported()) {
+            options.inMutable = true;
+            reused = pool.get(estimateByteCount(options));
+            options.inBitmap = reused;
+        }
+        long startedAt = System.nanoTime();
+        try {
+            result.bitmap = decodeStream(resolver, uri, options);
+        } catch (IllegalArgumentException exc) {
+            Log.e(TAG, "[decode] can not reuse the pooled bitmap: " + exc.getMessage());
+            options.inBitmap = null;
+            result.bitmap = decodeStream(resolver, uri, options);
+        }
+        if (reused != null && result.bitmap != reused) pool.put(reused);
+
+        if (result.bitmap != null) {
+            WallpaperMetrics metrics = WallpaperMetrics.get();
+            metrics.recordNanos(WallpaperMetrics.IMAGE_DECODE, System.nanoTime() - startedAt);
+            metrics.add(WallpaperMetrics.DECODED_BYTES, result.bitmap.getByteCount());
+            long fullBytes = (long) result.sourceWidth * result.sourceHeight * FULL_BYTES_PER_PIXEL;
+            result.bytesSaved = fullBytes - result.bitmap.getByteCount();
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[decode] " + result.sourceWidth + "x" + result.sourceHeight
+                        + " -> " + result.bitmap.getWidth() + "x" + result.bitmap.getHeight()
+                        + " " + result.bitmap.getConfig() + ", saved " + result.bytesSaved + " bytes"
+                        + (result.bitmap == reused ? ", reused pooled bitmap" : ""));
+            }
+        }
+    }
+
+    /**
+     * upper bound of the bytes a decode with configured options will return
+     * @param options
+     * @return
+     */
+    static long estimateByteCount(BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        double width = Math.ceil((double) options.outWidth / sampleSize);
+        double height = Math.ceil((double) options.outHeight / sampleSize);
+        if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+            double scale = (double) options.inTargetDensity / options.inDensity;
+            width = Math.ceil(width * scale);
+            height = Math.ceil(height * scale);
+        }
+        int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        return (long) width * (long) height * bytesPerPixel;
+    }
+
+    /**
+     * read only the size and mime type of the source
+     * @param resolver
+     * @param uri
+     * @return options holding outWidth, outHeight and outMimeType, null on failure
+     */
+    static BitmapFactory.Options decodeBounds(ContentResolver resolver, Uri uri) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(resolver, uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "[decodeBounds] can not read image bounds");
+            return null;
+        }
+        return options;
+    }
+
+    /**
+     * pixel config for a decode, jpeg has no alpha channel so half the memory is enough
+     * @param mimeType
+     * @return
+     */
+    static Bitmap.Config preferredConfig(String mimeType) {
+        return "image/jpeg".equals(mimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * set sample size, density scaling and pixel config for a decode
+     * whose bounds are already in options.outWidth / outHeight
+     * @param options
+     * @param targetWidth
+     * @param targetHeight
+     */
+    static void configureOptions(BitmapFactory.Options options, int targetWidth, int targetHeight) {
+        configureOptions(options, targetWidth, targetHeight, ScaleMode.CENTER_CROP);
+    }
+
+    /**
+     * same as above for the scale the source is drawn at in scaleMode
+     * @param options
+     * @param targetWidth
+     * @param targetHeight
+     * @param scaleMode
+     */
+    static void configureOptions(BitmapFactory.Options options, int targetWidth, int targetHeight,
+                                 ScaleMode scaleMode) {
+        int sourceWidth = options.outWidth;
+        int sourceHeight = options.outHeight;
+
+        // uniform scale that gives the source enough pixels for the target
+        float scale = scaleMode.requiredScale(sourceWidth, sourceHeight, targetWidth, targetHeight);
+
+        options.inSampleSize = 1;
+        options.inScaled = false;
+        if (scale < 1f) {
+            options.inSampleSize = calculateSampleSize(scale);
+            // finish the remaining down scale inside the decoder
+            int sampledWidth = sourceWidth / options.inSampleSize;
+            int scaledWidth = (int) Math.ceil(sourceWidth * scale);
+            if (scaledWidth < sampledWidth) {
+                options.inScaled = true;
+                options.inDensity = sampledWidth;
+                options.inTargetDensity = scaledWidth;
+            }
+        }
+
+        options.inPreferredConfig = preferredConfig(options.outMimeType);
+    }
+
+    /**
+     * largest power of two sample size that keeps the image
+     * at or above the requested scale
+     * @param scale
+     * @return
+     */
+    static int calculateSampleSize(float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * run one decode pass
+     * @param resolver
+     * @param uri
+     * @param options
+     * @return decoded bitmap, null for a bounds only pass or on failure
+     */
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri, BitmapFactory.Options options) {
+        InputStream inputStream = null;
+        try {
+            inputStream = resolver.openInputStream(uri);
+            if (inputStream == null) {
+                Log.e(TAG, "[decodeStream] can not open " + uri);
+                return null;
+            }
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException exc) {
+            Log.e(TAG, "[decodeStream] exception error: " + exc.getMessage());
+            return null;
+        } catch (OutOfMemoryError err) {
+            Log.e(TAG, "[decodeStream] out of memory: " + err.getMessage());
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * small pool of released image bitmaps keyed by their allocation size,
+ * the next decode of a similar size reuses one through inBitmap
+ * instead of allocating fresh memory
+ * only used from KitKat on, where a bitmap can take a decode of any
+ * size that fits its allocation, older releases recycle right away
+ * safe to call from any thread
+ */
+final class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    /**
+     * bitmaps kept at most, two screens are enough for a current and a next image
+     */
+    static final int MAX_COUNT = 2;
+
+    /**
+     * pooled bitmaps from the oldest to the newest
+     */
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<>();
+    private final int mMaxCount;
+
+    BitmapPool() {
+        this(MAX_COUNT);
+    }
+
+    BitmapPool(int maxCount) {
+        mMaxCount = maxCount;
+    }
+
+    /**
+     * @return true when decodes can reuse pooled bitmaps on this release
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * take the smallest pooled bitmap that holds byteCount bytes, one more than
+     * twice as large is left in the pool, it would keep memory a trim released
+     * @param byteCount bytes of the decode
+     * @return mutable bitmap for inBitmap, null when none fits
+     */
+    synchronized Bitmap get(long byteCount) {
+        int best = -1;
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            long size = allocationOf(mBitmaps.get(i));
+            if (size < byteCount || size > byteCount * 2) continue;
+            if (best < 0 || size < allocationOf(mBitmaps.get(best))) best = i;
+        }
+        return best < 0 ? null : mBitmaps.remove(best);
+    }
+
+    /**
+     * keep a bitmap nobody draws any more, the oldest one is recycled when the pool is full
+     * @param bitmap may be null
+     * @return bytes recycled, 0 when the bitmap was pooled
+     */
+    long put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return 0;
+        if (mMaxCount <= 0 || !isSupported() || !bitmap.isMutable()) return recycle(bitmap);
+        Bitmap evicted = null;
+        synchronized (this) {
+            mBitmaps.add(bitmap);
+            if (mBitmaps.size() > mMaxCount) evicted = mBitmaps.remove(0);
+        }
+        return recycle(evicted);
+    }
+
+    /**
+     * recycle the oldest bitmaps until at most count are left
+     * @param count
+     * @return bytes recycled
+     */
+    long trimToCount(int count) {
+        long bytes = 0;
+        while (true) {
+            Bitmap bitmap;
+            synchronized (this) {
+                if (mBitmaps.size() <= Math.max(0, count)) break;
+                bitmap = mBitmaps.remove(0);
+            }
+            bytes += recycle(bitmap);
+        }
+        if (bytes > 0 && WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[trimToCount] " + count + " left, released " + bytes + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes recycled
+     */
+    long clear() {
+        return trimToCount(0);
+    }
+
+    synchronized int size() {
+        return mBitmaps.size();
+    }
+
+    synchronized long getByteCount() {
+        long bytes = 0;
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            bytes += allocationOf(mBitmaps.get(i));
+        }
+        return bytes;
+    }
+
+    private static long recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return 0;
+        long bytes = allocationOf(bitmap);
+        bitmap.recycle();
+        return bytes;
+    }
+
+    private static long allocationOf(Bitmap bitmap) {
+        return isSupported() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+}
@@ -0,0 +1,172 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * process wide holder of the current WallpaperConfig
+ * SharedPreferences are read once per process, saves update the snapshot
+ * in memory right away and are written to disk asynchronously
+ * listeners are called on the main thread
+ */
+final class ConfigStore {
+
+    private static final String TAG = "ConfigStore";
+
+    /**
+     * running engines are told about every new snapshot
+     */
+    interface Listener {
+        void onConfigChanged(WallpaperConfig config);
+    }
+
+    private static final Object sLock = new Object();
+    private static volatile WallpaperConfig sConfig;
+    private static final ArrayList<Listener> sListeners = new ArrayList<>();
+    private static Handler sMainHandler;
+
+    private ConfigStore() {
+    }
+
+    /**
+     * current snapshot, loaded from SharedPreferences on first use
+     * @param context
+     * @return
+     */
+    static WallpaperConfig get(Context context) {
+        WallpaperConfig config = sConfig;
+        if (config != null) return config;
+        synchronized (sLock) {
+            if (sConfig == null) sConfig = load(context.getApplicationContext());
+            return sConfig;
+        }
+    }
+
+    /**
+     * publish a new snapshot, its version is set to the next one
+     * @param context
+     * @param config
+     * @return the saved snapshot
+     */
+    static WallpaperConfig save(Context context, WallpaperConfig config) {
+        final WallpaperConfig saved;
+        synchronized (sLock) {
+            WallpaperConfig current = sConfig != null ? sConfig : load(context.getApplicationContext());
+            saved = config.buildUpon().setVersion(current.getVersion() + 1).build();
+            sConfig = saved;
+        }
+        write(context.getApplicationContext(), saved);
+        notifyListeners(saved);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[save] " + saved);
+        return saved;
+    }
+
+    /**
+     * @param listener called on the main thread for every saved snapshot
+     */
+    static void addListener(Listener listener) {
+        synchronized (sListeners) {
+            if (!sListeners.contains(listener)) sListeners.add(listener);
+        }
+    }
+
+    static void removeListener(Listener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    private static void notifyListeners(final WallpaperConfig config) {
+        final Listener[] listeners;
+        synchronized (sListeners) {
+            listeners = sListeners.toArray(new Listener[sListeners.size()]);
+            if (sMainHandler == null) sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        if (listeners.length == 0) return;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    // skip listeners removed since the post
+                    synchronized (sListeners) {
+                        if (!sListeners.contains(listener)) continue;
+                    }
+                    listener.onConfigChanged(config);
+                }
+            }
+        });
+    }
+
+    /**
+     * read the stored settings, falls back to the mime type stored
+     * under the old "EMPTY" key
+     * @param context
+     * @return
+     */
+    static WallpaperConfig load(Context context) {
+        WallpaperConfig.Builder builder = new WallpaperConfig.Builder();
+        try {
+            SharedPreferences mSharedPreferences = context.getSharedPreferences(Utility.VIDEO_WALLPAPER_DATA, Context.MODE_PRIVATE);
+            String mimeType = mSharedPreferences.getString(Utility.MIME_TYPE, null);
+            if (mimeType == null) {
+                mimeType = mSharedPreferences.getString(Utility.LEGACY_MIME_TYPE, null);
+                if (Utility.EMPTY.equals(mimeType)) mimeType = null;
+            }
+            builder.setVersion(mSharedPreferences.getInt(Utility.CONFIG_VERSION, 0))
+                    .setVideoUrl(mSharedPreferences.getString(Utility.M_VIDEO_URL, null))
+                    .setMimeType(mimeType)
+                    .setParallax(mSharedPreferences.getBoolean(Utility.IS_PARALLAX, false))
+                    .setSeamlessLoop(mSharedPreferences.getBoolean(Utility.IS_SEAMLESS_LOOP, false))
+                    .setAmbientMode(mSharedPreferences.getBoolean(Utility.IS_AMBIENT_MODE, false))
+                    .setScaleMode(ScaleMode.fromName(mSharedPreferences.getString(Utility.SCALE_MODE, null)))
+                    .setFrameRate(mSharedPreferences.getInt(Utility.FRAME_RATE, Utility.DEFAULT_FRAME_RATE))
+                    .setIdleReleaseTimeout(mSharedPreferences.getLong(Utility.IDLE_RELEASE_TIMEOUT,
+                            Utility.DEFAULT_IDLE_RELEASE_TIMEOUT))
+                    .setQualityTier(QualityTier.fromName(mSharedPreferences.getString(Utility.QUALITY_TIER, null)))
+                    .setPlaylist(PlaylistItem.fromJson(mSharedPreferences.getString(Utility.PLAYLIST, null)));
+        } catch (Exception exc) {
+            Log.e(TAG, "[load] error in getSharedPreferences: " + exc.getMessage());
+        }
+        WallpaperConfig config = builder.build();
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[load] " + config);
+        return config;
+    }
+
+    /**
+     * write a snapshot with apply(), the caller never waits for the disk
+     * @param context
+     * @param config
+     */
+    private static void write(Context context, WallpaperConfig config) {
+        try {
+            SharedPreferences mSharedPreferences = context.getSharedPreferences(Utility.VIDEO_WALLPAPER_DATA, Context.MODE_PRIVATE);
+            SharedPreferences.Editor mEditor = mSharedPreferences.edit();
+            mEditor.putInt(Utility.CONFIG_VERSION, config.getVersion());
+            mEditor.putString(Utility.M_VIDEO_URL, config.getVideoUrl());
+            mEditor.putString(Utility.MIME_TYPE, config.getMimeType());
+            mEditor.remove(Utility.LEGACY_MIME_TYPE);
+            // the looping flag was never applied, drop what older versions saved
+            mEditor.remove(Utility.IS_LOOPING);
+            mEditor.putBoolean(Utility.IS_PARALLAX, config.isParallax());
+            mEditor.putBoolean(Utility.IS_SEAMLESS_LOOP, config.isSeamlessLoop());
+            mEditor.putBoolean(Utility.IS_AMBIENT_MODE, config.isAmbientMode());
+            mEditor.putString(Utility.SCALE_MODE, config.getScaleMode().name());
+            mEditor.putInt(Utility.FRAME_RATE, config.getFrameRate());
+            mEditor.putLong(Utility.IDLE_RELEASE_TIMEOUT, config.getIdleReleaseTimeout());
+            if (config.getQualityTier() != null) {
+                mEditor.putString(Utility.QUALITY_TIER, config.getQualityTier().name());
+            } else {
+                mEditor.remove(Utility.QUALITY_TIER);
+            }
+            mEditor.putString(Utility.PLAYLIST, PlaylistItem.toJson(config.getPlaylist()));
+            mEditor.apply();
+        } catch (Exception exc) {
+            Log.e(TAG, "[write] Error in save data: " + exc.getMessage());
+        }
+    }
+}
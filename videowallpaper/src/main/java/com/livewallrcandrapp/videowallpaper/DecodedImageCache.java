@@ -0,0 +1,150 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * service scoped cache of decoded images keyed by source, target size and scale mode
+ * preview, home and lock screen engines showing the same image share one bitmap,
+ * each acquire() takes a reference and the bitmap is recycled with the last release()
+ * lookups only lock the entry of their key, the first caller decodes
+ * and the others of the same key wait for its bitmap
+ * evicted bitmaps go to the pool, the next decode reuses their memory
+ * safe to call from any thread
+ */
+final class DecodedImageCache {
+
+    private static final String TAG = "DecodedImageCache";
+
+    private static final class Entry {
+        final String key;
+        Bitmap bitmap;
+        int references;
+
+        /**
+         * removed from the cache, a caller that found it before must look again
+         */
+        boolean isEvicted;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * owner entry of every shared bitmap, for release()
+     */
+    private final ConcurrentHashMap<Bitmap, Entry> mOwners = new ConcurrentHashMap<>();
+
+    private final BitmapPool mPool;
+
+    DecodedImageCache(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * get the bitmap of uri decoded for width x height in scaleMode, decoding it
+     * when no engine holds it yet, every returned bitmap needs one release()
+     * @param resolver
+     * @param uri
+     * @param width
+     * @param height
+     * @param scaleMode
+     * @return shared bitmap, null when decoding failed
+     */
+    Bitmap acquire(ContentResolver resolver, Uri uri, int width, int height, ScaleMode scaleMode) {
+        if (uri == null) return null;
+        String key = key(uri.toString(), width, height, scaleMode);
+        while (true) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                Entry created = new Entry(key);
+                entry = mEntries.putIfAbsent(key, created);
+                if (entry == null) entry = created;
+            }
+            synchronized (entry) {
+                if (entry.isEvicted) continue;
+                if (entry.bitmap == null) {
+                    BitmapDecoder.Result result = BitmapDecoder.decode(resolver, uri, width, height, scaleMode, mPool);
+                    if (result.bitmap == null) {
+                        entry.isEvicted = true;
+                        mEntries.remove(key, entry);
+                        return null;
+                    }
+                    entry.bitmap = result.bitmap;
+                    mOwners.put(entry.bitmap, entry);
+                    if (WallpaperTrace.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "[acquire] decoded " + key + ", bytes saved: " + result.bytesSaved);
+                    }
+                } else {
+                    if (WallpaperTrace.isLoggable(Log.INFO)) {
+                        Log.i(TAG, "[acquire] shared " + key + " with " + entry.references + " engines");
+                    }
+                }
+                entry.references++;
+                return entry.bitmap;
+            }
+        }
+    }
+
+    /**
+     * hand back a bitmap from acquire(), the last reference moves it to the pool,
+     * a bitmap that is not from this cache is recycled right away
+     * @param bitmap may be null
+     * @return bytes recycled, 0 while other engines hold the bitmap or when it was pooled
+     */
+    long release(Bitmap bitmap) {
+        if (bitmap == null) return 0;
+        Entry entry = mOwners.get(bitmap);
+        if (entry == null) {
+            long bytes = bitmap.getByteCount();
+            bitmap.recycle();
+            return bytes;
+        }
+        synchronized (entry) {
+            if (--entry.references > 0) return 0;
+            entry.isEvicted = true;
+            mEntries.remove(entry.key, entry);
+            mOwners.remove(bitmap);
+            entry.bitmap = null;
+        }
+        return mPool.put(bitmap);
+    }
+
+    /**
+     * @return number of decoded images held
+     */
+    int size() {
+        return mOwners.size();
+    }
+
+    /**
+     * @return bytes held by the decoded images
+     */
+    long getByteCount() {
+        long bytes = 0;
+        for (Bitmap bitmap : mOwners.keySet()) {
+            bytes += bitmap.getByteCount();
+        }
+        return bytes;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Decoded images: " + size() + ", " + getByteCount() + " bytes, pooled: "
+                + mPool.size() + ", " + mPool.getByteCount() + " bytes");
+        for (Entry entry : mEntries.values()) {
+            writer.println("  " + entry.key + " references=" + entry.references);
+        }
+    }
+
+    static String key(String uri, int width, int height, ScaleMode scaleMode) {
+        return uri + "|" + width + "x" + height + "|" + scaleMode;
+    }
+}
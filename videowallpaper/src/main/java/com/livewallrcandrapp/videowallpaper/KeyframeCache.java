@@ -0,0 +1,381 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * disk cache of the keyframes shown by the ambient mode, one file per video source
+ * evenly spaced sync frames are extracted once at screen resolution and kept
+ * as jpeg in a single file, the ambient slideshow decodes one of them
+ * every few seconds instead of running a video decoder
+ */
+final class KeyframeCache {
+
+    private static final String TAG = "KeyframeCache";
+
+    /**
+     * directory in the app cache dir
+     */
+    static final String CACHE_DIR = "video_wallpaper_keyframes";
+
+    static final String SUFFIX = ".keyframes";
+
+    /**
+     * frames taken from a video, fewer when sync frames repeat
+     */
+    static final int KEYFRAME_COUNT = 8;
+
+    /**
+     * sources kept on disk, the least recently used are removed
+     */
+    static final int MAX_SOURCES = 4;
+
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * file header: "KFR1" and the format version
+     */
+    static final int MAGIC = 0x4B465231;
+    static final int VERSION = 1;
+
+    /**
+     * bound of one stored frame, a larger length means the file is damaged
+     */
+    static final int MAX_FRAME_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * keyframes result, called on the keyframe thread
+     */
+    interface Listener {
+        /**
+         * @param key
+         * @param keyframes null when no frame could be extracted
+         */
+        void onKeyframesReady(String key, Keyframes keyframes);
+    }
+
+    /**
+     * the encoded keyframes of one source, decoded one at a time
+     */
+    static final class Keyframes {
+
+        private final String mKey;
+        private final List<byte[]> mFrames;
+
+        Keyframes(String key, List<byte[]> frames) {
+            mKey = key;
+            mFrames = frames;
+        }
+
+        String getKey() {
+            return mKey;
+        }
+
+        int size() {
+            return mFrames.size();
+        }
+
+        /**
+         * @return bytes of the encoded frames held
+         */
+        long getByteCount() {
+            long bytes = 0;
+            for (byte[] frame : mFrames) {
+                bytes += frame.length;
+            }
+            return bytes;
+        }
+
+        /**
+         * decode frame index, into reuse when its memory fits
+         * @param index
+         * @param reuse mutable bitmap of an earlier decode, may be null
+         * @return decoded frame, reuse itself when it was decoded into, null on failure
+         */
+        Bitmap decode(int index, Bitmap reuse) {
+            byte[] frame = mFrames.get(index);
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.DECODE);
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inMutable = true;
+                // keyframes are shown in low power only, half the memory of ARGB
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                if (reuse != null && !reuse.isRecycled() && reuse.isMutable()) options.inBitmap = reuse;
+                try {
+                    return BitmapFactory.decodeByteArray(frame, 0, frame.length, options);
+                } catch (IllegalArgumentException exc) {
+                    // the frame does not fit the bitmap, decode it into a new one
+                    options.inBitmap = null;
+                    return BitmapFactory.decodeByteArray(frame, 0, frame.length, options);
+                }
+            } catch (OutOfMemoryError err) {
+                Log.e(TAG, "[decode] out of memory: " + err.getMessage());
+                return null;
+            } finally {
+                WallpaperTrace.end(traced);
+            }
+        }
+    }
+
+    private static KeyframeCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param context
+     * @return the cache shared by all engines
+     */
+    static synchronized KeyframeCache get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new KeyframeCache(appContext, new File(appContext.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    KeyframeCache(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * read the keyframes of key in the background, they are extracted from source
+     * first when they are not cached yet
+     * @param key url the wallpaper was set with
+     * @param source uri to read the video from, a local copy when there is one
+     * @param width screen width
+     * @param height screen height
+     * @param scaleMode
+     * @param listener
+     */
+    void load(final String key, final Uri source, final int width, final int height,
+              final ScaleMode scaleMode, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<byte[]> frames = null;
+                try {
+                    File file = fileFor(key);
+                    if (file.isFile()) frames = read(file);
+                    if (frames == null) {
+                        frames = extract(source, width, height, scaleMode);
+                        if (frames != null) write(frames, file);
+                    } else {
+                        file.setLastModified(System.currentTimeMillis());
+                    }
+                } catch (Exception exc) {
+                    Log.e(TAG, "[load] exception error: " + exc.getMessage());
+                }
+                listener.onKeyframesReady(key, frames == null || frames.isEmpty()
+                        ? null : new Keyframes(key, frames));
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return location of the keyframes of key, a local file that changed gets a new one
+     */
+    File fileFor(String key) {
+        return new File(mDirectory, PosterCache.nameFor(key) + SUFFIX);
+    }
+
+    /**
+     * encode KEYFRAME_COUNT sync frames of source spread over its duration
+     * @param source
+     * @param width
+     * @param height
+     * @param scaleMode
+     * @return jpeg frames in playback order, null when none could be extracted
+     */
+    private List<byte[]> extract(Uri source, int width, int height, ScaleMode scaleMode) {
+        if (source == null) return null;
+        long startedAt = System.currentTimeMillis();
+        List<byte[]> frames = new ArrayList<>();
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            retriever.setDataSource(mContext, source);
+            long durationMs = PosterCache.parseInt(
+                    retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            byte[] previous = null;
+            for (long timeUs : sampleTimesUs(durationMs, KEYFRAME_COUNT)) {
+                Bitmap frame = PosterCache.grabFrame(retriever, timeUs, width, height, scaleMode);
+                if (frame == null) continue;
+                outputStream.reset();
+                boolean isEncoded = frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+                frame.recycle();
+                if (!isEncoded) continue;
+                byte[] encoded = outputStream.toByteArray();
+                // a sparse gop snaps neighbouring times to the same sync frame
+                if (previous != null && Arrays.equals(previous, encoded)) continue;
+                frames.add(encoded);
+                previous = encoded;
+            }
+        } catch (Exception exc) {
+            Log.e(TAG, "[extract] exception error: " + exc.getMessage());
+        } catch (OutOfMemoryError err) {
+            Log.e(TAG, "[extract] out of memory: " + err.getMessage());
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception exc) {
+                Log.e(TAG, "[extract] release error: " + exc.getMessage());
+            }
+        }
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[extract] " + frames.size() + " keyframes of " + source + " in "
+                    + (System.currentTimeMillis() - startedAt) + " ms");
+        }
+        return frames.isEmpty() ? null : frames;
+    }
+
+    /**
+     * @param durationMs video duration, 0 when unknown
+     * @param count
+     * @return the middle of count equal parts of the duration, only the start when it is unknown
+     */
+    static long[] sampleTimesUs(long durationMs, int count) {
+        if (durationMs <= 0 || count <= 1) return new long[]{0};
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = durationMs * 1000L * (2 * i + 1) / (2L * count);
+        }
+        return times;
+    }
+
+    /**
+     * @param file
+     * @return the stored frames, null when the file is damaged or from another version
+     */
+    private List<byte[]> read(File file) {
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(file));
+            List<byte[]> frames = readFrames(inputStream);
+            if (frames == null) file.delete();
+            return frames;
+        } catch (Exception exc) {
+            Log.e(TAG, "[read] exception error: " + exc.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * write to a temporary file first, keyframes under their final name are always whole
+     * @param frames
+     * @param file
+     * @return
+     */
+    private boolean write(List<byte[]> frames, File file) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return false;
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream outputStream = null;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(temporary));
+            writeFrames(outputStream, frames);
+            outputStream.close();
+            outputStream = null;
+            if (!temporary.renameTo(file)) return false;
+            trim();
+            return true;
+        } catch (Exception exc) {
+            Log.e(TAG, "[write] exception error: " + exc.getMessage());
+            return false;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (Exception ignored) {
+                }
+            }
+            temporary.delete();
+        }
+    }
+
+    /**
+     * keep the MAX_SOURCES most recently used keyframe files
+     */
+    void trim() {
+        PosterCache.trimDirectory(mDirectory, MAX_SOURCES);
+    }
+
+    /**
+     * header, frame count, then every frame with its length in front
+     * @param outputStream
+     * @param frames
+     * @throws IOException
+     */
+    static void writeFrames(OutputStream outputStream, List<byte[]> frames) throws IOException {
+        DataOutputStream data = new DataOutputStream(outputStream);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(frames.size());
+        for (byte[] frame : frames) {
+            data.writeInt(frame.length);
+            data.write(frame);
+        }
+        data.flush();
+    }
+
+    /**
+     * @param inputStream
+     * @return frames of writeFrames(), null for another format or version
+     * @throws IOException when the stream ends early or a length is out of bounds
+     */
+    static List<byte[]> readFrames(InputStream inputStream) throws IOException {
+        DataInputStream data = new DataInputStream(inputStream);
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) return null;
+        int count = data.readInt();
+        if (count < 0 || count > KEYFRAME_COUNT) throw new IOException("bad frame count " + count);
+        List<byte[]> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = data.readInt();
+            if (length <= 0 || length > MAX_FRAME_BYTES) throw new IOException("bad frame length " + length);
+            byte[] frame = new byte[length];
+            data.readFully(frame);
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
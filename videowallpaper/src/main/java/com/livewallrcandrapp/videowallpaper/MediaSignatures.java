@@ -0,0 +1,144 @@
+package com.livewallrcandrapp.videowallpaper;
+
+/**
+ * recognise a media type from the first bytes of a file
+ * plain java so it can be tested on the JVM
+ */
+final class MediaSignatures {
+
+    /**
+     * bytes read from the start of a file, enough for every signature below
+     * including the EBML doc type of WebM / Matroska
+     */
+    static final int HEADER_SIZE = 4096;
+
+    static final String VIDEO_MP4 = "video/mp4";
+    static final String VIDEO_3GPP = "video/3gpp";
+    static final String VIDEO_QUICKTIME = "video/quicktime";
+    static final String VIDEO_WEBM = "video/webm";
+    static final String VIDEO_MATROSKA = "video/x-matroska";
+    static final String IMAGE_JPEG = "image/jpeg";
+    static final String IMAGE_PNG = "image/png";
+    static final String IMAGE_WEBP = "image/webp";
+    static final String IMAGE_GIF = "image/gif";
+    static final String IMAGE_HEIF = "image/heif";
+    static final String IMAGE_HEIC = "image/heic";
+
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] EBML = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+    private static final byte[] EBML_DOC_TYPE = {0x42, (byte) 0x82};
+
+    private MediaSignatures() {
+    }
+
+    /**
+     * @param header first bytes of the file
+     * @param length number of valid bytes in header
+     * @return mime type, null when no signature matches
+     */
+    static String sniff(byte[] header, int length) {
+        if (header == null) return null;
+        length = Math.min(length, header.length);
+
+        if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8
+                && (header[2] & 0xFF) == 0xFF) {
+            return IMAGE_JPEG;
+        }
+        if (startsWith(header, length, 0, PNG)) return IMAGE_PNG;
+        if (startsWithAscii(header, length, 0, "GIF87a") || startsWithAscii(header, length, 0, "GIF89a")) {
+            return IMAGE_GIF;
+        }
+        if (startsWithAscii(header, length, 0, "RIFF") && startsWithAscii(header, length, 8, "WEBP")) {
+            return IMAGE_WEBP;
+        }
+        if (startsWithAscii(header, length, 4, "ftyp") && length >= 12) {
+            return sniffIsoBrand(header, length);
+        }
+        if (startsWith(header, length, 0, EBML)) return sniffEbmlDocType(header, length);
+        return null;
+    }
+
+    /**
+     * @param mimeType
+     * @return true for video/* types
+     */
+    static boolean isVideo(String mimeType) {
+        return mimeType != null && mimeType.startsWith("video/");
+    }
+
+    /**
+     * ISO base media files, the major brand and the compatible brands
+     * tell mp4 / 3gp / quicktime video from heif images
+     */
+    private static String sniffIsoBrand(byte[] header, int length) {
+        int boxSize = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16)
+                | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        int end = Math.min(length, boxSize >= 16 ? boxSize : 16);
+
+        String heif = null;
+        for (int offset = 8; offset + 4 <= end; offset += 4) {
+            // skip the minor version that follows the major brand
+            if (offset == 12) continue;
+            String brand = ascii(header, offset, 4);
+            if (brand.startsWith("3gp") || brand.startsWith("3g2")) return VIDEO_3GPP;
+            if (brand.equals("qt  ")) return VIDEO_QUICKTIME;
+            if (brand.equals("heic") || brand.equals("heix") || brand.equals("heim") || brand.equals("heis")) {
+                heif = IMAGE_HEIC;
+            } else if (heif == null && (brand.equals("mif1") || brand.equals("msf1") || brand.equals("heif"))) {
+                heif = IMAGE_HEIF;
+            }
+            // the major brand decides when it is a known one
+            if (offset == 8 && heif != null) return heif;
+            if (offset == 8 && isMp4Brand(brand)) return VIDEO_MP4;
+        }
+        return heif != null ? heif : VIDEO_MP4;
+    }
+
+    private static boolean isMp4Brand(String brand) {
+        return brand.startsWith("iso") || brand.startsWith("mp4") || brand.startsWith("M4V")
+                || brand.equals("avc1") || brand.equals("dash") || brand.equals("MSNV");
+    }
+
+    /**
+     * EBML header of WebM and Matroska, the DocType element tells them apart
+     */
+    private static String sniffEbmlDocType(byte[] header, int length) {
+        for (int i = EBML.length; i + EBML_DOC_TYPE.length + 1 < length; i++) {
+            if (!startsWith(header, length, i, EBML_DOC_TYPE)) continue;
+            int sizeByte = header[i + 2] & 0xFF;
+            // one byte EBML size, 0x80 marks the length
+            int size = (sizeByte & 0x80) != 0 ? sizeByte & 0x7F : -1;
+            if (size > 0 && i + 3 + size <= length) {
+                String docType = ascii(header, i + 3, size);
+                if (docType.equals("webm")) return VIDEO_WEBM;
+                if (docType.equals("matroska")) return VIDEO_MATROSKA;
+            }
+            break;
+        }
+        return VIDEO_MATROSKA;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix) {
+        if (offset + prefix.length > length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWithAscii(byte[] data, int length, int offset, String prefix) {
+        if (offset + prefix.length() > length) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[offset + i] != (byte) prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String ascii(byte[] data, int offset, int count) {
+        char[] chars = new char[count];
+        for (int i = 0; i < count; i++) {
+            chars[i] = (char) (data[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,179 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * find the media type of a wallpaper source from its file header
+ * ContentResolver.getType and the file extension are only fallbacks,
+ * results are cached by uri and last modified time
+ */
+final class MediaTypeDetector {
+
+    private static final String TAG = "MediaTypeDetector";
+
+    /**
+     * most sources ever used by one process
+     */
+    static final int CACHE_SIZE = 32;
+
+    /**
+     * last modified time used when the source does not report one
+     */
+    static final long UNKNOWN_LAST_MODIFIED = -1;
+
+    private static final Map<String, String> sCache = new LinkedHashMap<String, String>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private MediaTypeDetector() {
+    }
+
+    /**
+     * @param context
+     * @param uri
+     * @return mime type of the source, null when it can not be detected
+     */
+    static String detect(Context context, Uri uri) {
+        if (uri == null) return null;
+        ContentResolver resolver = context.getContentResolver();
+        long lastModified = lastModified(resolver, uri);
+        String key = uri.toString();
+        String mimeType = lookup(key, lastModified);
+        if (mimeType != null) return mimeType;
+
+        mimeType = sniff(resolver, uri);
+        if (mimeType == null) {
+            try {
+                mimeType = resolver.getType(uri);
+            } catch (Exception exc) {
+                Log.e(TAG, "[detect] getType exception error: " + exc.getMessage());
+            }
+        }
+        if (mimeType == null) mimeType = fromExtension(uri);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[detect] " + uri + " -> " + mimeType);
+        if (mimeType != null) remember(key, lastModified, mimeType);
+        return mimeType;
+    }
+
+    /**
+     * @param uri
+     * @param lastModified
+     * @return cached mime type for this version of the source, null if not cached
+     */
+    static String lookup(String uri, long lastModified) {
+        synchronized (sCache) {
+            return sCache.get(cacheKey(uri, lastModified));
+        }
+    }
+
+    static void remember(String uri, long lastModified, String mimeType) {
+        synchronized (sCache) {
+            sCache.put(cacheKey(uri, lastModified), mimeType);
+        }
+    }
+
+    static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static String cacheKey(String uri, long lastModified) {
+        return lastModified + "|" + uri;
+    }
+
+    /**
+     * read the header through a file descriptor
+     * @param resolver
+     * @param uri
+     * @return
+     */
+    private static String sniff(ContentResolver resolver, Uri uri) {
+        String scheme = uri.getScheme();
+        if (scheme != null && (scheme.equals("http") || scheme.equals("https"))) return null;
+        ParcelFileDescriptor descriptor = null;
+        FileInputStream inputStream = null;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) return null;
+            inputStream = new FileInputStream(descriptor.getFileDescriptor());
+            byte[] header = new byte[MediaSignatures.HEADER_SIZE];
+            int length = 0;
+            int read;
+            while (length < header.length && (read = inputStream.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+            return MediaSignatures.sniff(header, length);
+        } catch (Exception exc) {
+            Log.e(TAG, "[sniff] exception error: " + exc.getMessage());
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @param resolver
+     * @param uri
+     * @return last modified time of file and document uris, UNKNOWN_LAST_MODIFIED otherwise
+     */
+    private static long lastModified(ContentResolver resolver, Uri uri) {
+        String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme) || scheme == null) {
+            String path = uri.getPath();
+            return path != null ? new File(path).lastModified() : UNKNOWN_LAST_MODIFIED;
+        }
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme)) return UNKNOWN_LAST_MODIFIED;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[]{DocumentsContract.Document.COLUMN_LAST_MODIFIED},
+                    null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (index >= 0 && !cursor.isNull(index)) return cursor.getLong(index);
+            }
+        } catch (Exception exc) {
+            // providers that are not document providers reject the column
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return UNKNOWN_LAST_MODIFIED;
+    }
+
+    private static String fromExtension(Uri uri) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
+        if (extension == null || extension.isEmpty()) return null;
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.US));
+    }
+
+    private static void closeQuietly(FileInputStream inputStream) {
+        if (inputStream == null) return;
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
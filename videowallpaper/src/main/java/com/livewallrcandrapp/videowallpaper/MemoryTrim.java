@@ -0,0 +1,126 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * one onTrimMemory() of the service, memory is shed in tiers and every
+ * tier includes the ones below it
+ * engines release part of their memory later on their render threads,
+ * the bytes released are reported once the last of those steps finished
+ */
+final class MemoryTrim {
+
+    private static final String TAG = "MemoryTrim";
+
+    static final int NONE = 0;
+
+    /**
+     * prefetched next items, crossfade images, standby decoders, parked players,
+     * the images of hidden engines and half of the bitmap pool
+     */
+    static final int SECONDARY = 1;
+
+    /**
+     * images on screen at half resolution, the bitmap pool is emptied
+     */
+    static final int DOWNSAMPLE = 2;
+
+    /**
+     * hidden engines release their codecs, the position checkpoint is kept
+     */
+    static final int PLAYER = 3;
+
+    static final String[] NAMES = {"none", "secondary", "downsample", "player"};
+
+    /**
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     * @return tier shed for level, NONE while memory is not low yet
+     * and when only the ui of the process was hidden
+     */
+    static int tierOf(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return PLAYER;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) return DOWNSAMPLE;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return SECONDARY;
+        }
+        return NONE;
+    }
+
+    private final int mTier;
+
+    /**
+     * trimmed after every step, the steps may have pooled what they released
+     */
+    private final BitmapPool mPool;
+
+    private final AtomicLong mReleasedBytes = new AtomicLong();
+
+    /**
+     * steps still running, the trim itself counts until finish()
+     */
+    private final AtomicInteger mPending = new AtomicInteger(1);
+
+    /**
+     * @param tier
+     * @param pool may be null
+     */
+    MemoryTrim(int tier, BitmapPool pool) {
+        mTier = tier;
+        mPool = pool;
+    }
+
+    int getTier() {
+        return mTier;
+    }
+
+    /**
+     * count memory released by a step
+     * @param bytes
+     */
+    void add(long bytes) {
+        if (bytes > 0) mReleasedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * a step that runs later, it calls finish() when done
+     */
+    void begin() {
+        mPending.incrementAndGet();
+    }
+
+    /**
+     * end of a step, the last one trims the pool and reports the bytes released
+     */
+    void finish() {
+        if (mPending.decrementAndGet() != 0) return;
+        if (mPool != null) add(mTier >= DOWNSAMPLE ? mPool.clear() : mPool.trimToCount(BitmapPool.MAX_COUNT / 2));
+        long bytes = mReleasedBytes.get();
+        WallpaperMetrics.get().add(WallpaperMetrics.TRIMMED_BYTES, bytes);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[finish] " + this);
+    }
+
+    boolean isFinished() {
+        return mPending.get() == 0;
+    }
+
+    /**
+     * @return bytes released so far, all of them once finished
+     */
+    long getReleasedBytes() {
+        return mReleasedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryTrim{" + NAMES[mTier] + (isFinished() ? " released " : " releasing, so far ")
+                + mReleasedBytes.get() + " bytes}";
+    }
+}
@@ -0,0 +1,190 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import java.util.Locale;
+
+/**
+ * copy of the wallpaper render and playback metrics at one moment
+ * timings are kept in power of two microsecond buckets,
+ * so percentiles are upper bounds of the bucket they fall in
+ */
+public final class MetricsSnapshot {
+
+    /**
+     * engine created to the first frame on the screen
+     */
+    public static final String COLD_START = "coldStart";
+
+    /**
+     * prepareAsync() to onPrepared()
+     */
+    public static final String PREPARE = "prepare";
+
+    /**
+     * playback resumed to the first video frame
+     */
+    public static final String FIRST_FRAME = "firstFrame";
+
+    /**
+     * full image decode
+     */
+    public static final String IMAGE_DECODE = "imageDecode";
+
+    /**
+     * one tile of a large image
+     */
+    public static final String TILE_DECODE = "tileDecode";
+
+    /**
+     * wait for lockCanvas() on the render thread
+     */
+    public static final String LOCK_CANVAS = "lockCanvas";
+
+    /**
+     * drawing and posting one canvas frame
+     */
+    public static final String DRAW = "draw";
+
+    /**
+     * end of the clip to the first frame of the next loop
+     */
+    public static final String LOOP_BOUNDARY = "loopBoundary";
+
+    /**
+     * player stall or death to the first frame of the rebuilt player,
+     * the mean time to recovery of the playback
+     */
+    public static final String RECOVERY = "recovery";
+
+    public static final String DECODED_BYTES = "decodedBytes";
+    public static final String FRAMES = "frames";
+
+    /**
+     * vsyncs skipped while drawing continuously
+     */
+    public static final String DROPPED_FRAMES = "droppedFrames";
+
+    /**
+     * frames that were not posted within one frame interval of their vsync
+     */
+    public static final String LATE_FRAMES = "lateFrames";
+
+    public static final String PLAYER_ERRORS = "playerErrors";
+
+    /**
+     * memory released when the system asked the wallpaper to trim
+     */
+    public static final String TRIMMED_BYTES = "trimmedBytes";
+
+    /**
+     * media players created, standby decoders of the seamless loop included
+     */
+    public static final String PLAYERS = "players";
+
+    /**
+     * stalled or dead players the watchdog rebuilt or gave up on
+     */
+    public static final String STALLS = "stalls";
+
+    /**
+     * playback given up after repeated failures, the poster shown instead
+     */
+    public static final String POSTER_FALLBACKS = "posterFallbacks";
+
+    private final long mTakenAt;
+    private final long[][] mBuckets;
+    private final long[] mCounts;
+    private final long[] mSums;
+    private final long[] mMax;
+    private final long[] mCounters;
+
+    MetricsSnapshot(long takenAt, long[][] buckets, long[] counts, long[] sums, long[] max, long[] counters) {
+        mTakenAt = takenAt;
+        mBuckets = buckets;
+        mCounts = counts;
+        mSums = sums;
+        mMax = max;
+        mCounters = counters;
+    }
+
+    /**
+     * @return uptime in milliseconds when the snapshot was taken
+     */
+    public long getTakenAt() {
+        return mTakenAt;
+    }
+
+    /**
+     * @param timing one of the timing names
+     * @return number of samples
+     */
+    public long getCount(String timing) {
+        int index = WallpaperMetrics.histogramIndex(timing);
+        return index >= 0 ? mCounts[index] : 0;
+    }
+
+    /**
+     * @param timing
+     * @return mean of the samples in milliseconds, 0 without samples
+     */
+    public double getAverageMillis(String timing) {
+        int index = WallpaperMetrics.histogramIndex(timing);
+        if (index < 0 || mCounts[index] == 0) return 0;
+        return mSums[index] / (double) mCounts[index] / 1000.0;
+    }
+
+    /**
+     * @param timing
+     * @return largest sample in milliseconds
+     */
+    public double getMaxMillis(String timing) {
+        int index = WallpaperMetrics.histogramIndex(timing);
+        return index >= 0 ? mMax[index] / 1000.0 : 0;
+    }
+
+    /**
+     * @param timing
+     * @param percentile 1 to 100
+     * @return upper bound in milliseconds of the samples below percentile, 0 without samples
+     */
+    public double getPercentileMillis(String timing, int percentile) {
+        int index = WallpaperMetrics.histogramIndex(timing);
+        if (index < 0 || mCounts[index] == 0) return 0;
+        long rank = (mCounts[index] * Math.max(1, Math.min(100, percentile)) + 99) / 100;
+        long seen = 0;
+        long[] buckets = mBuckets[index];
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return Math.min(WallpaperMetrics.bucketUpperBound(bucket), mMax[index]) / 1000.0;
+            }
+        }
+        return mMax[index] / 1000.0;
+    }
+
+    /**
+     * @param counter one of the counter names
+     * @return
+     */
+    public long getCounter(String counter) {
+        int index = WallpaperMetrics.counterIndex(counter);
+        return index >= 0 ? mCounters[index] : 0;
+    }
+
+    /**
+     * @return one line per timing and counter, the dumpsys format
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (String timing : WallpaperMetrics.HISTOGRAM_NAMES) {
+            builder.append(String.format(Locale.US,
+                    "  %-13s n=%-6d avg=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms%n",
+                    timing, getCount(timing), getAverageMillis(timing), getPercentileMillis(timing, 50),
+                    getPercentileMillis(timing, 90), getPercentileMillis(timing, 99), getMaxMillis(timing)));
+        }
+        for (String counter : WallpaperMetrics.COUNTER_NAMES) {
+            builder.append(String.format(Locale.US, "  %-13s %d%n", counter, getCounter(counter)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,178 @@
+package com.livewallrcandrapp.videowallpaper;
+
+/**
+ * stall detection and recovery pacing of one engine's playback
+ * playback counts as stalled when the position did not move for STALL_TIMEOUT_MS
+ * while it should be playing, a player error (the media server died,
+ * the codec was reclaimed) fails it right away
+ * every failure is retried after a backoff that doubles up to MAX_BACKOFF_MS,
+ * after MAX_ATTEMPTS failures in a row the engine gives up and shows the poster
+ * times are uptime milliseconds passed in by the caller, main thread only
+ */
+final class PlaybackWatchdog {
+
+    /**
+     * period of the position check while playing
+     */
+    static final long CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * no new frame for this long while playing is a stall,
+     * the first frame after a start or a seek included
+     */
+    static final long STALL_TIMEOUT_MS = 4000;
+
+    /**
+     * delay before the first rebuild, doubled at every failure in a row
+     */
+    static final long BASE_BACKOFF_MS = 250;
+    static final long MAX_BACKOFF_MS = 8000;
+
+    /**
+     * failures in a row before playback gives up
+     */
+    static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * playback that ran this long after a recovery starts a new series of attempts
+     */
+    static final long STABLE_MS = 60000;
+
+    /**
+     * last position read, -1 before the first reading,
+     * uptime of the last frame seen, 0 while playback is not watched
+     */
+    private int mLastPosition = -1;
+    private long mLastFrameAt;
+
+    /**
+     * uptime of the first failure of the current series, 0 while healthy
+     */
+    private long mFailedAt;
+
+    /**
+     * uptime the last recovery showed its first frame, 0 when there was none
+     */
+    private long mRecoveredAt;
+
+    private int mAttempts;
+
+    /**
+     * @param attempt 1 for the first failure in a row
+     * @return delay before rebuilding the player
+     */
+    static long backoffMs(int attempt) {
+        if (attempt <= 1) return BASE_BACKOFF_MS;
+        return Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt - 1, 16));
+    }
+
+    /**
+     * playback was started or resumed, frames are expected from now on
+     * @param now
+     */
+    void onStarted(long now) {
+        mLastFrameAt = now;
+        mLastPosition = -1;
+    }
+
+    /**
+     * playback was paused or released on purpose, nothing is expected
+     */
+    void onStopped() {
+        mLastFrameAt = 0;
+        mLastPosition = -1;
+    }
+
+    boolean isWatching() {
+        return mLastFrameAt != 0;
+    }
+
+    /**
+     * a frame reached the surface
+     * @param now
+     * @return time since the first failure when this frame ends a recovery, -1 otherwise
+     */
+    long onFrame(long now) {
+        if (mLastFrameAt != 0) mLastFrameAt = now;
+        if (mRecoveredAt != 0 && now - mRecoveredAt >= STABLE_MS) {
+            mRecoveredAt = 0;
+            mAttempts = 0;
+        }
+        if (mFailedAt == 0) return -1;
+        long recoveryMs = now - mFailedAt;
+        mFailedAt = 0;
+        mRecoveredAt = now;
+        return recoveryMs;
+    }
+
+    /**
+     * periodic reading of the playback position
+     * @param position current position of the player
+     * @return true when the position moved since the last reading,
+     * the first reading after a start only records it
+     */
+    boolean onPosition(int position) {
+        if (mLastFrameAt == 0 || position == mLastPosition) return false;
+        boolean isMoved = mLastPosition >= 0;
+        mLastPosition = position;
+        return isMoved;
+    }
+
+    /**
+     * @param now
+     * @return true when playback is watched and showed no frame for STALL_TIMEOUT_MS
+     */
+    boolean isStalled(long now) {
+        return mLastFrameAt != 0 && now - mLastFrameAt >= STALL_TIMEOUT_MS;
+    }
+
+    /**
+     * playback stalled or its player failed, watching stops until the next start
+     * @param now
+     * @return delay before the next rebuild, -1 when playback should give up
+     */
+    long onFailure(long now) {
+        onStopped();
+        if (mFailedAt == 0) mFailedAt = now;
+        mAttempts++;
+        if (mAttempts > MAX_ATTEMPTS) return -1;
+        return backoffMs(mAttempts);
+    }
+
+    /**
+     * @return position of the last reading, -1 when there was none since the start
+     */
+    int getLastPosition() {
+        return mLastPosition;
+    }
+
+    /**
+     * playback was stopped before the rebuilt player showed a frame,
+     * the time until it is shown again is no recovery time, the attempts are kept
+     */
+    void cancelRecovery() {
+        onStopped();
+        mFailedAt = 0;
+    }
+
+    /**
+     * @return true while a failure waits for its first frame
+     */
+    boolean isRecovering() {
+        return mFailedAt != 0;
+    }
+
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * forget failures and timing, a new source or a new chance after giving up
+     */
+    void reset() {
+        onStopped();
+        mFailedAt = 0;
+        mRecoveredAt = 0;
+        mAttempts = 0;
+    }
+}
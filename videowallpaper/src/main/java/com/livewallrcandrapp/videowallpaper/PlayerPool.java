@@ -0,0 +1,216 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * service scoped pool of players keyed by uri
+ * a player handed back by an engine is parked for a short while so the
+ * next engine on the same source (preview -> live wallpaper) takes it over
+ * already prepared, at the same playback position
+ * all methods are called on the main thread
+ */
+final class PlayerPool {
+
+    private static final String TAG = "PlayerPool";
+
+    /**
+     * how long a parked player waits for a new owner before it is released
+     */
+    static final long PARK_TIMEOUT_MS = 5000;
+
+    /**
+     * engine side of a lease
+     */
+    interface Owner {
+        boolean isPreview();
+
+        /**
+         * the player is taken over by another engine,
+         * the owner must stop using it
+         * @param player
+         */
+        void onPlayerRevoked(WallpaperPlayer player);
+    }
+
+    private static final class Entry {
+        final WallpaperPlayer player;
+        Owner owner;
+        long parkedAt;
+
+        Entry(WallpaperPlayer player, Owner owner) {
+            this.player = player;
+            this.owner = owner;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler();
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    private final Runnable mExpireParked = new Runnable() {
+        @Override
+        public void run() {
+            expireParked();
+        }
+    };
+
+    PlayerPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * get a player for uri, reusing a parked one or the one of a preview engine
+     * @param owner
+     * @param uri
+     * @return player, preparing or prepared, null if the source can not be set
+     */
+    WallpaperPlayer acquire(Owner owner, Uri uri) {
+        Entry parked = null;
+        Entry preview = null;
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            // a player of a dead media server waits for its owner or its park timeout
+            if (!entry.player.getUri().equals(uri) || entry.player.isReleased()
+                    || entry.player.getState() == WallpaperPlayer.STATE_ERROR) {
+                continue;
+            }
+            if (entry.owner == null && parked == null) {
+                parked = entry;
+            } else if (entry.owner != null && entry.owner != owner && entry.owner.isPreview()
+                    && !owner.isPreview() && preview == null) {
+                preview = entry;
+            }
+        }
+
+        if (parked != null) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[acquire] taking parked player for " + uri);
+            parked.owner = owner;
+            return parked.player;
+        }
+        if (preview != null) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[acquire] taking player over from preview for " + uri);
+            Owner previous = preview.owner;
+            preview.owner = owner;
+            preview.player.setListener(null);
+            preview.player.pause();
+            preview.player.setSurface(null);
+            previous.onPlayerRevoked(preview.player);
+            return preview.player;
+        }
+
+        WallpaperPlayer player = new WallpaperPlayer(uri);
+        if (!player.prepareAsync(mContext)) {
+            player.release();
+            return null;
+        }
+        mEntries.add(new Entry(player, owner));
+        return player;
+    }
+
+    /**
+     * @return players leased or parked
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * hand a player back, a prepared player is parked for reuse
+     * @param owner
+     * @param player
+     */
+    void release(Owner owner, WallpaperPlayer player) {
+        Entry entry = find(player);
+        if (entry == null || entry.owner != owner) return;
+        player.setListener(null);
+        if (player.isPrepared()) {
+            player.pause();
+            player.setSurface(null);
+            entry.owner = null;
+            entry.parkedAt = SystemClock.uptimeMillis();
+            mHandler.removeCallbacks(mExpireParked);
+            mHandler.postDelayed(mExpireParked, PARK_TIMEOUT_MS);
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[release] parked player for " + player.getUri());
+        } else {
+            mEntries.remove(entry);
+            player.release();
+        }
+    }
+
+    /**
+     * release a player without parking it
+     * @param owner
+     * @param player
+     */
+    void discard(Owner owner, WallpaperPlayer player) {
+        Entry entry = find(player);
+        if (entry == null || entry.owner != owner) return;
+        mEntries.remove(entry);
+        player.release();
+    }
+
+    /**
+     * release every player, owned or parked
+     */
+    void releaseAll() {
+        mHandler.removeCallbacks(mExpireParked);
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.remove(i);
+            if (entry.owner != null) entry.owner.onPlayerRevoked(entry.player);
+            entry.player.release();
+        }
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[releaseAll] all players released");
+    }
+
+    /**
+     * release the parked players right away
+     * @return estimate of the decoder memory released
+     */
+    long releaseParked() {
+        long bytes = 0;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.owner != null) continue;
+            mEntries.remove(i);
+            bytes += entry.player.getDecoderBytes();
+            entry.player.release();
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[releaseParked] released parked player for " + entry.player.getUri());
+            }
+        }
+        return bytes;
+    }
+
+    private void expireParked() {
+        long now = SystemClock.uptimeMillis();
+        long nextExpiry = Long.MAX_VALUE;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            if (entry.owner != null) continue;
+            long expiry = entry.parkedAt + PARK_TIMEOUT_MS;
+            if (expiry <= now) {
+                mEntries.remove(i);
+                entry.player.release();
+                if (WallpaperTrace.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "[expireParked] released parked player for " + entry.player.getUri());
+                }
+            } else {
+                nextExpiry = Math.min(nextExpiry, expiry);
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) mHandler.postDelayed(mExpireParked, nextExpiry - now);
+    }
+
+    private Entry find(WallpaperPlayer player) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).player == player) return mEntries.get(i);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,173 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * one source of a wallpaper playlist
+ */
+public final class PlaylistItem {
+
+    private static final String TAG = "PlaylistItem";
+
+    /**
+     * how the item replaces the previous one
+     */
+    public enum Transition {
+        /**
+         * switch on the next frame
+         */
+        NONE,
+
+        /**
+         * fade over the previous image, images only,
+         * video items always switch without a fade
+         */
+        CROSSFADE
+    }
+
+    /**
+     * shown time of images added without a duration
+     */
+    static final long DEFAULT_IMAGE_DURATION_MS = 10000;
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_MIME_TYPE = "mimeType";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_TRANSITION = "transition";
+
+    private final String mUrl;
+    private final long mDurationMillis;
+    private final Transition mTransition;
+
+    /**
+     * detected by VideoWallpaper when the playlist is set
+     */
+    private final String mMimeType;
+
+    /**
+     * @param url video or image url
+     * @param durationMillis visible time of the item, 0 plays a video once
+     * @param transition
+     */
+    public PlaylistItem(String url, long durationMillis, Transition transition) {
+        this(url, durationMillis, transition, null);
+    }
+
+    private PlaylistItem(String url, long durationMillis, Transition transition, String mimeType) {
+        mUrl = url;
+        mDurationMillis = Math.max(0, durationMillis);
+        mTransition = transition != null ? transition : Transition.NONE;
+        mMimeType = mimeType;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    public Transition getTransition() {
+        return mTransition;
+    }
+
+    String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return visible time before the next item, 0 to move on when a video ends
+     */
+    long getShownMillis() {
+        if (mDurationMillis > 0 || MediaSignatures.isVideo(mMimeType)) return mDurationMillis;
+        return DEFAULT_IMAGE_DURATION_MS;
+    }
+
+    PlaylistItem withMimeType(String mimeType) {
+        return new PlaylistItem(mUrl, mDurationMillis, mTransition, mimeType);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof PlaylistItem)) return false;
+        PlaylistItem item = (PlaylistItem) other;
+        return mDurationMillis == item.mDurationMillis && mTransition == item.mTransition
+                && equals(mUrl, item.mUrl) && equals(mMimeType, item.mMimeType);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mUrl != null ? mUrl.hashCode() : 0;
+        hash = 31 * hash + (int) (mDurationMillis ^ (mDurationMillis >>> 32));
+        return 31 * hash + mTransition.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "PlaylistItem{" + mUrl + " " + mMimeType + " " + mDurationMillis + "ms " + mTransition + "}";
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @param items
+     * @return json array stored in the config, null for an empty playlist
+     */
+    static String toJson(List<PlaylistItem> items) {
+        if (items == null || items.isEmpty()) return null;
+        try {
+            JSONArray array = new JSONArray();
+            for (PlaylistItem item : items) {
+                JSONObject object = new JSONObject();
+                object.put(KEY_URL, item.mUrl);
+                if (item.mMimeType != null) object.put(KEY_MIME_TYPE, item.mMimeType);
+                object.put(KEY_DURATION, item.mDurationMillis);
+                object.put(KEY_TRANSITION, item.mTransition.name());
+                array.put(object);
+            }
+            return array.toString();
+        } catch (JSONException exc) {
+            Log.e(TAG, "[toJson] exception error: " + exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param json
+     * @return the stored playlist, empty when there is none or it can not be read
+     */
+    static List<PlaylistItem> fromJson(String json) {
+        if (json == null || json.isEmpty()) return Collections.emptyList();
+        try {
+            JSONArray array = new JSONArray(json);
+            ArrayList<PlaylistItem> items = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Transition transition;
+                try {
+                    transition = Transition.valueOf(object.optString(KEY_TRANSITION, Transition.NONE.name()));
+                } catch (IllegalArgumentException exc) {
+                    transition = Transition.NONE;
+                }
+                items.add(new PlaylistItem(object.getString(KEY_URL), object.optLong(KEY_DURATION, 0),
+                        transition, object.optString(KEY_MIME_TYPE, null)));
+            }
+            return Collections.unmodifiableList(items);
+        } catch (JSONException exc) {
+            Log.e(TAG, "[fromJson] exception error: " + exc.getMessage());
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * disk cache of one poster frame per video source
+ * the first frame is extracted once at screen resolution and stored as jpeg,
+ * later cold starts decode it in a few milliseconds and show it
+ * while the player is still preparing
+ */
+final class PosterCache {
+
+    private static final String TAG = "PosterCache";
+
+    /**
+     * directory in the app cache dir
+     */
+    static final String CACHE_DIR = "video_wallpaper_posters";
+
+    static final String SUFFIX = ".jpg";
+
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * posters kept on disk, the least recently used are removed
+     */
+    static final int MAX_POSTERS = 8;
+
+    /**
+     * poster result, called on the poster thread
+     */
+    interface Listener {
+        /**
+         * @param key
+         * @param poster null when no frame could be extracted
+         */
+        void onPosterReady(String key, Bitmap poster);
+    }
+
+    private static PosterCache sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param context
+     * @return the cache shared by all engines
+     */
+    static synchronized PosterCache get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new PosterCache(appContext, new File(appContext.getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    PosterCache(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * decode the poster of key in the background, it is extracted from source first
+     * when it is not cached yet
+     * @param key url the wallpaper was set with
+     * @param source uri to read the video from, a local copy when there is one
+     * @param width screen width
+     * @param height screen height
+     * @param scaleMode
+     * @param listener
+     */
+    void load(final String key, final Uri source, final int width, final int height,
+              final ScaleMode scaleMode, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap poster = null;
+                try {
+                    File file = fileFor(key);
+                    if (file.isFile() || extract(source, file, width, height, scaleMode)) {
+                        file.setLastModified(System.currentTimeMillis());
+                        poster = BitmapDecoder.decode(mContext.getContentResolver(), Uri.fromFile(file),
+                                width, height, scaleMode).bitmap;
+                    }
+                } catch (Exception exc) {
+                    Log.e(TAG, "[load] exception error: " + exc.getMessage());
+                }
+                listener.onPosterReady(key, poster);
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @return location of the poster of key, a local file that changed gets a new one
+     */
+    File fileFor(String key) {
+        return new File(mDirectory, nameFor(key) + SUFFIX);
+    }
+
+    /**
+     * @param key
+     * @return cache file name of key without suffix, a local file that changed gets a new one
+     */
+    static String nameFor(String key) {
+        long version = 0;
+        Uri uri = Uri.parse(key);
+        if (uri != null && "file".equals(uri.getScheme()) && uri.getPath() != null) {
+            version = new File(uri.getPath()).lastModified();
+        }
+        return RemoteMediaCache.hash(key + "#" + version);
+    }
+
+    /**
+     * write the first frame of source to file with just enough pixels for the screen
+     * @param source
+     * @param file
+     * @param width
+     * @param height
+     * @param scaleMode
+     * @return true when the poster was written
+     */
+    private boolean extract(Uri source, File file, int width, int height, ScaleMode scaleMode) {
+        if (source == null) return false;
+        long startedAt = System.currentTimeMillis();
+        Bitmap frame = null;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(mContext, source);
+            frame = grabFrame(retriever, 0, width, height, scaleMode);
+        } catch (Exception exc) {
+            Log.e(TAG, "[extract] exception error: " + exc.getMessage());
+        } catch (OutOfMemoryError err) {
+            Log.e(TAG, "[extract] out of memory: " + err.getMessage());
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception exc) {
+                Log.e(TAG, "[extract] release error: " + exc.getMessage());
+            }
+        }
+        if (frame == null) return false;
+        try {
+            return write(frame, file);
+        } finally {
+            frame.recycle();
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[extract] poster of " + source + " in "
+                        + (System.currentTimeMillis() - startedAt) + " ms");
+            }
+        }
+    }
+
+    /**
+     * the sync frame closest to timeUs with just enough pixels for the screen
+     * @param retriever set to the video
+     * @param timeUs
+     * @param width screen width
+     * @param height screen height
+     * @param scaleMode
+     * @return null when the frame could not be decoded
+     */
+    static Bitmap grabFrame(MediaMetadataRetriever retriever, long timeUs, int width, int height,
+                            ScaleMode scaleMode) {
+        Bitmap frame;
+        int videoWidth = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+        int videoHeight = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+        int rotation = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        if (rotation == 90 || rotation == 270) {
+            int swap = videoWidth;
+            videoWidth = videoHeight;
+            videoHeight = swap;
+        }
+        float scale = 1f;
+        if (videoWidth > 0 && videoHeight > 0) {
+            scale = Math.min(1f, scaleMode.requiredScale(videoWidth, videoHeight, width, height));
+        }
+        if (scale < 1f && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            frame = retriever.getScaledFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                    (int) Math.ceil(videoWidth * scale), (int) Math.ceil(videoHeight * scale));
+        } else {
+            frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame != null && scale < 1f) {
+                Bitmap scaled = Bitmap.createScaledBitmap(frame, (int) Math.ceil(frame.getWidth() * scale),
+                        (int) Math.ceil(frame.getHeight() * scale), true);
+                if (scaled != frame) frame.recycle();
+                frame = scaled;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * write to a temporary file first, a poster under its final name is always whole
+     * @param frame
+     * @param file
+     * @return
+     */
+    private boolean write(Bitmap frame, File file) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return false;
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temporary);
+            if (!frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream)) return false;
+            outputStream.close();
+            outputStream = null;
+            if (!temporary.renameTo(file)) return false;
+            trim();
+            return true;
+        } catch (Exception exc) {
+            Log.e(TAG, "[write] exception error: " + exc.getMessage());
+            return false;
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (Exception ignored) {
+                }
+            }
+            temporary.delete();
+        }
+    }
+
+    /**
+     * keep the MAX_POSTERS most recently used posters
+     */
+    void trim() {
+        trimDirectory(mDirectory, MAX_POSTERS);
+    }
+
+    /**
+     * keep the maxFiles most recently used files of directory
+     * @param directory
+     * @param maxFiles
+     */
+    static void trimDirectory(File directory, int maxFiles) {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= maxFiles) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = b.lastModified() - a.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = maxFiles; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    static int parseInt(String value) {
+        if (value == null) return 0;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException exc) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * draw bitmaps on a video surface before the player owns it
+ * a surface takes one producer at a time, lockCanvas() keeps the surface
+ * connected for good and the codec can not attach afterwards,
+ * an EGL window surface disconnects when it is destroyed
+ * a session keeps the surface from open() to close() and fades
+ * each new image over the previous one, its calls make the context
+ * current only for their own duration, open(), close() and the draws
+ * must not run at the same time
+ */
+final class PosterRenderer {
+
+    private static final String TAG = "PosterRenderer";
+
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n"
+                    + "attribute vec2 aTexCoord;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "  gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+                    + "  vTexCoord = aTexCoord;\n"
+                    + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+                    + "uniform sampler2D uTexture;\n"
+                    + "uniform float uAlpha;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "  gl_FragColor = vec4(texture2D(uTexture, vTexCoord).rgb, uAlpha);\n"
+                    + "}\n";
+
+    /**
+     * null until open(), reading an EGL10 constant loads the native EGL binding,
+     * an engine creates its renderer long before it draws with it
+     */
+    private EGL10 mEgl;
+    private EGLDisplay mDisplay;
+    private EGLContext mContext;
+    private EGLSurface mSurface;
+    private int mProgram;
+
+    /**
+     * the image set last and the one it fades in over, with the bitmap sizes
+     */
+    private final int[] mTextures = new int[2];
+    private final int[] mImageWidths = new int[2];
+    private final int[] mImageHeights = new int[2];
+    private int mFront = -1;
+
+    private final float[] mTransform = new float[4];
+    private final FloatBuffer mVertices = ByteBuffer.allocateDirect(16 * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    /**
+     * draw poster on the surface of holder in scaleMode and release the surface again
+     * @param holder
+     * @param poster
+     * @param scaleMode
+     * @return true when the poster was posted
+     */
+    static boolean draw(SurfaceHolder holder, Bitmap poster, ScaleMode scaleMode) {
+        PosterRenderer renderer = new PosterRenderer();
+        try {
+            return renderer.open(holder) && renderer.setImage(poster) && renderer.drawFrame(1f, scaleMode);
+        } finally {
+            renderer.close();
+        }
+    }
+
+    /**
+     * connect to the surface of holder
+     * @param holder
+     * @return false when EGL could not be set up, nothing is held then
+     */
+    boolean open(SurfaceHolder holder) {
+        if (isOpen()) return true;
+        mEgl = (EGL10) EGLContext.getEGL();
+        mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL10.EGL_NO_DISPLAY || !mEgl.eglInitialize(mDisplay, new int[2])) {
+            Log.e(TAG, "[open] no EGL display");
+            mDisplay = null;
+            return false;
+        }
+        try {
+            int[] configAttributes = {
+                    EGL10.EGL_RED_SIZE, 8,
+                    EGL10.EGL_GREEN_SIZE, 8,
+                    EGL10.EGL_BLUE_SIZE, 8,
+                    EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                    EGL10.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] configCount = new int[1];
+            if (!mEgl.eglChooseConfig(mDisplay, configAttributes, configs, 1, configCount) || configCount[0] == 0) {
+                Log.e(TAG, "[open] no EGL config");
+                close();
+                return false;
+            }
+            mContext = mEgl.eglCreateContext(mDisplay, configs[0], EGL10.EGL_NO_CONTEXT,
+                    new int[]{EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE});
+            mSurface = mEgl.eglCreateWindowSurface(mDisplay, configs[0], holder, null);
+            if (mContext == EGL10.EGL_NO_CONTEXT || mSurface == EGL10.EGL_NO_SURFACE || !makeCurrent()) {
+                Log.e(TAG, "[open] EGL setup failed: 0x" + Integer.toHexString(mEgl.eglGetError()));
+                close();
+                return false;
+            }
+            try {
+                mProgram = createProgram();
+                GLES20.glGenTextures(2, mTextures, 0);
+                for (int texture : mTextures) {
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+                }
+            } finally {
+                releaseCurrent();
+            }
+            return true;
+        } catch (Exception exc) {
+            Log.e(TAG, "[open] exception error: " + exc.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    boolean isOpen() {
+        return mSurface != null && mSurface != EGL10.EGL_NO_SURFACE;
+    }
+
+    /**
+     * upload image as the front texture, the previous front stays as the one it fades over
+     * @param image can be reused or recycled once this returns
+     * @return false when the image could not be uploaded
+     */
+    boolean setImage(Bitmap image) {
+        if (!isOpen() || image == null || image.isRecycled() || !makeCurrent()) return false;
+        try {
+            int front = mFront < 0 ? 0 : 1 - mFront;
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[front]);
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, image, 0);
+            mImageWidths[front] = image.getWidth();
+            mImageHeights[front] = image.getHeight();
+            mFront = front;
+            return true;
+        } catch (Exception exc) {
+            Log.e(TAG, "[setImage] exception error: " + exc.getMessage());
+            return false;
+        } finally {
+            releaseCurrent();
+        }
+    }
+
+    /**
+     * draw the previous image with the front image over it and post the frame
+     * @param alpha opacity of the front image, 1 once the fade is over
+     * @param scaleMode
+     * @return true when the frame was posted
+     */
+    boolean drawFrame(float alpha, ScaleMode scaleMode) {
+        if (!isOpen() || mFront < 0 || !makeCurrent()) return false;
+        try {
+            int[] size = new int[1];
+            mEgl.eglQuerySurface(mDisplay, mSurface, EGL10.EGL_WIDTH, size);
+            int width = size[0];
+            mEgl.eglQuerySurface(mDisplay, mSurface, EGL10.EGL_HEIGHT, size);
+            int height = size[0];
+            if (width <= 0 || height <= 0) return false;
+
+            GLES20.glViewport(0, 0, width, height);
+            GLES20.glClearColor(0f, 0f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            if (mProgram != 0) {
+                GLES20.glEnable(GLES20.GL_BLEND);
+                GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+                // a first image has nothing to fade over
+                if (alpha < 1f && mImageWidths[1 - mFront] > 0) drawTexture(1 - mFront, 1f, scaleMode, width, height);
+                drawTexture(mFront, Math.max(0f, alpha), scaleMode, width, height);
+                GLES20.glDisable(GLES20.GL_BLEND);
+            }
+            return mEgl.eglSwapBuffers(mDisplay, mSurface);
+        } catch (Exception exc) {
+            Log.e(TAG, "[drawFrame] exception error: " + exc.getMessage());
+            return false;
+        } finally {
+            releaseCurrent();
+        }
+    }
+
+    /**
+     * release the textures and the surface, the player can attach afterwards
+     */
+    void close() {
+        if (mEgl == null) return;
+        boolean hasContext = mContext != null && mContext != EGL10.EGL_NO_CONTEXT;
+        if (isOpen() && hasContext && makeCurrent()) {
+            GLES20.glDeleteTextures(2, mTextures, 0);
+            if (mProgram != 0) GLES20.glDeleteProgram(mProgram);
+        }
+        // destroying the window surface disconnects it for the player
+        releaseCurrent();
+        if (isOpen()) mEgl.eglDestroySurface(mDisplay, mSurface);
+        if (hasContext) mEgl.eglDestroyContext(mDisplay, mContext);
+        mSurface = null;
+        mContext = null;
+        mDisplay = null;
+        mProgram = 0;
+        mTextures[0] = 0;
+        mTextures[1] = 0;
+        mImageWidths[0] = 0;
+        mImageWidths[1] = 0;
+        mFront = -1;
+    }
+
+    private boolean makeCurrent() {
+        return mEgl.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext);
+    }
+
+    private void releaseCurrent() {
+        if (mDisplay == null) return;
+        mEgl.eglMakeCurrent(mDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+    }
+
+    private void drawTexture(int index, float alpha, ScaleMode scaleMode, int width, int height) {
+        int imageWidth = mImageWidths[index];
+        int imageHeight = mImageHeights[index];
+        // the same placement as the canvas draw, in clip space
+        scaleMode.computeTransform(imageWidth, imageHeight, width, height, mTransform);
+        float left = mTransform[2] / width * 2f - 1f;
+        float right = (mTransform[2] + imageWidth * mTransform[0]) / width * 2f - 1f;
+        float top = 1f - mTransform[3] / height * 2f;
+        float bottom = 1f - (mTransform[3] + imageHeight * mTransform[1]) / height * 2f;
+        mVertices.position(0);
+        mVertices.put(left).put(bottom).put(0f).put(1f)
+                .put(right).put(bottom).put(1f).put(1f)
+                .put(left).put(top).put(0f).put(0f)
+                .put(right).put(top).put(1f).put(0f);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[index]);
+        int position = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        int texCoord = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgram, "uTexture"), 0);
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(mProgram, "uAlpha"), alpha);
+        mVertices.position(0);
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        GLES20.glEnableVertexAttribArray(position);
+        mVertices.position(2);
+        GLES20.glVertexAttribPointer(texCoord, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        GLES20.glEnableVertexAttribArray(texCoord);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private static int createProgram() {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        if (vertexShader == 0 || fragmentShader == 0) {
+            if (vertexShader != 0) GLES20.glDeleteShader(vertexShader);
+            if (fragmentShader != 0) GLES20.glDeleteShader(fragmentShader);
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "[createProgram] link error: " + GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "[compileShader] error: " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            return 0;
+        }
+        return shader;
+    }
+}
@@ -0,0 +1,95 @@
+package com.livewallrcandrapp.videowallpaper;
+
+/**
+ * how much work the wallpaper does per second, picked from the power state
+ * unless the app sets one with VideoWallpaper.setQualityTier()
+ */
+public enum QualityTier {
+
+    /**
+     * the configured frame rate, crossfades and the seamless loop
+     */
+    FULL,
+
+    /**
+     * images redraw at half the configured frame rate, REDUCED_FRAME_RATE at most,
+     * video plays with a single decoder
+     */
+    REDUCED,
+
+    /**
+     * images are drawn without animation, video is not decoded,
+     * its poster frame is shown instead
+     */
+    POSTER_ONLY,
+
+    /**
+     * nothing is decoded or animated, the last frame stays on the screen
+     */
+    PAUSED;
+
+    /**
+     * canvas frame rate cap of REDUCED, below Utility.DEFAULT_FRAME_RATE
+     */
+    static final int REDUCED_FRAME_RATE = 10;
+
+    /**
+     * battery percentage under which the tier is lowered
+     */
+    static final int LOW_BATTERY_PERCENT = 15;
+    static final int CRITICAL_BATTERY_PERCENT = 5;
+
+    /**
+     * @param name stored name, may be null
+     * @return tier for name, null when it is unknown to follow the power state
+     */
+    static QualityTier fromName(String name) {
+        if (name != null) {
+            for (QualityTier tier : values()) {
+                if (tier.name().equals(name)) return tier;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * the automatic policy
+     * @param powerSaveMode battery saver is on
+     * @param batteryPercent 0 to 100, -1 when unknown
+     * @param charging
+     * @return
+     */
+    static QualityTier select(boolean powerSaveMode, int batteryPercent, boolean charging) {
+        if (charging) return FULL;
+        boolean isLow = batteryPercent >= 0 && batteryPercent <= LOW_BATTERY_PERCENT;
+        boolean isCritical = batteryPercent >= 0 && batteryPercent <= CRITICAL_BATTERY_PERCENT;
+        if (isCritical) return PAUSED;
+        if (powerSaveMode && isLow) return POSTER_ONLY;
+        if (powerSaveMode || isLow) return REDUCED;
+        return FULL;
+    }
+
+    /**
+     * @param configuredFps frame rate of the config
+     * @return canvas frame rate of this tier
+     */
+    int frameRate(int configuredFps) {
+        if (this == FULL) return configuredFps;
+        if (configuredFps <= 0) return REDUCED_FRAME_RATE;
+        return Math.min(Math.max(1, configuredFps / 2), REDUCED_FRAME_RATE);
+    }
+
+    /**
+     * @return true when video is decoded in this tier
+     */
+    boolean isPlaybackAllowed() {
+        return this == FULL || this == REDUCED;
+    }
+
+    /**
+     * @return true when crossfades are animated in this tier
+     */
+    boolean isAnimated() {
+        return this == FULL || this == REDUCED;
+    }
+}
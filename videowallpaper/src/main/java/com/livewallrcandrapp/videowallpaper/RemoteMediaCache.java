@@ -0,0 +1,402 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * size bounded disk cache of remote wallpaper sources
+ * a download is written to a .part file, resumed with a Range request
+ * after an interruption and renamed to its final name only once complete,
+ * so a file under its final name is always a whole copy
+ * the ETag or Last-Modified of the source is kept next to the .part file and
+ * sent as If-Range, a source that changed in between is downloaded again
+ * from the start, and nothing is committed without a known total length
+ * least recently used files are removed when the cache grows over its size
+ */
+final class RemoteMediaCache {
+
+    private static final String TAG = "RemoteMediaCache";
+
+    /**
+     * directory in the app cache dir
+     */
+    static final String CACHE_DIR = "video_wallpaper_cache";
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    static final String PART_SUFFIX = ".part";
+
+    /**
+     * validator of the source the .part file was downloaded from
+     */
+    static final String VALIDATOR_SUFFIX = ".validator";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * download result, called on the download thread
+     */
+    interface Listener {
+        void onCached(String url, File file);
+
+        void onFailed(String url, Exception exc);
+    }
+
+    private static RemoteMediaCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final ExecutorService mExecutor;
+
+    /**
+     * listeners of the downloads queued or running, by url
+     */
+    private final HashMap<String, ArrayList<Listener>> mPending = new HashMap<>();
+
+    /**
+     * @param context
+     * @return the cache shared by the client API and the service
+     */
+    static synchronized RemoteMediaCache get(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            sInstance = new RemoteMediaCache(directory, DEFAULT_MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    RemoteMediaCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param url
+     * @return true for http and https sources
+     */
+    static boolean isRemote(String url) {
+        if (url == null) return false;
+        String lower = url.toLowerCase(Locale.US);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    /**
+     * @param url
+     * @return the complete local copy of url, null if it is not cached yet
+     */
+    File getCachedFile(String url) {
+        File file = fileFor(url);
+        if (!file.isFile()) return null;
+        // the modified time orders the files for eviction
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * download url in the background unless it is cached already,
+     * requests for a url that is already downloading share that download
+     * @param url
+     * @param listener
+     */
+    void fetch(final String url, Listener listener) {
+        File cached = getCachedFile(url);
+        if (cached != null) {
+            if (listener != null) listener.onCached(url, cached);
+            return;
+        }
+        synchronized (mPending) {
+            ArrayList<Listener> listeners = mPending.get(url);
+            if (listeners != null) {
+                if (listener != null) listeners.add(listener);
+                return;
+            }
+            listeners = new ArrayList<>();
+            if (listener != null) listeners.add(listener);
+            mPending.put(url, listeners);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = null;
+                Exception error = null;
+                try {
+                    file = download(url);
+                } catch (Exception exc) {
+                    Log.e(TAG, "[fetch] " + url + " exception error: " + exc.getMessage());
+                    error = exc;
+                }
+                ArrayList<Listener> listeners;
+                synchronized (mPending) {
+                    listeners = mPending.remove(url);
+                }
+                if (listeners == null) return;
+                for (Listener listener : listeners) {
+                    if (file != null) {
+                        listener.onCached(url, file);
+                    } else {
+                        listener.onFailed(url, error);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * download url to the cache on the calling thread
+     * @param url
+     * @return the complete local copy
+     * @throws IOException when the download fails, the partial file is kept for a resume
+     */
+    File download(String url) throws IOException {
+        File target = fileFor(url);
+        if (target.isFile()) return target;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("can not create " + mDirectory);
+        }
+        File part = new File(mDirectory, target.getName() + PART_SUFFIX);
+        File validatorFile = new File(mDirectory, target.getName() + VALIDATOR_SUFFIX);
+        long offset = part.isFile() ? part.length() : 0;
+        String validator = offset > 0 ? readValidator(validatorFile) : null;
+        if (offset > 0 && validator == null) {
+            // a partial file that can not be matched to the source is not resumed
+            part.delete();
+            offset = 0;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                // the server answers with the whole file when the source changed
+                connection.setRequestProperty("If-Range", validator);
+            }
+            int code = connection.getResponseCode();
+            long total;
+            if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0
+                    && rangeStart(connection.getHeaderField("Content-Range")) == offset) {
+                total = rangeTotal(connection.getHeaderField("Content-Range"));
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[download] resuming " + url + " at " + offset);
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // the server sent the whole file, start over
+                offset = 0;
+                total = headerLong(connection.getHeaderField("Content-Length"));
+                writeValidator(validatorFile, validatorOf(connection));
+            } else if (code == 416 && offset > 0) {
+                // the partial file does not fit the source any more, start over
+                if (WallpaperTrace.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "[download] range not satisfiable, restarting " + url);
+                }
+                part.delete();
+                validatorFile.delete();
+                connection.disconnect();
+                return download(url);
+            } else {
+                throw new IOException("unexpected response " + code);
+            }
+
+            copy(connection.getInputStream(), part, offset > 0);
+            long received = part.length();
+            // a body that ends early looks complete without a length to compare with
+            if (total < 0) throw new IOException("unknown length, " + received + " bytes not committed");
+            if (received != total) throw new IOException("incomplete download " + received + "/" + total);
+            if (!part.renameTo(target)) throw new IOException("can not commit " + target);
+            validatorFile.delete();
+            target.setLastModified(System.currentTimeMillis());
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[download] cached " + url + " " + received + " bytes");
+            trim(target);
+            return target;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * remove least recently used files until the cache fits its size,
+     * keep is never removed even when it is larger than the cache
+     * @param keep
+     */
+    void trim(File keep) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxBytes) break;
+            if (file.equals(keep)) continue;
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[trim] evicted " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * @param url
+     * @return final location of url in the cache, whether it exists or not
+     */
+    File fileFor(String url) {
+        return new File(mDirectory, hash(url));
+    }
+
+    private static void copy(InputStream inputStream, File part, boolean append) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(part, append);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @param connection
+     * @return strong ETag of the response, its Last-Modified otherwise,
+     * null when it has neither, a weak ETag can not be used in If-Range
+     */
+    private static String validatorOf(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * @param file
+     * @return the saved validator, null when there is none
+     */
+    private static String readValidator(File file) {
+        if (!file.isFile()) return null;
+        try {
+            String validator = new String(readAll(file), "UTF-8").trim();
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException exc) {
+            Log.e(TAG, "[readValidator] exception error: " + exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param file
+     * @param validator null removes the saved one, the download is then never resumed
+     * @throws IOException
+     */
+    private static void writeValidator(File file, String validator) throws IOException {
+        if (validator == null) {
+            file.delete();
+            return;
+        }
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(validator.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            return offset == bytes.length ? bytes : Arrays.copyOf(bytes, offset);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @param contentRange value like "bytes 100-999/1000"
+     * @return first byte of the range, -1 when it can not be parsed
+     */
+    static long rangeStart(String contentRange) {
+        if (contentRange == null) return -1;
+        int start = contentRange.indexOf(' ');
+        int end = contentRange.indexOf('-');
+        if (start < 0 || end <= start) return -1;
+        return headerLong(contentRange.substring(start + 1, end));
+    }
+
+    /**
+     * @param contentRange value like "bytes 100-999/1000"
+     * @return complete length of the source, -1 when it is unknown ("*") or can not be parsed
+     */
+    static long rangeTotal(String contentRange) {
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) return -1;
+        return headerLong(contentRange.substring(slash + 1));
+    }
+
+    private static long headerLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException exc) {
+            return -1;
+        }
+    }
+
+    static String hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException exc) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
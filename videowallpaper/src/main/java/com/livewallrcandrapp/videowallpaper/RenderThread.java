@@ -0,0 +1,296 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * per engine render thread paced by Choreographer frame callbacks
+ * frames are drawn on demand, or continuously at the target frame rate,
+ * never faster than the display vsync
+ */
+final class RenderThread implements Choreographer.FrameCallback {
+
+    private static final String TAG = "RenderThread";
+
+    /**
+     * vsync jitter accepted when pacing to the target frame rate
+     */
+    private static final long FRAME_TOLERANCE_NANOS = 2000000L;
+
+    /**
+     * frame deadline when no target frame rate is set
+     */
+    private static final long VSYNC_NANOS = 16666667L;
+
+    /**
+     * longest wait for the thread to finish in quit(),
+     * a frame that takes longer keeps drawing after quit() returned
+     */
+    private static final long QUIT_TIMEOUT_MS = 500;
+
+    /**
+     * draw callback, called on the render thread
+     */
+    interface Renderer {
+        void onRenderFrame(long frameTimeNanos);
+    }
+
+    private final Renderer mRenderer;
+
+    /**
+     * own thread, null when drawing on mLooper
+     */
+    private final HandlerThread mThread;
+    private final Looper mLooper;
+
+    /**
+     * null before start() and after quit(), read once into a local by the callers
+     */
+    private volatile Handler mHandler;
+    private Choreographer mChoreographer;
+    private boolean isStarted;
+
+    /**
+     * render thread only state
+     */
+    private boolean mFrameRequested;
+    private boolean mCallbackPosted;
+    private long mLastFrameNanos;
+    private boolean mWasContinuous;
+    private final WallpaperMetrics mMetrics = WallpaperMetrics.get();
+
+    private volatile boolean mContinuous;
+    private volatile long mFrameIntervalNanos;
+    private final AtomicBoolean mSchedulePosted = new AtomicBoolean();
+
+    private final Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            mSchedulePosted.set(false);
+            mFrameRequested = true;
+            postFrameCallback();
+        }
+    };
+
+    private final Runnable mCancelFrame = new Runnable() {
+        @Override
+        public void run() {
+            mFrameRequested = false;
+            if (mCallbackPosted && mChoreographer != null) {
+                mChoreographer.removeFrameCallback(RenderThread.this);
+                mCallbackPosted = false;
+            }
+        }
+    };
+
+    /**
+     * @param name thread name
+     * @param renderer
+     * @param targetFps
+     */
+    RenderThread(String name, Renderer renderer, int targetFps) {
+        mRenderer = renderer;
+        mThread = new HandlerThread(name, Process.THREAD_PRIORITY_DISPLAY);
+        mLooper = null;
+        setTargetFps(targetFps);
+    }
+
+    /**
+     * draw on an existing looper instead of an own thread,
+     * the lifecycle tests run the engine on the main looper and its clock
+     * @param renderer
+     * @param targetFps
+     * @param looper
+     */
+    RenderThread(Renderer renderer, int targetFps, Looper looper) {
+        mRenderer = renderer;
+        mThread = null;
+        mLooper = looper;
+        setTargetFps(targetFps);
+    }
+
+    /**
+     * start the thread and attach its Choreographer, later calls do nothing
+     */
+    void start() {
+        if (isStarted) return;
+        isStarted = true;
+        if (mThread != null) mThread.start();
+        Handler handler = new Handler(mThread != null ? mThread.getLooper() : mLooper);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mChoreographer = Choreographer.getInstance();
+            }
+        });
+        mHandler = handler;
+    }
+
+    /**
+     * stop drawing and end the thread, waiting for it up to QUIT_TIMEOUT_MS
+     * cleanup runs on the render thread after the frame in progress and
+     * nothing is drawn after it, so what the frames draw may be released there
+     * even when the wait timed out
+     * @param cleanup
+     * @return false when the caller has to run cleanup itself: the thread
+     * was never started or the frames are drawn on the caller's looper
+     */
+    boolean quit(final Runnable cleanup) {
+        Handler handler = mHandler;
+        if (handler == null) return false;
+        mHandler = null;
+        handler.removeCallbacksAndMessages(null);
+        if (mThread == null) {
+            if (mCallbackPosted) mChoreographer.removeFrameCallback(this);
+            mCallbackPosted = false;
+            return false;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCancelFrame.run();
+                try {
+                    cleanup.run();
+                } finally {
+                    Looper.myLooper().quit();
+                }
+            }
+        });
+        try {
+            mThread.join(QUIT_TIMEOUT_MS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.e(TAG, "[quit] " + mThread.getName() + " still drawing after " + QUIT_TIMEOUT_MS + " ms");
+        } else if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[quit] " + mThread.getName() + " stopped");
+        }
+        return true;
+    }
+
+    /**
+     * @param targetFps frames per second, 0 or less to follow the display
+     */
+    void setTargetFps(int targetFps) {
+        mFrameIntervalNanos = targetFps > 0 ? 1000000000L / targetFps : 0;
+    }
+
+    /**
+     * draw every paced frame instead of only on request
+     * @param continuous
+     */
+    void setContinuous(boolean continuous) {
+        mContinuous = continuous;
+        if (continuous) requestRender();
+    }
+
+    /**
+     * draw one frame on the next vsync, requests are coalesced
+     */
+    void requestRender() {
+        Handler handler = mHandler;
+        if (handler != null && mSchedulePosted.compareAndSet(false, true)) {
+            handler.post(mScheduleFrame);
+        }
+    }
+
+    /**
+     * drop the pending frame and stop continuous drawing
+     */
+    void cancelRender() {
+        mContinuous = false;
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mScheduleFrame);
+            mSchedulePosted.set(false);
+            handler.post(mCancelFrame);
+        }
+    }
+
+    /**
+     * run work on the render thread
+     * @param runnable
+     * @return false when the thread is not running, runnable is dropped
+     */
+    boolean post(Runnable runnable) {
+        Handler handler = mHandler;
+        return handler != null && handler.post(runnable);
+    }
+
+    /**
+     * run work on the render thread after a delay
+     * @param runnable
+     * @param delayMillis
+     */
+    void postDelayed(Runnable runnable, long delayMillis) {
+        Handler handler = mHandler;
+        if (handler != null) handler.postDelayed(runnable, delayMillis);
+    }
+
+    /**
+     * remove work posted with post()
+     * @param runnable
+     */
+    void removeCallbacks(Runnable runnable) {
+        Handler handler = mHandler;
+        if (handler != null) handler.removeCallbacks(runnable);
+    }
+
+    /**
+     * @return true when called on the render thread
+     */
+    boolean isCurrentThread() {
+        return mThread != null ? Thread.currentThread() == mThread : Looper.myLooper() == mLooper;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mCallbackPosted = false;
+        if (!mFrameRequested && !mContinuous) return;
+        if (frameTimeNanos - mLastFrameNanos >= mFrameIntervalNanos - FRAME_TOLERANCE_NANOS) {
+            long previousNanos = mLastFrameNanos;
+            mLastFrameNanos = frameTimeNanos;
+            mFrameRequested = false;
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.RENDER_FRAME);
+            try {
+                mRenderer.onRenderFrame(frameTimeNanos);
+            } finally {
+                WallpaperTrace.end(traced);
+            }
+            recordFrame(previousNanos, frameTimeNanos);
+        }
+        if (mFrameRequested || mContinuous) postFrameCallback();
+    }
+
+    /**
+     * count the frame, late when it was posted after its deadline,
+     * paced frames skipped since the previous continuous frame are dropped
+     * @param previousNanos
+     * @param frameTimeNanos
+     */
+    private void recordFrame(long previousNanos, long frameTimeNanos) {
+        long interval = mFrameIntervalNanos > 0 ? mFrameIntervalNanos : VSYNC_NANOS;
+        mMetrics.increment(WallpaperMetrics.FRAMES);
+        if (System.nanoTime() - frameTimeNanos > interval) {
+            mMetrics.increment(WallpaperMetrics.LATE_FRAMES);
+        }
+        if (mWasContinuous && previousNanos != 0) {
+            long dropped = (frameTimeNanos - previousNanos + FRAME_TOLERANCE_NANOS) / interval - 1;
+            if (dropped > 0) mMetrics.add(WallpaperMetrics.DROPPED_FRAMES, dropped);
+        }
+        mWasContinuous = mContinuous;
+    }
+
+    private void postFrameCallback() {
+        if (mCallbackPosted || mChoreographer == null) return;
+        mCallbackPosted = true;
+        mChoreographer.postFrameCallback(this);
+    }
+}
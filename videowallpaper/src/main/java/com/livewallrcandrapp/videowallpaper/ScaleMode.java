@@ -0,0 +1,100 @@
+package com.livewallrcandrapp.videowallpaper;
+
+/**
+ * how the wallpaper source is placed on the screen
+ */
+public enum ScaleMode {
+
+    /**
+     * keep the aspect ratio and cover the whole screen, the overflow is cropped
+     */
+    CENTER_CROP,
+
+    /**
+     * keep the aspect ratio and show the whole source, the rest of the screen is black
+     */
+    FIT,
+
+    /**
+     * keep the aspect ratio and match the screen height, the width is centred
+     * and cropped or padded, the usual launcher wallpaper placement
+     */
+    FILL,
+
+    /**
+     * match both screen edges, the aspect ratio is not kept
+     */
+    STRETCH;
+
+    /**
+     * @param name stored name, may be null
+     * @return mode for name, CENTER_CROP when it is unknown
+     */
+    static ScaleMode fromName(String name) {
+        if (name != null) {
+            for (ScaleMode mode : values()) {
+                if (mode.name().equals(name)) return mode;
+            }
+        }
+        return CENTER_CROP;
+    }
+
+    /**
+     * transform that places a source of srcWidth x srcHeight
+     * on a target of dstWidth x dstHeight
+     * @param srcWidth
+     * @param srcHeight
+     * @param dstWidth
+     * @param dstHeight
+     * @param out receives scale x, scale y, translate x, translate y
+     */
+    void computeTransform(int srcWidth, int srcHeight, int dstWidth, int dstHeight, float[] out) {
+        float scaleX = (float) dstWidth / srcWidth;
+        float scaleY = (float) dstHeight / srcHeight;
+        switch (this) {
+            case FIT:
+                scaleX = scaleY = Math.min(scaleX, scaleY);
+                break;
+            case FILL:
+                scaleX = scaleY;
+                break;
+            case STRETCH:
+                break;
+            case CENTER_CROP:
+            default:
+                scaleX = scaleY = Math.max(scaleX, scaleY);
+                break;
+        }
+        out[0] = scaleX;
+        out[1] = scaleY;
+        out[2] = (dstWidth - srcWidth * scaleX) / 2f;
+        out[3] = (dstHeight - srcHeight * scaleY) / 2f;
+    }
+
+    /**
+     * @param srcWidth
+     * @param srcHeight
+     * @param dstWidth
+     * @param dstHeight
+     * @return the largest scale of the transform, a decode at this
+     * scale has enough pixels for the target
+     */
+    float requiredScale(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        float[] transform = new float[4];
+        computeTransform(srcWidth, srcHeight, dstWidth, dstHeight, transform);
+        return Math.max(transform[0], transform[1]);
+    }
+
+    /**
+     * @param srcWidth
+     * @param srcHeight
+     * @param dstWidth
+     * @param dstHeight
+     * @return true when the transformed source covers the whole target
+     */
+    boolean coversTarget(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        float[] transform = new float[4];
+        computeTransform(srcWidth, srcHeight, dstWidth, dstHeight, transform);
+        return transform[2] <= 0.5f && transform[3] <= 0.5f;
+    }
+}
@@ -8,25 +8,19 @@ import android.util.Log;
 public class ScreenOnOffReceiver extends BroadcastReceiver {
 
     private static final String TAG = "ScreenOnOffReceiver";
-    private boolean screenOFF;
 
+    /**
+     * hand screen and power events to the running engines in process
+     * @param context
+     * @param intent
+     */
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (intent == null || intent.getAction() == null) return;
         try {
-            if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
-                Log.i(TAG, "[Screen is OFF]");
-               screenOFF = true;
-            } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
-                Log.i(TAG, "Screen is ON");
-                screenOFF = false;
-            }
+            ScreenStateDispatcher.dispatch(context, intent);
         } catch (Exception exc) {
-            Log.i(TAG,"Exception in [ScreenOnOffReceiver]: "+exc.getMessage());
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG,"Exception in [ScreenOnOffReceiver]: "+exc.getMessage());
         }
-
-        Intent mIntent = new Intent(context, VideoWallpaperService.class);
-        mIntent.putExtra("screen_state", screenOFF);
-        Log.i(TAG, "calling wallpaper service from broadcast receiver");
-        context.startService(mIntent);
     }
 }
@@ -0,0 +1,189 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * in process delivery of screen, user present and power state events
+ * to every live engine, the receiver is registered once and shared,
+ * reference counted by the registered listeners
+ * all methods are called on the main thread
+ */
+final class ScreenStateDispatcher {
+
+    private static final String TAG = "ScreenStateDispatcher";
+
+    /**
+     * engine side of the dispatch
+     */
+    interface Listener {
+        void onScreenOff();
+
+        void onScreenOn();
+
+        void onUserPresent();
+
+        /**
+         * battery saver, battery level or charging moved the automatic tier
+         * @param tier
+         */
+        void onPowerTierChanged(QualityTier tier);
+    }
+
+    private static final ArrayList<Listener> sListeners = new ArrayList<>();
+    private static ScreenOnOffReceiver sReceiver;
+
+    /**
+     * uptime of the last screen on event
+     */
+    private static long sScreenOnAt;
+
+    /**
+     * last known power state and the tier picked for it
+     */
+    private static boolean sPowerSaveMode;
+    private static int sBatteryPercent = -1;
+    private static boolean sCharging;
+    private static QualityTier sPowerTier = QualityTier.FULL;
+
+    private ScreenStateDispatcher() {
+    }
+
+    /**
+     * add a listener, the first one registers the shared receiver
+     * @param context
+     * @param listener
+     */
+    static void register(Context context, Listener listener) {
+        if (sListeners.contains(listener)) return;
+        sListeners.add(listener);
+        if (sReceiver == null) {
+            IntentFilter mIntentFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            mIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+            mIntentFilter.addAction(Intent.ACTION_USER_PRESENT);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mIntentFilter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+            }
+            mIntentFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
+            sReceiver = new ScreenOnOffReceiver();
+            // the battery broadcast is sticky, its last value comes back right away
+            Intent battery = context.getApplicationContext().registerReceiver(sReceiver, mIntentFilter);
+            updateBattery(battery);
+            sPowerSaveMode = isPowerSaveMode(context);
+            sPowerTier = QualityTier.select(sPowerSaveMode, sBatteryPercent, sCharging);
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[register] receiver registered, power tier " + sPowerTier);
+            }
+        }
+    }
+
+    /**
+     * remove a listener, the last one unregisters the shared receiver
+     * @param context
+     * @param listener
+     */
+    static void unregister(Context context, Listener listener) {
+        if (!sListeners.remove(listener)) return;
+        if (sListeners.isEmpty() && sReceiver != null) {
+            try {
+                context.getApplicationContext().unregisterReceiver(sReceiver);
+            } catch (IllegalArgumentException exc) {
+                Log.e(TAG, "[unregister] exception error: " + exc.getMessage());
+            }
+            sReceiver = null;
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[unregister] receiver unregistered");
+        }
+    }
+
+    /**
+     * @return uptime of the last screen on event, 0 if none yet
+     */
+    static long getScreenOnAt() {
+        return sScreenOnAt;
+    }
+
+    /**
+     * @return tier of the automatic policy for the current power state
+     */
+    static QualityTier getPowerTier() {
+        return sPowerTier;
+    }
+
+    /**
+     * deliver a broadcast to every listener
+     * @param context
+     * @param intent
+     */
+    static void dispatch(Context context, Intent intent) {
+        boolean traced = WallpaperTrace.begin(WallpaperTrace.SCREEN_STATE);
+        try {
+            dispatchAction(context, intent);
+        } finally {
+            WallpaperTrace.end(traced);
+        }
+    }
+
+    private static void dispatchAction(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            for (int i = sListeners.size() - 1; i >= 0; i--) {
+                sListeners.get(i).onScreenOff();
+            }
+        } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+            sScreenOnAt = SystemClock.uptimeMillis();
+            for (int i = sListeners.size() - 1; i >= 0; i--) {
+                sListeners.get(i).onScreenOn();
+            }
+        } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+            for (int i = sListeners.size() - 1; i >= 0; i--) {
+                sListeners.get(i).onUserPresent();
+            }
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && PowerManager.ACTION_POWER_SAVE_MODE_CHANGED.equals(action)) {
+            sPowerSaveMode = isPowerSaveMode(context);
+            updatePowerTier();
+        } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            updateBattery(intent);
+            updatePowerTier();
+        }
+    }
+
+    /**
+     * the battery broadcast comes often, listeners only hear about tier changes
+     */
+    private static void updatePowerTier() {
+        QualityTier tier = QualityTier.select(sPowerSaveMode, sBatteryPercent, sCharging);
+        if (tier == sPowerTier) return;
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[updatePowerTier] " + sPowerTier + " -> " + tier + ", saver " + sPowerSaveMode
+                    + ", battery " + sBatteryPercent + "%, charging " + sCharging);
+        }
+        sPowerTier = tier;
+        for (int i = sListeners.size() - 1; i >= 0; i--) {
+            sListeners.get(i).onPowerTierChanged(tier);
+        }
+    }
+
+    private static void updateBattery(Intent battery) {
+        if (battery == null) return;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        sBatteryPercent = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        sCharging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    private static boolean isPowerSaveMode(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+}
@@ -0,0 +1,369 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * draw the visible part of a large image for parallax scrolling
+ * only the viewport plus a prefetch margin is decoded, in tiles,
+ * into a fixed number of slots that are evicted least recently used first,
+ * every slot owns one bitmap of the slot size that each new tile is decoded into
+ */
+final class TiledImageRenderer {
+
+    private static final String TAG = "TiledImageRenderer";
+
+    /**
+     * tile edge in decoded pixels
+     */
+    static final int TILE_SIZE = 256;
+
+    /**
+     * extra tiles decoded on each side along the scroll direction
+     */
+    static final int PREFETCH_TILES = 1;
+
+    /**
+     * one decoded tile slot, width and height are the decoded part of the bitmap,
+     * smaller than the bitmap for the tiles at the right and bottom edges
+     */
+    private static final class Tile {
+        int col = -1;
+        int row = -1;
+        Bitmap bitmap;
+        int width;
+        int height;
+        long lastUsed;
+
+        /**
+         * forget the tile, the bitmap stays for the next one
+         */
+        void evict() {
+            col = -1;
+            row = -1;
+            lastUsed = 0;
+        }
+
+        void clear() {
+            evict();
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+        }
+    }
+
+    private ParcelFileDescriptor mFileDescriptor;
+    private BitmapRegionDecoder mRegionDecoder;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+
+    private int mImageWidth;
+    private int mImageHeight;
+
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
+    /**
+     * source pixels to surface pixels
+     */
+    private float mScale;
+
+    /**
+     * edge of one tile in source pixels
+     */
+    private int mTileSourceSize;
+
+    /**
+     * visible source window, updated from the wallpaper offsets
+     */
+    private float mViewportLeft;
+    private float mViewportTop;
+    private float mViewportWidth;
+    private float mViewportHeight;
+
+    private Tile[] mTiles = new Tile[0];
+    private long mUseCounter;
+
+    /**
+     * size of the slot bitmaps, a whole tile capped to the sampled image
+     */
+    private int mSlotWidth;
+    private int mSlotHeight;
+
+    private final Rect mRegionRect = new Rect();
+    private final Rect mSrcRect = new Rect();
+    private final Rect mDstRect = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final WallpaperMetrics mMetrics = WallpaperMetrics.get();
+
+    /**
+     * open the region decoder for the source
+     * @param resolver
+     * @param uri
+     * @return false when the source can not be region decoded
+     */
+    boolean open(ContentResolver resolver, Uri uri) {
+        close();
+        BitmapFactory.Options bounds = BitmapDecoder.decodeBounds(resolver, uri);
+        if (bounds == null) return false;
+        try {
+            mFileDescriptor = resolver.openFileDescriptor(uri, "r");
+            if (mFileDescriptor == null) {
+                Log.e(TAG, "[open] can not open " + uri);
+                return false;
+            }
+            mRegionDecoder = BitmapRegionDecoder.newInstance(mFileDescriptor.getFileDescriptor(), false);
+        } catch (IOException exc) {
+            Log.e(TAG, "[open] exception error: " + exc.getMessage());
+            close();
+            return false;
+        }
+        mImageWidth = mRegionDecoder.getWidth();
+        mImageHeight = mRegionDecoder.getHeight();
+        mOptions.inPreferredConfig = BitmapDecoder.preferredConfig(bounds.outMimeType);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[open] " + mImageWidth + "x" + mImageHeight);
+        return true;
+    }
+
+    /**
+     * @return true while a region decoder is open
+     */
+    boolean isOpen() {
+        return mRegionDecoder != null;
+    }
+
+    /**
+     * lay out the tile grid for a new surface size,
+     * the slot count fixes the memory ceiling of the renderer
+     * @param width
+     * @param height
+     */
+    void setSurfaceSize(int width, int height) {
+        if (mRegionDecoder == null || width <= 0 || height <= 0) return;
+        if (width == mSurfaceWidth && height == mSurfaceHeight) return;
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+
+        // cover the surface, the overflowing axis is the scroll axis
+        mScale = Math.max((float) width / mImageWidth, (float) height / mImageHeight);
+        mOptions.inSampleSize = BitmapDecoder.calculateSampleSize(mScale);
+        mTileSourceSize = TILE_SIZE * mOptions.inSampleSize;
+        mSlotWidth = Math.max(1, Math.min(TILE_SIZE, mImageWidth / mOptions.inSampleSize));
+        mSlotHeight = Math.max(1, Math.min(TILE_SIZE, mImageHeight / mOptions.inSampleSize));
+        mViewportWidth = width / mScale;
+        mViewportHeight = height / mScale;
+
+        float tileOnScreen = mTileSourceSize * mScale;
+        int cols = (int) Math.ceil(width / tileOnScreen) + 1;
+        int rows = (int) Math.ceil(height / tileOnScreen) + 1;
+        if (mViewportWidth < mImageWidth) cols += 2 * PREFETCH_TILES;
+        if (mViewportHeight < mImageHeight) rows += 2 * PREFETCH_TILES;
+
+        clearTiles();
+        mTiles = new Tile[cols * rows];
+        for (int i = 0; i < mTiles.length; i++) {
+            mTiles[i] = new Tile();
+        }
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[setSurfaceSize] sample " + mOptions.inSampleSize + ", " + mTiles.length + " tile slots");
+        }
+    }
+
+    /**
+     * map the launcher offsets (0..1) to the visible source window
+     * @param xOffset
+     * @param yOffset
+     */
+    void setOffsets(float xOffset, float yOffset) {
+        mViewportLeft = clamp(xOffset) * Math.max(0f, mImageWidth - mViewportWidth);
+        mViewportTop = clamp(yOffset) * Math.max(0f, mImageHeight - mViewportHeight);
+    }
+
+    /**
+     * draw the visible tiles, missing ones are decoded on the spot
+     * @param canvas
+     */
+    void draw(Canvas canvas) {
+        if (mRegionDecoder == null || mTiles.length == 0) return;
+        int firstCol = (int) (mViewportLeft / mTileSourceSize);
+        int firstRow = (int) (mViewportTop / mTileSourceSize);
+        int lastCol = lastIndex(mViewportLeft + mViewportWidth, mImageWidth);
+        int lastRow = lastIndex(mViewportTop + mViewportHeight, mImageHeight);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Tile tile = obtainTile(col, row);
+                if (tile == null) continue;
+                int left = col * mTileSourceSize;
+                int top = row * mTileSourceSize;
+                int right = Math.min(left + mTileSourceSize, mImageWidth);
+                int bottom = Math.min(top + mTileSourceSize, mImageHeight);
+                mDstRect.set(Math.round((left - mViewportLeft) * mScale),
+                        Math.round((top - mViewportTop) * mScale),
+                        Math.round((right - mViewportLeft) * mScale),
+                        Math.round((bottom - mViewportTop) * mScale));
+                mSrcRect.set(0, 0, tile.width, tile.height);
+                canvas.drawBitmap(tile.bitmap, mSrcRect, mDstRect, mPaint);
+            }
+        }
+    }
+
+    /**
+     * decode one missing tile of the prefetch margin
+     * @return true if a tile was decoded and more may be missing
+     */
+    boolean prefetchNext() {
+        if (mRegionDecoder == null || mTiles.length == 0) return false;
+        int firstCol = (int) (mViewportLeft / mTileSourceSize);
+        int firstRow = (int) (mViewportTop / mTileSourceSize);
+        int lastCol = lastIndex(mViewportLeft + mViewportWidth, mImageWidth);
+        int lastRow = lastIndex(mViewportTop + mViewportHeight, mImageHeight);
+        if (mViewportWidth < mImageWidth) {
+            firstCol -= PREFETCH_TILES;
+            lastCol += PREFETCH_TILES;
+        }
+        if (mViewportHeight < mImageHeight) {
+            firstRow -= PREFETCH_TILES;
+            lastRow += PREFETCH_TILES;
+        }
+        int maxCol = lastIndex(mImageWidth, mImageWidth);
+        int maxRow = lastIndex(mImageHeight, mImageHeight);
+
+        for (int row = Math.max(0, firstRow); row <= Math.min(lastRow, maxRow); row++) {
+            for (int col = Math.max(0, firstCol); col <= Math.min(lastCol, maxCol); col++) {
+                if (findTile(col, row) == null) {
+                    return obtainTile(col, row) != null;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return bytes held by the decoded tiles
+     */
+    long getByteCount() {
+        long bytes = 0;
+        for (Tile tile : mTiles) {
+            if (tile.bitmap != null) bytes += tile.bitmap.getByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * release every tile and the decoder
+     */
+    void close() {
+        clearTiles();
+        mTiles = new Tile[0];
+        mSurfaceWidth = 0;
+        mSurfaceHeight = 0;
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+        if (mFileDescriptor != null) {
+            try {
+                mFileDescriptor.close();
+            } catch (IOException ignored) {
+            }
+            mFileDescriptor = null;
+        }
+    }
+
+    /**
+     * cached tile or a freshly decoded one in the least recently used slot,
+     * decoded into the bitmap of the slot, a region decoder draws into inBitmap
+     * from its top left corner without resizing it
+     * @param col
+     * @param row
+     * @return
+     */
+    private Tile obtainTile(int col, int row) {
+        Tile tile = findTile(col, row);
+        if (tile == null) {
+            tile = mTiles[0];
+            for (Tile candidate : mTiles) {
+                if (candidate.lastUsed < tile.lastUsed) tile = candidate;
+            }
+            tile.evict();
+            int left = col * mTileSourceSize;
+            int top = row * mTileSourceSize;
+            mRegionRect.set(left, top, Math.min(left + mTileSourceSize, mImageWidth),
+                    Math.min(top + mTileSourceSize, mImageHeight));
+            long startedAt = System.nanoTime();
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.DECODE_TILE);
+            Bitmap decoded = null;
+            try {
+                if (tile.bitmap == null) {
+                    tile.bitmap = Bitmap.createBitmap(mSlotWidth, mSlotHeight, mOptions.inPreferredConfig);
+                }
+                mOptions.inBitmap = tile.bitmap;
+                decoded = mRegionDecoder.decodeRegion(mRegionRect, mOptions);
+            } catch (Exception exc) {
+                Log.e(TAG, "[obtainTile] exception error: " + exc.getMessage());
+            } catch (OutOfMemoryError err) {
+                Log.e(TAG, "[obtainTile] out of memory: " + err.getMessage());
+            } finally {
+                mOptions.inBitmap = null;
+                WallpaperTrace.end(traced);
+            }
+            if (decoded == null) return null;
+            if (decoded != tile.bitmap) {
+                // the decoder did not take the slot bitmap, keep what it returned
+                tile.bitmap.recycle();
+                tile.bitmap = decoded;
+            }
+            mMetrics.recordNanos(WallpaperMetrics.TILE_DECODE, System.nanoTime() - startedAt);
+            // the decoder samples the region down rounding off, like the slot size
+            tile.width = Math.max(1, Math.min(decoded.getWidth(), mRegionRect.width() / mOptions.inSampleSize));
+            tile.height = Math.max(1, Math.min(decoded.getHeight(), mRegionRect.height() / mOptions.inSampleSize));
+            mMetrics.add(WallpaperMetrics.DECODED_BYTES, decoded.getByteCount());
+            tile.col = col;
+            tile.row = row;
+        }
+        tile.lastUsed = ++mUseCounter;
+        return tile;
+    }
+
+    private Tile findTile(int col, int row) {
+        for (Tile tile : mTiles) {
+            if (tile.col == col && tile.row == row && tile.bitmap != null) return tile;
+        }
+        return null;
+    }
+
+    private void clearTiles() {
+        for (Tile tile : mTiles) {
+            tile.clear();
+        }
+        mUseCounter = 0;
+    }
+
+    /**
+     * index of the tile holding the last pixel before edge
+     * @param edge
+     * @param size
+     * @return
+     */
+    private int lastIndex(float edge, int size) {
+        int last = (int) Math.ceil(Math.min(edge, size)) - 1;
+        return Math.max(0, last) / mTileSourceSize;
+    }
+
+    private static float clamp(float value) {
+        if (value < 0f) return 0f;
+        if (value > 1f) return 1f;
+        return value;
+    }
+}
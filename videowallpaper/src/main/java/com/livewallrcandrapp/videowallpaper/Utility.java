@@ -5,6 +5,18 @@ public class Utility {
     public static final String VIDEO_WALLPAPER_DATA = "VIDEO_WALLPAPER_DATA";
     public static final String M_VIDEO_URL = "mVideoUrl";
     public static final String IS_LOOPING = "isLooping";
-    public static final String MIME_TYPE = "EMPTY";
+    public static final String IS_PARALLAX = "isParallax";
+    public static final String IS_SEAMLESS_LOOP = "isSeamlessLoop";
+    public static final String IS_AMBIENT_MODE = "isAmbientMode";
+    public static final String SCALE_MODE = "scaleMode";
+    public static final String PLAYLIST = "playlist";
+    public static final String FRAME_RATE = "frameRate";
+    public static final int DEFAULT_FRAME_RATE = 20;
+    public static final String QUALITY_TIER = "qualityTier";
+    public static final String IDLE_RELEASE_TIMEOUT = "idleReleaseTimeout";
+    public static final long DEFAULT_IDLE_RELEASE_TIMEOUT = 30000;
+    public static final String MIME_TYPE = "mimeType";
+    public static final String LEGACY_MIME_TYPE = "EMPTY";
+    public static final String CONFIG_VERSION = "configVersion";
     public static final String EMPTY = "EMPTY";
 }
@@ -1,22 +1,67 @@
 package com.livewallrcandrapp.videowallpaper;
 
+import android.app.WallpaperInfo;
 import android.app.WallpaperManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class VideoWallpaper {
 
     private static final String TAG = "VideoWallpaper";
 
+    /**
+     * result of prefetch(), called on the main thread
+     */
+    public interface PrefetchListener {
+        void onPrefetchComplete(String url);
+
+        void onPrefetchFailed(String url, String error);
+    }
+
+    /**
+     * render and playback metrics of the wallpaper service, called on the main thread
+     */
+    public interface MetricsListener {
+        void onMetrics(MetricsSnapshot metrics);
+    }
+
+    /**
+     * result of apply(), called on the main thread
+     */
+    public interface ApplyListener {
+        void onApplied(ApplyResult result);
+
+        void onApplyFailed(ApplyResult result);
+    }
+
+    /**
+     * runs the apply() steps in order, off the caller's thread
+     */
+    private static ExecutorService sApplyExecutor;
+
     private String mVideoUrl;
-    private boolean isLooping = false;
+    private boolean isParallax = false;
+    private boolean isSeamlessLoop = false;
+    private boolean isAmbientMode = false;
+    private ScaleMode mScaleMode = ScaleMode.CENTER_CROP;
+    private List<PlaylistItem> mPlaylist = new ArrayList<>();
+    private int mFrameRate = Utility.DEFAULT_FRAME_RATE;
+    private long mIdleReleaseTimeout = Utility.DEFAULT_IDLE_RELEASE_TIMEOUT;
+    private QualityTier mQualityTier = null;
     private Context mContext;
-    private Uri mVideoUri;
-    private String mimeType = null;
 
     /**
      * set application context
@@ -31,95 +76,375 @@ public class VideoWallpaper {
      * @param url
      */
     public void videoUrl(String url) {
-        Log.i(TAG, "url: "+url);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "url: "+url);
         if (url.isEmpty()) {
             Log.e(TAG, "video url is empty enter valid url");
         }
         this.mVideoUrl = url;
     }
 
-    private void getMimeTypeFromUrl() {
-        if (this.mVideoUri != null) {
+    /**
+     * @param url
+     * @param uri parsed url
+     * @return mime type of the source, a prefetched source is detected from its header
+     */
+    private static String detectMimeType(Context context, String url, Uri uri) {
+        try {
+            Uri source = uri;
+            if (RemoteMediaCache.isRemote(url)) {
+                File file = RemoteMediaCache.get(context).getCachedFile(url);
+                if (file != null) source = Uri.fromFile(file);
+            }
+            return MediaTypeDetector.detect(context, source);
+        } catch (Exception exc) {
+            Log.e(TAG, "[detectMimeType] exception error: "+exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param context
+     * @param playlist
+     * @return playlist items with their detected mime types
+     */
+    private static List<PlaylistItem> detectPlaylistTypes(Context context, List<PlaylistItem> playlist) {
+        List<PlaylistItem> items = new ArrayList<>(playlist.size());
+        for (PlaylistItem item : playlist) {
+            String itemMimeType = null;
             try {
-                mimeType = mContext.getContentResolver().getType(mVideoUri);
-                Log.i(TAG, "mime type: "+mimeType);
+                itemMimeType = detectMimeType(context, item.getUrl(), Uri.parse(item.getUrl()));
             } catch (Exception exc) {
-                Log.e(TAG, "[getMimeTypeFromUrl] exception error: "+exc.getMessage());
+                Log.e(TAG, "[detectPlaylistTypes] Can not convert URL: "+exc.getMessage());
             }
-        } else {
-            Log.e(TAG, "[getMimeTypeFromUrl] url is null");
+            items.add(item.withMimeType(itemMimeType));
         }
-
+        return items;
     }
 
     /**
-     * save user relate data in shared_preferences
+     * @param context
+     * @return true when VideoWallpaperService is the current live wallpaper
      */
-    private void saveDataInSharedPreferences() {
+    private static boolean isServiceActive(Context context) {
         try {
-            SharedPreferences mSharedPreferences = mContext.getSharedPreferences(Utility.VIDEO_WALLPAPER_DATA, Context.MODE_PRIVATE);
-            SharedPreferences.Editor mEditor = mSharedPreferences.edit();
-            mEditor.putString(Utility.M_VIDEO_URL,mVideoUrl);
-            mEditor.putString(Utility.MIME_TYPE, mimeType);
-            mEditor.putBoolean(Utility.IS_LOOPING, isLooping);
-            mEditor.commit();
-            Log.i(TAG,"[saveDataInSharedPreferences] saved data");
+            WallpaperInfo info = WallpaperManager.getInstance(context).getWallpaperInfo();
+            if (info == null) return false;
+            ComponentName component = info.getComponent();
+            return component.getPackageName().equals(context.getPackageName())
+                    && component.getClassName().equals(VideoWallpaperService.class.getName());
         } catch (Exception exc) {
-            Log.e(TAG,"Error in save data: " +exc.getMessage());
+            Log.e(TAG, "[isServiceActive] exception error: "+exc.getMessage());
+            return false;
         }
     }
 
     /**
-     * set looping state
+     * has no effect: a video wallpaper always loops and only a playlist item
+     * shown for 0 ms plays once, the flag was never applied while playing
      * @param isLooping
+     * @deprecated a single video always loops, use a playlist to play videos once
      */
+    @Deprecated
     public void setIsLooping(boolean isLooping) {
-        Log.i(TAG, "isLooping:" +isLooping);
-       this.isLooping = isLooping;
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "isLooping:" +isLooping + " ignored");
+    }
+
+    /**
+     * scroll image wallpapers with the launcher pages,
+     * only the visible part of the image is decoded
+     * @param isParallax
+     */
+    public void setIsParallax(boolean isParallax) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "isParallax:" +isParallax);
+        this.isParallax = isParallax;
+    }
+
+    /**
+     * loop video without a hitch at the end of the clip, a second decoder
+     * is kept ready at the start of the clip, falls back to plain looping
+     * on low memory
+     * @param isSeamlessLoop
+     */
+    public void setIsSeamlessLoop(boolean isSeamlessLoop) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "isSeamlessLoop:" +isSeamlessLoop);
+        this.isSeamlessLoop = isSeamlessLoop;
+    }
+
+    /**
+     * in the REDUCED quality tier show a video as a slow slideshow of its keyframes
+     * with crossfades instead of decoding it, the keyframes are extracted once
+     * and cached on disk
+     * @param isAmbientMode
+     */
+    public void setIsAmbientMode(boolean isAmbientMode) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "isAmbientMode:" +isAmbientMode);
+        this.isAmbientMode = isAmbientMode;
+    }
+
+    /**
+     * set how the image or video is placed on the screen,
+     * video supports CENTER_CROP and STRETCH, FIT and FILL video is cropped,
+     * parallax images are always cropped to scroll
+     * @param scaleMode
+     */
+    public void setScaleMode(ScaleMode scaleMode) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "scaleMode:" +scaleMode);
+        this.mScaleMode = scaleMode != null ? scaleMode : ScaleMode.CENTER_CROP;
+    }
+
+    /**
+     * rotate through several videos and images without calling Set() again,
+     * each item is shown for its duration, the next one is prepared
+     * in the background while the current one is shown
+     * the first item replaces the video url, an empty list goes back to it
+     * @param items
+     */
+    public void setPlaylist(List<PlaylistItem> items) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "playlist:" +items);
+        this.mPlaylist = items != null ? new ArrayList<>(items) : new ArrayList<PlaylistItem>();
+    }
+
+    /**
+     * set the highest frame rate the wallpaper is drawn at
+     * @param frameRate frames per second, 0 to follow the display
+     */
+    public void setFrameRate(int frameRate) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "frameRate:" +frameRate);
+        this.mFrameRate = Math.max(0, frameRate);
+    }
+
+    /**
+     * set how long a hidden video wallpaper keeps its decoder
+     * before it is released, playback resumes from the same position
+     * @param timeoutMillis
+     */
+    public void setIdleReleaseTimeout(long timeoutMillis) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "idleReleaseTimeout:" +timeoutMillis);
+        this.mIdleReleaseTimeout = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * pin the wallpaper to one quality tier instead of the automatic policy,
+     * which lowers the tier in battery saver and on low battery
+     * and goes back to FULL while charging
+     * @param qualityTier null to follow the power state again
+     */
+    public void setQualityTier(QualityTier qualityTier) {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "qualityTier:" +qualityTier);
+        this.mQualityTier = qualityTier;
+    }
+
+    /**
+     * download a remote video url to the local cache before Set(),
+     * the wallpaper then starts from the local copy without streaming
+     * local urls complete right away
+     * @param listener may be null
+     */
+    public void prefetch(final PrefetchListener listener) {
+        final String url = mVideoUrl;
+        if (!RemoteMediaCache.isRemote(url)) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[prefetch] not a remote url: "+url);
+            if (listener != null) listener.onPrefetchComplete(url);
+            return;
+        }
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        RemoteMediaCache.get(mContext).fetch(url, new RemoteMediaCache.Listener() {
+            @Override
+            public void onCached(final String url, File file) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[prefetch] cached: "+url);
+                if (listener == null) return;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onPrefetchComplete(url);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(final String url, final Exception exc) {
+                Log.e(TAG, "[prefetch] exception error: "+exc.getMessage());
+                if (listener == null) return;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onPrefetchFailed(url, exc.getMessage());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * receive the wallpaper metrics every few seconds while they change,
+     * the service has to run in this process, call on the main thread
+     * @param listener null to stop
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        WallpaperMetrics.get().setListener(listener);
+    }
+
+    /**
+     * @return the wallpaper metrics recorded so far in this process
+     */
+    public MetricsSnapshot getMetrics() {
+        return WallpaperMetrics.get().snapshot();
+    }
+
+    /**
+     * write trace sections of the wallpaper work (engine creation, decode, scale,
+     * lockCanvas, draw, post, prepare, screen state) to systrace and Perfetto captures,
+     * off by default, the service has to run in this process
+     * @param enabled
+     */
+    public void setTracingEnabled(boolean enabled) {
+        WallpaperTrace.setEnabled(enabled);
+    }
+
+    /**
+     * lowest priority the wallpaper writes to logcat, Log.INFO by default
+     * @param priority android.util.Log priority, Log.ASSERT turns the log output off
+     */
+    public void setLogLevel(int priority) {
+        WallpaperTrace.setLogLevel(priority);
     }
 
     /**
-     * convert URL to Uri object
-     * @return
+     * @param url
+     * @return parsed url, null when it is empty or can not be parsed
      */
-    private Uri mVideoUrlToUri() {
-        Uri uri = null;
+    private static Uri toUri(String url) {
+        if (url == null || url.isEmpty()) return null;
         try {
-            uri = Uri.parse(mVideoUrl);
+            return Uri.parse(url);
         } catch (Exception exc) {
             Log.e(TAG, "Can not convert URL: "+exc.getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService applyExecutor() {
+        if (sApplyExecutor == null) {
+            sApplyExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
-        return uri;
+        return sApplyExecutor;
     }
 
     /**
-     * set wallpaper using wallpaper services
+     * set the wallpaper without blocking the calling thread, the url is
+     * validated, its media type detected and the config published in the
+     * background, the running wallpaper switches to it in place, otherwise
+     * the live wallpaper picker is opened
+     * the settings are taken when this is called, later changes need another apply()
+     * @param listener may be null
      */
-    public void Set() {
-        mVideoUri = mVideoUrlToUri();
-        if (mVideoUri != null) {
-            getMimeTypeFromUrl();
+    public void apply(final ApplyListener listener) {
+        final long startedAt = SystemClock.uptimeMillis();
+        // the builder keeps its own url, clearing the playlist goes back to it
+        final String url = mPlaylist.isEmpty() ? mVideoUrl : mPlaylist.get(0).getUrl();
+        final Context context = mContext != null ? mContext.getApplicationContext() : null;
+        final List<PlaylistItem> playlist = new ArrayList<>(mPlaylist);
+        final WallpaperConfig.Builder builder = new WallpaperConfig.Builder()
+                .setVideoUrl(url)
+                .setParallax(isParallax)
+                .setSeamlessLoop(isSeamlessLoop)
+                .setAmbientMode(isAmbientMode)
+                .setScaleMode(mScaleMode)
+                .setFrameRate(mFrameRate)
+                .setIdleReleaseTimeout(mIdleReleaseTimeout)
+                .setQualityTier(mQualityTier);
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        applyExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final ApplyResult result = applyInBackground(context, url, playlist, builder, startedAt);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishApply(context, result, listener);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * the blocking steps of apply(), on the apply thread
+     * @return result without the picker step
+     */
+    private static ApplyResult applyInBackground(Context context, String url, List<PlaylistItem> playlist,
+                                                 WallpaperConfig.Builder builder, long startedAt) {
+        Uri uri = toUri(url);
+        if (context == null || uri == null) {
+            String error = context == null ? "application context is not set" : "Video URl is not valid";
+            return new ApplyResult(url, null, error, false, 0, 0, SystemClock.uptimeMillis() - startedAt);
+        }
+        long detectStartedAt = SystemClock.uptimeMillis();
+        String mimeType = detectMimeType(context, url, uri);
+        List<PlaylistItem> items = detectPlaylistTypes(context, playlist);
+        long detectMillis = SystemClock.uptimeMillis() - detectStartedAt;
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "mime type: "+mimeType);
+        if (mimeType == null) {
+            return new ApplyResult(url, null, "can not detect the media type of " + url, false,
+                    detectMillis, 0, SystemClock.uptimeMillis() - startedAt);
+        }
+
+        long persistStartedAt = SystemClock.uptimeMillis();
+        boolean isActive = isServiceActive(context);
+        // running engines switch to the new source in place
+        ConfigStore.save(context, builder.setMimeType(mimeType).setPlaylist(items).build());
+        if (!isActive) {
             try {
-                WallpaperManager wallpaperManager = WallpaperManager.getInstance(mContext);
-                wallpaperManager.clear();
+                WallpaperManager.getInstance(context).clear();
             } catch (Exception exc) {
-                Log.e(TAG, "[Set] can not clear wallpaper Exception error: "+exc.getMessage());
+                Log.e(TAG, "[apply] can not clear wallpaper Exception error: "+exc.getMessage());
             }
+        }
+        long persistMillis = SystemClock.uptimeMillis() - persistStartedAt;
+        return new ApplyResult(url, mimeType, null, isActive, detectMillis, persistMillis,
+                SystemClock.uptimeMillis() - startedAt);
+    }
 
-            Intent mIntent = new Intent(WallpaperManager.ACTION_CHANGE_LIVE_WALLPAPER);
-            mIntent.putExtra(WallpaperManager.EXTRA_LIVE_WALLPAPER_COMPONENT,
-                    new ComponentName(mContext, VideoWallpaperService.class));
-            mIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            saveDataInSharedPreferences();
-            Log.i(TAG, "[isLooping:]"+isLooping);
-            Log.i(TAG, "[video_uri:]"+mVideoUri);
-            Log.i(TAG, "calling wallpaper service");
-            mContext.startActivity(mIntent);
+    /**
+     * open the picker when the service is not the live wallpaper yet
+     * and report the result, on the main thread
+     */
+    private static void finishApply(Context context, ApplyResult result, ApplyListener listener) {
+        if (result.isSuccessful() && !result.isSwappedInPlace()) {
+            try {
+                Intent mIntent = new Intent(WallpaperManager.ACTION_CHANGE_LIVE_WALLPAPER);
+                mIntent.putExtra(WallpaperManager.EXTRA_LIVE_WALLPAPER_COMPONENT,
+                        new ComponentName(context, VideoWallpaperService.class));
+                mIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "calling wallpaper service");
+                context.startActivity(mIntent);
+            } catch (Exception exc) {
+                Log.e(TAG, "[apply] can not open the wallpaper picker Exception error: "+exc.getMessage());
+                result = new ApplyResult(result.getUrl(), result.getMimeType(), exc.getMessage(), false,
+                        result.getDetectMillis(), result.getPersistMillis(), result.getTotalMillis());
+            }
+        }
+        if (result.isSuccessful()) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[apply] " + result);
+            if (listener != null) listener.onApplied(result);
         } else {
-            Log.e(TAG, "Video URl is not valid");
+            Log.e(TAG, "[apply] " + result);
+            if (listener != null) listener.onApplyFailed(result);
         }
-
     }
 
-
+    /**
+     * set wallpaper using wallpaper services,
+     * returns right away, the work is done by apply()
+     */
+    public void Set() {
+        apply(null);
+    }
 }
@@ -1,26 +1,27 @@
 package com.livewallrcandrapp.videowallpaper;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
+import android.app.ActivityManager;
 import android.graphics.Bitmap;
 
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
-import android.provider.MediaStore;
+import android.os.SystemClock;
 import android.service.wallpaper.WallpaperService;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.SurfaceHolder;
-import android.view.WindowManager;
 
-import java.io.IOException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 
 
 public class VideoWallpaperService extends WallpaperService {
@@ -28,349 +29,1963 @@ public class VideoWallpaperService extends WallpaperService {
     private static final String TAG = "VideoWallpaperService";
 
     /**
-     * media player instances
+     * players of all engines, lets the live engine take over the preview player
      */
-    private MediaPlayer mMediaPlayer = null;
+    private PlayerPool mPlayerPool;
 
     /**
-     * broadcast receiver instance
-     * for SCREEN_ON /OFF
+     * engines currently alive, preview and live wallpaper
      */
-    private BroadcastReceiver mBroadcastReceiver = null;
+    private final ArrayList<VideoEngine> mEngines = new ArrayList<>();
 
     /**
-     * instance for source url
-     * both image and video
+     * bitmaps released by the image cache, reused by the next decodes
      */
-    private Uri mVideoUri;
+    private final BitmapPool mBitmapPool = new BitmapPool();
 
     /**
-     * source url as string come from the shared data
-     * both image and video
+     * decoded images shared by the engines showing the same source
      */
-    private String mVideoURL;
+    private final DecodedImageCache mImageCache = new DecodedImageCache(mBitmapPool);
 
     /**
-     * mime type of file
-     * video:- video/mp4 or any other format
-     * image:- image/png or any other format
+     * last memory trim, for dumpsys
      */
-    private String mMimeType;
+    private MemoryTrim mLastTrim;
 
     /**
-     * is video must need looping
+     * call when engine is created
+     * @return
+     */
+    @Override
+    public Engine onCreateEngine() {
+        if (mPlayerPool == null) mPlayerPool = new PlayerPool(getApplicationContext());
+        return new VideoEngine();
+    }
+
+    /**
+     * memory is getting low, the tier of the level is shed,
+     * see MemoryTrim for what each tier releases
+     * @param level
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        int tier = MemoryTrim.tierOf(level);
+        if (tier == MemoryTrim.NONE) return;
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[onTrimMemory] level " + level + ", tier " + MemoryTrim.NAMES[tier]);
+        }
+        trimMemory(tier);
+    }
+
+    /**
+     * the whole system is low on memory, every tier is shed
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (WallpaperTrace.isLoggable(Log.INFO)) {
+            Log.i(TAG, "[onLowMemory] tier " + MemoryTrim.NAMES[MemoryTrim.PLAYER]);
+        }
+        trimMemory(MemoryTrim.PLAYER);
+    }
+
+    /**
+     * shed memory down to tier, the bytes released are logged and
+     * counted once the engines finished on their render threads
+     * @param tier
      */
-    private boolean isLooping;
+    private void trimMemory(int tier) {
+        MemoryTrim trim = new MemoryTrim(tier, mBitmapPool);
+        mLastTrim = trim;
+        if (mPlayerPool != null) trim.add(mPlayerPool.releaseParked());
+        for (int i = mEngines.size() - 1; i >= 0; i--) {
+            mEngines.get(i).onMemoryPressure(trim);
+        }
+        trim.finish();
+    }
+
+    /**
+     * adb shell dumpsys activity service VideoWallpaperService
+     * prints the engines and the render and playback metrics
+     * @param fd
+     * @param writer
+     * @param args
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Engines: " + mEngines.size());
+        for (VideoEngine engine : mEngines) {
+            engine.dump("  ", fd, writer, args);
+        }
+        if (mPlayerPool != null) writer.println("Players: " + mPlayerPool.size());
+        mImageCache.dump(writer);
+        if (mLastTrim != null) writer.println("Last trim: " + mLastTrim);
+        WallpaperMetrics.get().dump(writer);
+    }
+
+    /**
+     * @param name thread name
+     * @param renderer
+     * @param targetFps
+     * @return render thread of a new engine, the lifecycle tests draw on the main looper instead
+     */
+    RenderThread newRenderThread(String name, RenderThread.Renderer renderer, int targetFps) {
+        return new RenderThread(name, renderer, targetFps);
+    }
+
+    /**
+     * @return the player pool, null until the first engine is created
+     */
+    PlayerPool getPlayerPool() {
+        return mPlayerPool;
+    }
+
+    /**
+     * call when services is destroyed
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mPlayerPool != null) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onDestroy] media players stopped and released");
+            mPlayerPool.releaseAll();
+            mPlayerPool = null;
+        }
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onDestroy] service is destroyed");
+    }
+
+    /**
+     * inner class for engine
+     */
+    class VideoEngine extends Engine implements RenderThread.Renderer,
+            WallpaperPlayer.Listener, PlayerPool.Owner, ScreenStateDispatcher.Listener,
+            ConfigStore.Listener, RemoteMediaCache.Listener, PosterCache.Listener,
+            KeyframeCache.Listener {
+        private static final String TAG = "VideoEngine";
+        private SurfaceHolder mSurfaceHolder;
+
+        /**
+         * settings snapshot this engine is showing
+         */
+        private volatile WallpaperConfig mConfig;
+
+        /**
+         * source of mConfig, both image and video
+         */
+        private volatile Uri mVideoUri;
+
+        /**
+         * is source video or image
+         */
+        private volatile boolean isVideo;
+
+        /**
+         * player owned by this engine, leased from the service pool
+         */
+        private WallpaperPlayer mPlayer;
+
+        /**
+         * source the player was built for, the cached copy of a remote source
+         * once the download is complete, the remote url until then
+         */
+        private Uri mPlaybackUri;
+
+        /**
+         * next slot of a playlist: prepared player of the next video item
+         */
+        private WallpaperPlayer mNextPlayer;
+
+        /**
+         * next playlist item, read by the render thread to decode a next image
+         */
+        private volatile WallpaperConfig mNextConfig;
+
+        /**
+         * visible time left for the current playlist item,
+         * uptime since it is counted, 0 while hidden
+         */
+        private long mItemRemaining;
+        private long mItemShownAt;
+
+        private final Runnable mAdvancePlaylist = new Runnable() {
+            @Override
+            public void run() {
+                advancePlaylist();
+            }
+        };
+
+        /**
+         * the download finished while the remote source was playing,
+         * the player is rebuilt on the local copy at the next suspend
+         */
+        private boolean isLocalCopyReady;
+
+        /**
+         * video playback power state
+         * IDLE: no playback yet, PLAYING: decoding to the surface,
+         * SUSPENDED: paused with the surface unbound,
+         * RELEASED: codec released, only the checkpoint is kept
+         */
+        static final int PLAYBACK_IDLE = 0;
+        static final int PLAYBACK_PLAYING = 1;
+        static final int PLAYBACK_SUSPENDED = 2;
+        static final int PLAYBACK_RELEASED = 3;
+        private int mPlaybackState = PLAYBACK_IDLE;
+
+        /**
+         * playback position to resume from after the codec was released
+         */
+        private int mCheckpoint;
+
+        /**
+         * uptime when playback was asked to resume, 0 once the first frame is shown
+         */
+        private long mResumeStartedAt;
+
+        /**
+         * memory ran low, loop with one player until the codec is rebuilt
+         */
+        private boolean isUnderMemoryPressure;
+
+        /**
+         * first frame of the video, shown from surface creation until the player
+         * renders its own first frame, main thread only
+         */
+        private Bitmap mPoster;
+
+        /**
+         * quality tier in effect, the config override or the power tier
+         */
+        private volatile QualityTier mTier = QualityTier.FULL;
+
+        /**
+         * uptime when the engine was created, 0 once its first frame was shown
+         */
+        private volatile long mCreatedAt;
+
+        private final WallpaperMetrics mMetrics = WallpaperMetrics.get();
+
+        private final Handler mHandler = new Handler();
+
+        /**
+         * release the codec of a player that stayed hidden for the idle timeout
+         */
+        private final Runnable mIdleRelease = new Runnable() {
+            @Override
+            public void run() {
+                releasePlayback();
+            }
+        };
+
+        /**
+         * rebuilds a stalled or dead player from the checkpoint, main thread only
+         */
+        private final PlaybackWatchdog mWatchdog = new PlaybackWatchdog();
+
+        /**
+         * the rebuild waits for its backoff
+         */
+        private boolean isRecoveryPending;
+
+        /**
+         * playback gave up after repeated failures, the poster stands in
+         * until the source changes or the screen comes on again
+         */
+        private boolean isPlaybackFailed;
+
+        private final Runnable mCheckPlayback = new Runnable() {
+            @Override
+            public void run() {
+                checkPlayback();
+            }
+        };
+
+        private final Runnable mRecoverPlayback = new Runnable() {
+            @Override
+            public void run() {
+                recoverPlayback();
+            }
+        };
+
+        /**
+         * canvas rendering runs here, never on the main thread
+         */
+        private RenderThread mRenderThread;
+
+        /**
+         * guards the surface between the render thread and onSurfaceDestroyed
+         */
+        private final Object mSurfaceLock = new Object();
+        private boolean mSurfaceReady;
+
+        /**
+         * snapshot the image state below was built for, render thread only
+         */
+        private WallpaperConfig mImageConfig;
+
+        /**
+         * readable source of mImageConfig, null while a remote image downloads
+         */
+        private Uri mImageSource;
+
+        /**
+         * the only decoded image held by this engine,
+         * shared with the engines showing the same source
+         */
+        private Bitmap mImageWallpaper;
+
+        /**
+         * surface size and scale mode the image was decoded for
+         */
+        private int mDecodedWidth;
+        private int mDecodedHeight;
+        private ScaleMode mDecodedScaleMode;
+
+        /**
+         * the image is decoded at 1 / mImageDownsample of the surface size,
+         * raised by a memory trim until the next source, render thread only
+         */
+        static final int IMAGE_DOWNSAMPLE = 2;
+        private int mImageDownsample = 1;
+
+        /**
+         * current surface size, display size until the surface reports its own
+         */
+        private volatile int mSurfaceWidth;
+        private volatile int mSurfaceHeight;
+
+        /**
+         * placement of mImageWallpaper on the canvas, computed once per
+         * canvas size and applied at draw time
+         */
+        private final Matrix mDrawMatrix = new Matrix();
+        private final float[] mTransform = new float[4];
+        private int mMatrixWidth;
+        private int mMatrixHeight;
+        private boolean isCanvasCovered;
+        private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        /**
+         * next slot of a playlist: the next image item decoded
+         * for the current surface, render thread only
+         */
+        private Bitmap mNextImage;
+        private WallpaperConfig mNextImageConfig;
+        private Uri mNextImageSource;
+        private int mNextDecodedWidth;
+        private int mNextDecodedHeight;
+
+        private final Runnable mPrefetchNextImage = new Runnable() {
+            @Override
+            public void run() {
+                prefetchNextImage();
+            }
+        };
+
+        private final Runnable mReleaseNextImage = new Runnable() {
+            @Override
+            public void run() {
+                releaseNextImage();
+            }
+        };
+
+        /**
+         * crossfade of playlist images, the previous image is drawn under
+         * the new one until it has faded in, render thread only
+         */
+        static final long CROSSFADE_MS = 600;
+        private Bitmap mFadeImage;
+        private final Matrix mFadeMatrix = new Matrix();
+        private long mFadeStartedAt;
+        private int mFadeAlpha;
+        private final Paint mFadePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        /**
+         * region decoder used instead of mImageWallpaper in parallax mode
+         */
+        private TiledImageRenderer mTiledRenderer;
+
+        /**
+         * plays animated GIF and WebP sources instead of mImageWallpaper
+         */
+        private AnimatedImageRenderer mAnimatedRenderer;
+
+        /**
+         * bitmap of the next draw, mImageWallpaper or the current animation frame
+         */
+        private Bitmap mDrawnImage;
+
+        /**
+         * redraw when the next animation frame is due, runs on the render thread
+         */
+        private final Runnable mAnimationFrame = new Runnable() {
+            @Override
+            public void run() {
+                // the first frame is drawn even when the tier does not animate
+                if (mDrawnImage == null) {
+                    forceFrame();
+                } else {
+                    requestFrame();
+                }
+            }
+        };
+
+        /**
+         * last wallpaper offsets reported by the launcher
+         */
+        private volatile float mXOffset = 0.5f;
+        private volatile float mYOffset = 0.5f;
+
+        /**
+         * decode the prefetch margin one tile at a time between frames
+         */
+        private final Runnable mPrefetchThread = new Runnable() {
+            @Override
+            public void run() {
+                if (mVisible && mTiledRenderer != null && mTiledRenderer.prefetchNext()) {
+                    mRenderThread.post(this);
+                }
+            }
+        };
+        private volatile boolean mVisible;
+
+        /**
+         * free the decoded image on the render thread after a switch to video
+         */
+        private final Runnable mReleaseImage = new Runnable() {
+            @Override
+            public void run() {
+                releaseImageState();
+            }
+        };
+
+        /**
+         * free every bitmap the frames draw once the render thread drew its last one
+         */
+        private final Runnable mReleaseDrawables = new Runnable() {
+            @Override
+            public void run() {
+                releaseImageState();
+                releaseNextImage();
+                releasePoster();
+                recycleKeyframeBitmap();
+            }
+        };
+
+        /**
+         * ambient mode: in the REDUCED tier a video is shown as a slideshow of
+         * its keyframes, each one for KEYFRAME_INTERVAL_MS, fading in at
+         * AMBIENT_FRAME_RATE, no player is held meanwhile
+         */
+        static final long KEYFRAME_INTERVAL_MS = 4000;
+        static final int AMBIENT_FRAME_RATE = 10;
+
+        /**
+         * source of the slideshow, null while it is off, main thread only
+         */
+        private String mAmbientKey;
+
+        /**
+         * keyframes on screen, set under mSurfaceLock
+         */
+        private volatile KeyframeCache.Keyframes mKeyframes;
+
+        /**
+         * the keyframes draw through EGL like the poster, the surface is free
+         * for the player again once the session is closed
+         * opened and drawn on the render thread, closed under mSurfaceLock
+         */
+        private final PosterRenderer mKeyframeRenderer = new PosterRenderer();
+        private volatile boolean isKeyframeSurfaceHeld;
+
+        /**
+         * slideshow position, render thread only
+         */
+        private KeyframeCache.Keyframes mShownKeyframes;
+        private int mKeyframeIndex = -1;
+        private long mKeyframeShownAt;
+        private Bitmap mKeyframeBitmap;
+        private boolean isKeyframeUploaded;
+
+        /**
+         * show the next keyframe, runs on the render thread
+         */
+        private final Runnable mNextKeyframe = new Runnable() {
+            @Override
+            public void run() {
+                requestFrame();
+            }
+        };
+
+        /**
+         * close the keyframe session after the slideshow ended, runs on the render thread
+         */
+        private final Runnable mReleaseKeyframes = new Runnable() {
+            @Override
+            public void run() {
+                releaseKeyframes();
+            }
+        };
+
+        /**
+         * the keyframe session let go of the surface, bind the player or draw the poster
+         */
+        private final Runnable mKeyframesReleased = new Runnable() {
+            @Override
+            public void run() {
+                drawPoster();
+                startPlayback();
+            }
+        };
+
+        public VideoEngine() {
+            super();
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.ENGINE_CREATE);
+            try {
+                mCreatedAt = SystemClock.uptimeMillis();
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[Video engine started]");
+                WallpaperConfig config = ConfigStore.get(VideoWallpaperService.this);
+                applySource(config.hasPlaylist() ? config.forItem(0) : config);
+            } finally {
+                WallpaperTrace.end(traced);
+            }
+        }
+
+        /**
+         * take the source of a snapshot, image sources and playlists
+         * with images get a render thread
+         * @param config
+         */
+        private void applySource(WallpaperConfig config) {
+            mConfig = config;
+            mVideoUri = config.getVideoUri();
+            isVideo = config.isVideo();
+            if (mVideoUri != null && isVideo) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "Url is video");
+            } else if (mVideoUri != null && !isVideo) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "Url is image");
+            }else {
+                Log.e(TAG,"video url is null");
+            }
+            if (mVideoUri != null && (!isVideo || config.hasImageItem() || config.isAmbientMode())) {
+                ensureRenderThread();
+            }
+        }
+
+        private void ensureRenderThread() {
+            if (mRenderThread != null) return;
+            mRenderThread = newRenderThread(TAG, this, frameRate());
+            // engines that are already attached start it right away
+            if (mEngines.contains(this)) mRenderThread.start();
+        }
+
+        /**
+         * @return canvas frame rate of the tier, the slideshow rate while it runs
+         */
+        private int frameRate() {
+            return mAmbientKey != null ? AMBIENT_FRAME_RATE : mTier.frameRate(mConfig.getFrameRate());
+        }
+
+        /**
+         * hot swap to a new snapshot without recreating the engine
+         * @param config
+         */
+        @Override
+        public void onConfigChanged(WallpaperConfig config) {
+            WallpaperConfig previous = mConfig;
+            if (previous != null && config.getVersion() <= previous.getVersion()) return;
+            boolean isPlaylistKept = config.hasPlaylist() && !config.isPlaylistChanged(previous);
+            if (config.hasPlaylist()) {
+                // a settings change keeps the item on screen, a new playlist starts over
+                config = config.forItem(isPlaylistKept ? Math.max(0, previous.getPlaylistIndex()) : 0);
+            } else if (previous != null && previous.hasPlaylist()) {
+                stopPlaylist();
+            }
+            if (previous != null && !previous.isSourceChanged(config)
+                    && previous.isParallax() == config.isParallax()) {
+                mConfig = config;
+                if (!isVideo) forceFrame();
+                if (isVideo && mPlayer != null && mPlaybackState == PLAYBACK_PLAYING) {
+                    mPlayer.setSeamlessLoop(!isPlayingOnce() && canLoopSeamlessly());
+                    mPlayer.setVideoScalingMode(videoScalingMode(config.getScaleMode()));
+                }
+                applyTier();
+                if (config.hasPlaylist() && !isPlaylistKept) startPlaylistItem();
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onConfigChanged] switching to " + config);
+            // the new source starts in the tier of the new config
+            mTier = effectiveTier(config);
+            switchSource(config);
+            applyTier();
+            if (config.hasPlaylist()) startPlaylistItem();
+        }
+
+        /**
+         * stop showing the current source and show the one of config
+         * @param config
+         */
+        private void switchSource(WallpaperConfig config) {
+            if (isVideo) {
+                if (mAmbientKey != null) leaveAmbient(false);
+                releasePoster();
+                mHandler.removeCallbacks(mIdleRelease);
+                resetWatchdog();
+                if (mPlayer != null) mPlayerPool.discard(this, mPlayer);
+                mPlayer = null;
+                mPlaybackState = PLAYBACK_IDLE;
+                mCheckpoint = 0;
+            } else {
+                cancelFrame();
+            }
+
+            applySource(config);
+            if (mVideoUri != null && isVideo) {
+                if (mRenderThread != null) mRenderThread.post(mReleaseImage);
+                if (mTier.isPlaybackAllowed() && !isAmbientWanted()) {
+                    acquirePlayer();
+                } else {
+                    loadPoster();
+                }
+                updateAmbient();
+            } else if (mVideoUri != null) {
+                forceFrame();
+            }
+        }
+
+        /**
+         * start the visible time of the current playlist item
+         * and prepare the next item in the next slot
+         */
+        private void startPlaylistItem() {
+            mHandler.removeCallbacks(mAdvancePlaylist);
+            mItemShownAt = 0;
+            PlaylistItem item = mConfig.getPlaylistItem();
+            if (item == null || mConfig.getPlaylist().size() < 2) return;
+            mItemRemaining = item.getShownMillis();
+            if (mVisible) scheduleAdvance();
+            prefetchNextItem();
+        }
+
+        /**
+         * show the next playlist item, from the next slot when it is ready
+         */
+        private void advancePlaylist() {
+            WallpaperConfig config = mConfig;
+            int size = config.getPlaylist().size();
+            if (size < 2) return;
+            WallpaperConfig next = config.forItem((config.getPlaylistIndex() + 1) % size);
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[advancePlaylist] " + next);
+            if (config.isSourceChanged(next)) {
+                switchSource(next);
+            } else {
+                mConfig = next;
+            }
+            startPlaylistItem();
+        }
+
+        /**
+         * prepare the player or decode the image of the next playlist item,
+         * the previous content of the next slot is released
+         */
+        private void prefetchNextItem() {
+            int size = mConfig.getPlaylist().size();
+            WallpaperConfig next = mConfig.forItem((mConfig.getPlaylistIndex() + 1) % size);
+            mNextConfig = next;
+            if (next.getVideoUri() == null || !mConfig.isSourceChanged(next)) {
+                discardNextPlayer();
+                return;
+            }
+            if (next.isVideo() && (!mTier.isPlaybackAllowed() || mAmbientKey != null)) {
+                // no second decoder while the tier or the slideshow does not decode video
+                discardNextPlayer();
+            } else if (next.isVideo()) {
+                Uri localUri = localSource(next.getVideoUri());
+                Uri uri = localUri != null ? localUri : next.getVideoUri();
+                if (mNextPlayer != null && mNextPlayer.getUri().equals(uri)) return;
+                discardNextPlayer();
+                mNextPlayer = mPlayerPool.acquire(this, uri);
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[prefetchNextItem] preparing " + uri);
+            } else {
+                discardNextPlayer();
+                // an image on screen posts the decode after its frame is drawn
+                if (isVideo && mRenderThread != null) mRenderThread.post(mPrefetchNextImage);
+            }
+        }
+
+        private void discardNextPlayer() {
+            if (mNextPlayer == null) return;
+            if (mPlayerPool != null) mPlayerPool.discard(this, mNextPlayer);
+            mNextPlayer = null;
+        }
+
+        /**
+         * drop the playlist timer and the next slot
+         */
+        private void stopPlaylist() {
+            mHandler.removeCallbacks(mAdvancePlaylist);
+            mItemShownAt = 0;
+            mNextConfig = null;
+            discardNextPlayer();
+            if (mRenderThread != null) mRenderThread.post(mReleaseNextImage);
+        }
+
+        /**
+         * count the visible time of the current item, the item
+         * moves on once it was visible for its whole duration
+         */
+        private void scheduleAdvance() {
+            if (mTier == QualityTier.PAUSED) return;
+            if (mItemShownAt != 0 || mItemRemaining <= 0 || mConfig.getPlaylist().size() < 2) return;
+            mItemShownAt = SystemClock.uptimeMillis();
+            mHandler.postDelayed(mAdvancePlaylist, mItemRemaining);
+        }
+
+        private void pauseAdvance() {
+            mHandler.removeCallbacks(mAdvancePlaylist);
+            if (mItemShownAt == 0) return;
+            mItemRemaining = Math.max(1, mItemRemaining - (SystemClock.uptimeMillis() - mItemShownAt));
+            mItemShownAt = 0;
+        }
+
+        /**
+         * @return true when the current video is a playlist item that ends at its completion
+         */
+        private boolean isPlayingOnce() {
+            PlaylistItem item = mConfig.getPlaylistItem();
+            return item != null && item.getShownMillis() == 0 && mConfig.getPlaylist().size() > 1;
+        }
+
+        /**
+         * start the render thread once the engine is attached
+         * @param surfaceHolder
+         */
+        @Override
+        public void onCreate(SurfaceHolder surfaceHolder) {
+            super.onCreate(surfaceHolder);
+            mEngines.add(this);
+            ScreenStateDispatcher.register(VideoWallpaperService.this, this);
+            ConfigStore.addListener(this);
+            mTier = effectiveTier(mConfig);
+            if (mRenderThread != null) {
+                mRenderThread.setTargetFps(frameRate());
+                mRenderThread.start();
+            }
+            if (mVideoUri != null && isVideo) {
+                if (mTier.isPlaybackAllowed() && !isAmbientWanted()) acquirePlayer();
+                loadPoster();
+                updateAmbient();
+            }
+            if (mConfig.hasPlaylist()) startPlaylistItem();
+        }
+
+        /**
+         * decode the cached poster in the background, extracting it on the first start
+         */
+        private void loadPoster() {
+            if (!isVideo || mVideoUri == null) return;
+            Uri source = mPlayer != null ? mPlaybackUri : localSource(mVideoUri);
+            ensureSurfaceSize();
+            PosterCache.get(VideoWallpaperService.this).load(mVideoUri.toString(),
+                    source != null ? source : mVideoUri,
+                    mSurfaceWidth, mSurfaceHeight, mConfig.getScaleMode(), this);
+        }
+
+        /**
+         * @param config
+         * @return tier set by the app in config, the power tier otherwise
+         */
+        private QualityTier effectiveTier(WallpaperConfig config) {
+            QualityTier tier = config.getQualityTier();
+            return tier != null ? tier : ScreenStateDispatcher.getPowerTier();
+        }
+
+        /**
+         * move frame pacing, playlist timing and video decoding
+         * to the tier in effect, called on the main thread
+         */
+        private void applyTier() {
+            QualityTier previous = mTier;
+            QualityTier tier = effectiveTier(mConfig);
+            mTier = tier;
+            if (mRenderThread != null) mRenderThread.setTargetFps(frameRate());
+            if (tier == previous) {
+                // the config may have switched the ambient mode
+                updateAmbient();
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[applyTier] " + previous + " -> " + tier);
+            if (tier == QualityTier.PAUSED) {
+                pauseAdvance();
+            } else if (mVisible) {
+                scheduleAdvance();
+            }
+            if (!isVideo) {
+                if (tier == QualityTier.PAUSED) {
+                    cancelFrame();
+                } else {
+                    requestFrame();
+                }
+                return;
+            }
+            updateAmbient();
+            if (tier == QualityTier.POSTER_ONLY) {
+                discardNextPlayer();
+                releasePlayback();
+                loadPoster();
+            } else if (tier == QualityTier.PAUSED) {
+                // the last decoded frame stays on the surface
+                discardNextPlayer();
+                suspendPlayback();
+            } else if (mPlayer != null && mPlaybackState == PLAYBACK_PLAYING) {
+                mPlayer.setSeamlessLoop(!isPlayingOnce() && canLoopSeamlessly());
+            } else if (mVisible) {
+                resumePlayback();
+            }
+        }
+
+        /**
+         * called on the poster thread
+         * @param key
+         * @param poster
+         */
+        @Override
+        public void onPosterReady(final String key, final Bitmap poster) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPosterLoaded(key, poster);
+                }
+            });
+        }
+
+        private void onPosterLoaded(String key, Bitmap poster) {
+            if (poster == null) return;
+            if (!mEngines.contains(this) || !isVideo || mVideoUri == null
+                    || !mVideoUri.toString().equals(key) || mPlaybackState == PLAYBACK_PLAYING) {
+                // the player was faster or the source changed
+                poster.recycle();
+                return;
+            }
+            releasePoster();
+            mPoster = poster;
+            drawPoster();
+        }
+
+        /**
+         * show the poster while the player is not bound to the surface yet,
+         * the player takes the surface over afterwards
+         */
+        private void drawPoster() {
+            if (mPoster == null || mPlaybackState == PLAYBACK_PLAYING) return;
+            synchronized (mSurfaceLock) {
+                // the slideshow is on the surface
+                if (!mSurfaceReady || mSurfaceHolder == null || isKeyframeSurfaceHeld) return;
+                if (!PosterRenderer.draw(mSurfaceHolder, mPoster, mConfig.getScaleMode())) return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[drawPoster] poster shown");
+            onFrameShown();
+        }
+
+        private void releasePoster() {
+            if (mPoster == null) return;
+            mPoster.recycle();
+            mPoster = null;
+        }
+
+        /**
+         * @return true when the config asks for the keyframe slideshow in the tier in effect
+         */
+        private boolean isAmbientWanted() {
+            return isVideo && mVideoUri != null && mConfig.isAmbientMode() && mTier == QualityTier.REDUCED;
+        }
+
+        /**
+         * start or stop the keyframe slideshow to match the tier, the config and the source
+         */
+        private void updateAmbient() {
+            String key = isAmbientWanted() ? mVideoUri.toString() : null;
+            if (key == null ? mAmbientKey == null : key.equals(mAmbientKey)) return;
+            if (mAmbientKey != null) leaveAmbient(key == null);
+            if (key != null) enterAmbient(key);
+        }
+
+        /**
+         * release the player and load the keyframes of the current source,
+         * extracting them on the first start
+         * @param key
+         */
+        private void enterAmbient(String key) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[enterAmbient] " + key);
+            mAmbientKey = key;
+            discardNextPlayer();
+            releasePlayback();
+            ensureRenderThread();
+            mRenderThread.setTargetFps(AMBIENT_FRAME_RATE);
+            Uri source = localSource(mVideoUri);
+            ensureSurfaceSize();
+            KeyframeCache.get(VideoWallpaperService.this).load(key, source != null ? source : mVideoUri,
+                    mSurfaceWidth, mSurfaceHeight, mConfig.getScaleMode(), this);
+        }
+
+        /**
+         * stop the slideshow, the surface goes back to the player once
+         * the render thread closed the keyframe session
+         * @param isResumed resume playback of the current source
+         */
+        private void leaveAmbient(boolean isResumed) {
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[leaveAmbient] " + mAmbientKey);
+            mAmbientKey = null;
+            synchronized (mSurfaceLock) {
+                mKeyframes = null;
+            }
+            if (mRenderThread != null) {
+                mRenderThread.setTargetFps(frameRate());
+                if (!mRenderThread.post(mReleaseKeyframes)) releaseKeyframes();
+            }
+            // the codec prepares while the session closes
+            if (isResumed && mVisible) resumePlayback();
+        }
+
+        /**
+         * called on the keyframe thread
+         * @param key
+         * @param keyframes
+         */
+        @Override
+        public void onKeyframesReady(final String key, final KeyframeCache.Keyframes keyframes) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onKeyframesLoaded(key, keyframes);
+                }
+            });
+        }
+
+        private void onKeyframesLoaded(String key, KeyframeCache.Keyframes keyframes) {
+            // the slideshow stopped or moved on to another source
+            if (!mEngines.contains(this) || !key.equals(mAmbientKey)) return;
+            if (keyframes == null) {
+                Log.e(TAG, "[onKeyframesLoaded] no keyframes of " + key + ", showing the poster");
+                if (mPoster == null) {
+                    loadPoster();
+                } else {
+                    drawPoster();
+                }
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[onKeyframesLoaded] " + keyframes.size() + " keyframes, "
+                        + keyframes.getByteCount() + " bytes");
+            }
+            synchronized (mSurfaceLock) {
+                mKeyframes = keyframes;
+            }
+            forceFrame();
+        }
+
+        /**
+         * lease a player from the pool, prepared or preparing
+         */
+        private void acquirePlayer() {
+            Uri localUri = localSource(mVideoUri);
+            mPlaybackUri = localUri != null ? localUri : mVideoUri;
+            isLocalCopyReady = false;
+            if (mNextPlayer != null && mNextPlayer.getUri().equals(mPlaybackUri)) {
+                // prepared in the next slot while the previous item played
+                mPlayer = mNextPlayer;
+                mNextPlayer = null;
+                if (mPlayer.getState() == WallpaperPlayer.STATE_ERROR) {
+                    mPlayerPool.discard(this, mPlayer);
+                    mPlayer = mPlayerPool.acquire(this, mPlaybackUri);
+                }
+            } else {
+                mPlayer = mPlayerPool.acquire(this, mPlaybackUri);
+            }
+            if (mPlayer != null) {
+                mPlayer.setListener(this);
+                if (mPlayer.isPrepared()) startPlayback();
+            }
+        }
+
+        /**
+         * bind the prepared player to the surface and play,
+         * whichever of surface, player and visibility is ready last calls this
+         */
+        private void startPlayback() {
+            if (mPlayer == null || !mPlayer.isPrepared() || !mVisible || !mTier.isPlaybackAllowed()) return;
+            if (!mSurfaceReady || mSurfaceHolder == null) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "Surface is not ready");
+                return;
+            }
+            if (mPlaybackState == PLAYBACK_PLAYING) return;
+            // bound once the keyframe session released the surface
+            if (isKeyframeSurfaceHeld) return;
+            mPlayer.setVideoScalingMode(videoScalingMode(mConfig.getScaleMode()));
+            mPlayer.setSurface(mSurfaceHolder.getSurface());
+            mPlayer.setSeamlessLoop(!isPlayingOnce() && canLoopSeamlessly());
+            if (isPlayingOnce()) mPlayer.getMediaPlayer().setLooping(false);
+            if (mPlaybackState == PLAYBACK_RELEASED && mCheckpoint > 0) {
+                mPlayer.getMediaPlayer().seekTo(mCheckpoint);
+            }
+            mPlayer.start();
+            mPlaybackState = PLAYBACK_PLAYING;
+            mWatchdog.onStarted(SystemClock.uptimeMillis());
+            mHandler.removeCallbacks(mCheckPlayback);
+            mHandler.postDelayed(mCheckPlayback, PlaybackWatchdog.CHECK_INTERVAL_MS);
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "media player is started");
+        }
+
+        /**
+         * pause decoding and unbind the surface, the codec is kept
+         * until the idle timeout expires
+         */
+        private void suspendPlayback() {
+            mHandler.removeCallbacks(mIdleRelease);
+            stopWatchdog();
+            // hidden before the rebuilt player showed a frame
+            if (mWatchdog.isRecovering()) mWatchdog.cancelRecovery();
+            if (mPlayer == null || mPlaybackState != PLAYBACK_PLAYING) return;
+            mPlayer.pause();
+            mPlayer.setSurface(null);
+            mCheckpoint = mPlayer.getCheckpoint();
+            mPlaybackState = PLAYBACK_SUSPENDED;
+            if (isLocalCopyReady) {
+                // reopen on the local copy while nothing is shown
+                releasePlayback();
+                return;
+            }
+            mHandler.postDelayed(mIdleRelease, mConfig.getIdleReleaseTimeout());
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[suspendPlayback] paused at " + mCheckpoint);
+        }
+
+        /**
+         * resume a suspended player, or build a new one after the codec was released
+         */
+        private void resumePlayback() {
+            mHandler.removeCallbacks(mIdleRelease);
+            if (mVideoUri == null || !isVideo || mPlaybackState == PLAYBACK_PLAYING) return;
+            if (mAmbientKey != null) {
+                forceFrame();
+                return;
+            }
+            if (!mTier.isPlaybackAllowed()) {
+                if (mTier == QualityTier.POSTER_ONLY && mPoster == null) loadPoster();
+                return;
+            }
+            if (isPlaybackFailed) {
+                if (mPoster == null) loadPoster();
+                return;
+            }
+            // rebuilt once the backoff expires
+            if (isRecoveryPending) return;
+            mResumeStartedAt = SystemClock.uptimeMillis();
+            if (mPlayer == null) {
+                acquirePlayer();
+            } else {
+                startPlayback();
+            }
+        }
+
+        /**
+         * release the codec entirely, keeping only the position checkpoint
+         */
+        private void releasePlayback() {
+            mHandler.removeCallbacks(mIdleRelease);
+            stopWatchdog();
+            if (mPlayer == null) return;
+            if (mPlaybackState == PLAYBACK_PLAYING) {
+                mPlayer.pause();
+                mCheckpoint = mPlayer.getCheckpoint();
+            }
+            mPlayerPool.discard(this, mPlayer);
+            mPlayer = null;
+            mPlaybackState = PLAYBACK_RELEASED;
+            // the next codec checks the memory state again
+            isUnderMemoryPressure = false;
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[releasePlayback] codec released, checkpoint " + mCheckpoint);
+            }
+        }
+
+        /**
+         * the video surface scales in the compositor, it can crop or stretch,
+         * FIT and FILL keep the aspect ratio by cropping
+         * @param scaleMode
+         * @return MediaPlayer.VIDEO_SCALING_MODE_*
+         */
+        private int videoScalingMode(ScaleMode scaleMode) {
+            return scaleMode == ScaleMode.STRETCH ? MediaPlayer.VIDEO_SCALING_MODE_SCALE_TO_FIT
+                    : MediaPlayer.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING;
+        }
+
+        /**
+         * @return true when the config asks for a seamless loop
+         * and the device can afford a second decoder
+         */
+        private boolean canLoopSeamlessly() {
+            if (!mConfig.isSeamlessLoop() || isUnderMemoryPressure || mTier != QualityTier.FULL) return false;
+            try {
+                ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+                if (activityManager == null) return false;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        && activityManager.isLowRamDevice()) {
+                    return false;
+                }
+                ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+                activityManager.getMemoryInfo(memoryInfo);
+                return !memoryInfo.lowMemory;
+            } catch (Exception exc) {
+                Log.e(TAG, "[canLoopSeamlessly] exception error: " + exc.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+            super.dump(prefix, fd, writer, args);
+            writer.println(prefix + (isPreview() ? "preview" : "wallpaper") + " engine visible=" + mVisible
+                    + " " + (isVideo ? "video" : "image") + " playback=" + mPlaybackState
+                    + " checkpoint=" + mCheckpoint + " localCopy=" + isLocalCopyReady + " tier=" + mTier
+                    + " failures=" + mWatchdog.getAttempts() + (isPlaybackFailed ? " gave up" : ""));
+            if (mAmbientKey != null) {
+                KeyframeCache.Keyframes keyframes = mKeyframes;
+                writer.println(prefix + "  ambient " + (keyframes == null ? "loading" : keyframes.size()
+                        + " keyframes, " + keyframes.getByteCount() + " bytes"));
+            }
+            writer.println(prefix + "  " + mConfig);
+            if (mPlaybackUri != null) writer.println(prefix + "  playing " + mPlaybackUri);
+        }
+
+        /**
+         * shed memory down to the tier of trim: the standby decoder, the next slot
+         * and the images of a hidden engine first, then the image on screen
+         * at a lower resolution, then the codec of a hidden engine
+         * @param trim
+         */
+        void onMemoryPressure(final MemoryTrim trim) {
+            isUnderMemoryPressure = true;
+            if (mPlayer != null && mPlayer.isSeamlessLoop()) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onMemoryPressure] seamless loop off");
+                trim.add(mPlayer.getStandbyBytes());
+                mPlayer.setSeamlessLoop(false);
+            }
+            if (mNextPlayer != null) {
+                // prepared again when its item is shown
+                trim.add(mNextPlayer.getDecoderBytes());
+                discardNextPlayer();
+            }
+            if (trim.getTier() >= MemoryTrim.PLAYER && isVideo && !mVisible && mPlayer != null) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onMemoryPressure] hidden, codec released");
+                trim.add(mPlayer.getDecoderBytes());
+                releasePlayback();
+            }
+            if (mRenderThread == null) return;
+            trim.begin();
+            boolean isPosted = mRenderThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        trim.add(trimImages(trim.getTier()));
+                    } finally {
+                        trim.finish();
+                    }
+                }
+            });
+            if (!isPosted) trim.finish();
+        }
+
+        /**
+         * release image memory for a trim tier, render thread only
+         * @param tier
+         * @return bytes released, less the downsampled image decoded again
+         */
+        private long trimImages(int tier) {
+            long bytes = trimNextImage() + releaseFade();
+            if (!mVisible) {
+                if (!isVideo && WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[trimImages] hidden, image released");
+                // a hidden slideshow decodes its keyframe again when shown
+                return bytes + releaseImageState() + recycleKeyframeBitmap();
+            }
+            if (tier >= MemoryTrim.DOWNSAMPLE && mImageDownsample == 1 && mImageWallpaper != null
+                    && mImageSource != null && mDecodedScaleMode != null) {
+                mImageDownsample = IMAGE_DOWNSAMPLE;
+                bytes += recycleImageWallpaper();
+                setImageWallpaperMatrix(mImageSource, mDecodedScaleMode);
+                if (mImageWallpaper != null) bytes -= mImageWallpaper.getByteCount();
+                if (WallpaperTrace.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "[trimImages] image on screen at 1/" + mImageDownsample);
+                }
+                forceFrame();
+            }
+            return bytes;
+        }
+
+        /**
+         * stop decoding as soon as the screen goes off
+         */
+        @Override
+        public void onScreenOff() {
+            if (isVideo) suspendPlayback();
+        }
 
-    /**
-     * is source video or image
-     */
-    private static boolean isVideo;
+        /**
+         * resume right away, the first frame is timed from the screen on event
+         */
+        @Override
+        public void onScreenOn() {
+            if (isPlaybackFailed) {
+                // a new chance per screen session, the media server may be back
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onScreenOn] retrying failed playback");
+                isPlaybackFailed = false;
+                mWatchdog.reset();
+            }
+            if (!isVideo || !mVisible || mPlaybackState == PLAYBACK_PLAYING) return;
+            resumePlayback();
+            if (mResumeStartedAt != 0) mResumeStartedAt = ScreenStateDispatcher.getScreenOnAt();
+        }
 
-    /**
-     * set image source to bitmap object
-     */
-    private Bitmap mImageWallpaper;
+        @Override
+        public void onUserPresent() {
+            if (isVideo && mVisible) resumePlayback();
+        }
 
-    /**
-     * call when engine is created
-     * @return
-     */
-    @Override
-    public Engine onCreateEngine() {
-        mMediaPlayer = new MediaPlayer();
-        registerBroadcastReceiver();
-        return new VideoEngine();
-    }
+        /**
+         * battery saver, battery level or charging changed the power tier
+         * @param tier
+         */
+        @Override
+        public void onPowerTierChanged(QualityTier tier) {
+            if (mConfig.getQualityTier() != null) return;
+            applyTier();
+        }
 
-    /**
-     * register the screen on off receiver
-     */
-    private void registerBroadcastReceiver() {
-        IntentFilter mIntentFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
-        mIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
-        if ( mBroadcastReceiver == null ) {
-            mBroadcastReceiver = new ScreenOnOffReceiver();
-            registerReceiver(mBroadcastReceiver, mIntentFilter);
+        /**
+         * call when media player is ready
+         * @param player
+         */
+        @Override
+        public void onPlayerPrepared(WallpaperPlayer player) {
+            startPlayback();
         }
-    }
 
-    /**
-     * get screen  ON/OFF state
-     * @param intent
-     * @param flags
-     * @param startId
-     * @return
-     */
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        boolean screenOn = false;
-        try {
-            screenOn = intent.getBooleanExtra("screen_state", false);
-        } catch (Exception exc) {
-            Log.e(TAG, "[onStartCommand] Exception error: "+exc.getMessage());
+        /**
+         * call when error fired
+         * @param player
+         * @param what
+         * @param extra
+         */
+        @Override
+        public void onPlayerError(WallpaperPlayer player, int what, int extra) {
+            Log.e(TAG, "[Error on media player] what: " + what + " extra: " + extra);
+            mMetrics.increment(WallpaperMetrics.PLAYER_ERRORS);
+            if (player != mPlayer) return;
+            if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) Log.e(TAG, "[onPlayerError] media server died");
+            onPlaybackFailed();
         }
 
-        if (!screenOn) {
-            if (mMediaPlayer != null && isVideo) {
-                mMediaPlayer.start();
+        /**
+         * read the position while playing, a position that stopped moving is a stall
+         */
+        private void checkPlayback() {
+            if (mPlayer == null || mPlaybackState != PLAYBACK_PLAYING) return;
+            long now = SystemClock.uptimeMillis();
+            try {
+                if (mWatchdog.onPosition(mPlayer.getMediaPlayer().getCurrentPosition())) onVideoFrame(now);
+            } catch (IllegalStateException exc) {
+                Log.e(TAG, "[checkPlayback] exception error: " + exc.getMessage());
             }
-        } else {
-            if (mMediaPlayer != null && isVideo) {
-                mMediaPlayer.seekTo(0);
+            if (mWatchdog.isStalled(now)) {
+                Log.e(TAG, "[checkPlayback] no frame for " + PlaybackWatchdog.STALL_TIMEOUT_MS
+                        + " ms at " + mWatchdog.getLastPosition());
+                onPlaybackFailed();
+                return;
             }
+            mHandler.postDelayed(mCheckPlayback, PlaybackWatchdog.CHECK_INTERVAL_MS);
         }
-        return START_NOT_STICKY;
-    }
 
-    /**
-     * call when services is destroyed
-     */
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if (mBroadcastReceiver != null) {
-            Log.i(TAG, "[onDestroy] media player stopped and release");
-            if (mMediaPlayer != null && isVideo) {
-                mMediaPlayer.release();
-                mMediaPlayer = null;
+        /**
+         * the player stalled or died: release it keeping its position and
+         * rebuild it after the backoff, the poster covers the gap,
+         * after repeated failures the poster stays
+         */
+        private void onPlaybackFailed() {
+            mHandler.removeCallbacks(mIdleRelease);
+            mHandler.removeCallbacks(mRecoverPlayback);
+            int position = mWatchdog.getLastPosition();
+            long delay = mWatchdog.onFailure(SystemClock.uptimeMillis());
+            mMetrics.increment(WallpaperMetrics.STALLS);
+            if (position >= 0) mCheckpoint = position;
+            if (mPlayer != null) mPlayerPool.discard(this, mPlayer);
+            mPlayer = null;
+            mPlaybackState = PLAYBACK_RELEASED;
+            isRecoveryPending = delay >= 0;
+            if (isRecoveryPending) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "[onPlaybackFailed] failure " + mWatchdog.getAttempts() + ", rebuilding in "
+                            + delay + " ms from " + mCheckpoint);
+                }
+                mHandler.postDelayed(mRecoverPlayback, delay);
+            } else {
+                Log.e(TAG, "[onPlaybackFailed] giving up after " + PlaybackWatchdog.MAX_ATTEMPTS
+                        + " failures, showing the poster");
+                isPlaybackFailed = true;
+                mMetrics.increment(WallpaperMetrics.POSTER_FALLBACKS);
+            }
+            if (mPoster == null) {
+                loadPoster();
+            } else {
+                drawPoster();
             }
-            unregisterReceiver(mBroadcastReceiver);
         }
-        Log.i(TAG, "[onDestroy] service is destroyed");
-    }
 
-    /**
-     * check file type is video or image
-     */
-    private void checkFileType() {
-        if (!mMimeType.equals(Utility.EMPTY)) {
-            try {
-                String[] words = mMimeType.split("/");
-                if (words[0].equals("video")) {
-                    isVideo = true;
-                } else if(words[0].equals("image")) {
-                    isVideo = false;
-                } else {
-                    Log.i(TAG, "[checkFileType] file type not matched");
+        /**
+         * the backoff expired, a hidden engine rebuilds when it is shown again
+         */
+        private void recoverPlayback() {
+            isRecoveryPending = false;
+            if (!mVisible) {
+                mWatchdog.cancelRecovery();
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[recoverPlayback] attempt " + mWatchdog.getAttempts() + " from " + mCheckpoint);
+            }
+            resumePlayback();
+        }
+
+        private void stopWatchdog() {
+            mHandler.removeCallbacks(mCheckPlayback);
+            mWatchdog.onStopped();
+        }
+
+        /**
+         * forget failures and the pending rebuild, for a new source
+         */
+        private void resetWatchdog() {
+            mHandler.removeCallbacks(mCheckPlayback);
+            mHandler.removeCallbacks(mRecoverPlayback);
+            isRecoveryPending = false;
+            isPlaybackFailed = false;
+            mWatchdog.reset();
+        }
+
+        /**
+         * a video frame reached the surface, the first one after a failure ends the recovery
+         * @param now
+         */
+        private void onVideoFrame(long now) {
+            long recoveryMs = mWatchdog.onFrame(now);
+            if (recoveryMs < 0) return;
+            mMetrics.recordMillis(WallpaperMetrics.RECOVERY, recoveryMs);
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[onVideoFrame] playback recovered after " + recoveryMs + " ms");
+            }
+        }
+
+        @Override
+        public void onPlayerCompletion(WallpaperPlayer player) {
+            if (player == mPlayer && isPlayingOnce()) {
+                advancePlaylist();
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "media player is completed one loop");
+            player.getMediaPlayer().seekTo(0);
+            player.start();
+        }
+
+        @Override
+        public void onPlayerLooped(WallpaperPlayer player, long latencyMs) {
+            mMetrics.recordMillis(WallpaperMetrics.LOOP_BOUNDARY, latencyMs);
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onPlayerLooped] boundary " + latencyMs + " ms");
+        }
+
+        @Override
+        public void onPlayerInfo(WallpaperPlayer player, int what, int extra) {
+            if (what != MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) return;
+            if (player == mPlayer) onVideoFrame(SystemClock.uptimeMillis());
+            if (mResumeStartedAt != 0) {
+                long latency = SystemClock.uptimeMillis() - mResumeStartedAt;
+                mMetrics.recordMillis(WallpaperMetrics.FIRST_FRAME, latency);
+                if (WallpaperTrace.isLoggable(Log.INFO)) {
+                    Log.i(TAG, "[onPlayerInfo] first frame after " + latency + " ms");
                 }
-            } catch (Exception exc) {
-                Log.e(TAG, "[checkFileType] exception error: "+exc.getMessage());
+                mResumeStartedAt = 0;
             }
-        } else {
-            Log.e(TAG, "[checkFileType] mime type is null");
+            releasePoster();
+            onFrameShown();
         }
-    }
 
-    /**
-     * get user related data from SharedPreferences
-     */
-    private void getSharedPreferencesData() {
-        try {
-            SharedPreferences mSharedPreferences = getApplicationContext().getSharedPreferences(Utility.VIDEO_WALLPAPER_DATA, Context.MODE_PRIVATE);
-            mVideoURL = mSharedPreferences.getString(Utility.M_VIDEO_URL, null);
-            isLooping = mSharedPreferences.getBoolean(Utility.IS_LOOPING, false);
-            mMimeType = mSharedPreferences.getString(Utility.MIME_TYPE,Utility.EMPTY);
-            Log.i(TAG,"mVideoURL : " +mVideoURL);
-            Log.i(TAG, "isLooping : " +isLooping);
-            Log.i(TAG, "mimeType : "+mMimeType);
-        } catch (Exception exc) {
-            Log.e(TAG, "[getSharedPreferencesData] error in getSharedPreferences: " +exc.getMessage());
+        /**
+         * a frame reached the screen, the first one ends the cold start
+         */
+        private void onFrameShown() {
+            long createdAt = mCreatedAt;
+            if (createdAt == 0) return;
+            mCreatedAt = 0;
+            mMetrics.recordMillis(WallpaperMetrics.COLD_START, SystemClock.uptimeMillis() - createdAt);
         }
 
-    }
+        /**
+         * the live wallpaper engine took over the player of this preview
+         * @param player
+         */
+        @Override
+        public void onPlayerRevoked(WallpaperPlayer player) {
+            if (mNextPlayer == player) {
+                mNextPlayer = null;
+                return;
+            }
+            if (mPlayer != player) return;
+            mPlayer = null;
+            mHandler.removeCallbacks(mIdleRelease);
+            stopWatchdog();
+            mPlaybackState = PLAYBACK_IDLE;
+        }
 
-    /**
-     * get image from uri and resize
-     */
-    private void setImageWallpaperMatrix() {
-        Bitmap bitmap = null;
-        try {
-            if (mVideoUri != null) {
-                bitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), mVideoUri);
-                mImageWallpaper = setScaleToScreenSize(bitmap);
+        /**
+         * @param uri
+         * @return uri itself for local sources, the cached copy of a remote one,
+         * null while the remote source is not cached yet, its download is started
+         */
+        private Uri localSource(Uri uri) {
+            if (uri == null || !RemoteMediaCache.isRemote(uri.toString())) return uri;
+            RemoteMediaCache cache = RemoteMediaCache.get(VideoWallpaperService.this);
+            File file = cache.getCachedFile(uri.toString());
+            if (file != null) return Uri.fromFile(file);
+            cache.fetch(uri.toString(), this);
+            return null;
+        }
+
+        /**
+         * download of a remote source is complete, called on the download thread
+         * @param url
+         * @param file
+         */
+        @Override
+        public void onCached(final String url, File file) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onMediaCached(url);
+                }
+            });
+        }
+
+        @Override
+        public void onFailed(String url, Exception exc) {
+            Log.e(TAG, "[onFailed] " + url + " exception error: " + exc.getMessage());
+        }
+
+        /**
+         * move the current source to its local copy,
+         * a playing video is moved at its next suspend
+         * @param url
+         */
+        private void onMediaCached(String url) {
+            Uri uri = mVideoUri;
+            if (!mEngines.contains(this) || uri == null || !uri.toString().equals(url)) return;
+            if (!isVideo) {
+                if (mRenderThread != null) mRenderThread.post(mReleaseImage);
+                forceFrame();
+                return;
+            }
+            if (mPlayer == null || mPlaybackUri == null || !RemoteMediaCache.isRemote(mPlaybackUri.toString())) return;
+            if (mPlaybackState == PLAYBACK_PLAYING) {
+                isLocalCopyReady = true;
+                return;
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[onMediaCached] switching to the local copy of " + url);
+            }
+            releasePlayback();
+            if (mVisible) resumePlayback();
+        }
+
+        /**
+         * draw one frame of the image, called on the render thread
+         * @param frameTimeNanos
+         */
+        @Override
+        public void onRenderFrame(long frameTimeNanos) {
+            WallpaperConfig config = mConfig;
+            if (config.getVideoUri() == null) return;
+            if (config.isVideo()) {
+                renderKeyframes();
+                return;
+            }
+            if (config != mImageConfig) {
+                if (mImageConfig == null || mImageConfig.isSourceChanged(config)
+                        || mImageConfig.isParallax() != config.isParallax()) {
+                    Bitmap fadeFrom = null;
+                    if (isCrossfade(config)) {
+                        // keep the previous image, it fades out under the new one
+                        fadeFrom = mImageWallpaper;
+                        mFadeMatrix.set(mDrawMatrix);
+                        mImageWallpaper = null;
+                    }
+                    releaseImageState();
+                    if (!adoptNextImage(config)) {
+                        mImageSource = localSource(config.getVideoUri());
+                        if (config.isParallax()) {
+                            mTiledRenderer = new TiledImageRenderer();
+                        } else if (AnimatedImage.isAnimatedType(config.getMimeType())) {
+                            mAnimatedRenderer = new AnimatedImageRenderer();
+                        }
+                    }
+                    if (fadeFrom != null) {
+                        mFadeImage = fadeFrom;
+                        mFadeStartedAt = SystemClock.uptimeMillis();
+                        mRenderThread.setContinuous(true);
+                    }
+                }
+                mImageConfig = config;
+            }
+            // drawn once the remote image is in the cache
+            if (mImageSource == null) return;
+            if (mTiledRenderer != null && !mTiledRenderer.isOpen()
+                    && !mTiledRenderer.open(getContentResolver(), mImageSource)) {
+                Log.e(TAG, "[onRenderFrame] region decode failed, drawing full image");
+                mTiledRenderer = null;
+            }
+            if (mAnimatedRenderer != null && (!mAnimatedRenderer.isOpen() || mDecodedWidth != mSurfaceWidth
+                    || mDecodedHeight != mSurfaceHeight || mDecodedScaleMode != config.getScaleMode())
+                    && !openAnimation(mImageSource, config.getScaleMode())) {
+                // a single frame GIF or WebP is a still image
+                mAnimatedRenderer = null;
+            }
+            if (mTiledRenderer != null) {
+                mTiledRenderer.setSurfaceSize(mSurfaceWidth, mSurfaceHeight);
+                mTiledRenderer.setOffsets(mXOffset, mYOffset);
+            } else if (mAnimatedRenderer != null) {
+                mDrawnImage = mAnimatedRenderer.obtainFrame(SystemClock.uptimeMillis(), mTier.isAnimated());
+                scheduleAnimationFrame();
+                // nothing to draw until the decode thread composed the first frame
+                if (mDrawnImage == null) return;
             } else {
-                Log.e(TAG, "[setImageWallpaperMatrix] URL is null");
+                if (mImageWallpaper == null || mDecodedWidth != mSurfaceWidth
+                        || mDecodedHeight != mSurfaceHeight || mDecodedScaleMode != config.getScaleMode()) {
+                    setImageWallpaperMatrix(mImageSource, config.getScaleMode());
+                }
+                mDrawnImage = mImageWallpaper;
+            }
+            long fadeTime = SystemClock.uptimeMillis() - mFadeStartedAt;
+            if (mFadeImage != null) mFadeAlpha = (int) Math.min(255, fadeTime * 255 / CROSSFADE_MS);
+            drawFrameToCanvas();
+            if (mFadeImage != null && fadeTime >= CROSSFADE_MS) releaseFade();
+            if (mTiledRenderer != null) {
+                mRenderThread.removeCallbacks(mPrefetchThread);
+                mRenderThread.post(mPrefetchThread);
+            }
+            WallpaperConfig next = mNextConfig;
+            if (next != null && !next.isVideo() && mFadeImage == null && mNextImageConfig != next) {
+                mRenderThread.removeCallbacks(mPrefetchNextImage);
+                mRenderThread.post(mPrefetchNextImage);
             }
-        } catch (IOException exc) {
-            Log.e(TAG, "[setImageWallpaperMatrix] exception error: "+exc.getMessage());
         }
-    }
 
-    /**
-     * resize bitmap to fit with device screen
-     * @param original
-     * @return
-     */
-    private Bitmap setScaleToScreenSize(Bitmap original) {
-        Bitmap outputBitmap = null;
-        try {
-            DisplayMetrics metrics = new DisplayMetrics();
-            WindowManager mWindowManager = ((WindowManager) getApplicationContext().getSystemService(WINDOW_SERVICE));
-            mWindowManager.getDefaultDisplay().getMetrics(metrics);
+        /**
+         * show the keyframe slideshow, each keyframe is decoded when it is due
+         * and fades in over the previous one, render thread only
+         */
+        private void renderKeyframes() {
+            KeyframeCache.Keyframes keyframes = mKeyframes;
+            if (keyframes == null) return;
+            if (mShownKeyframes != keyframes) {
+                mShownKeyframes = keyframes;
+                mKeyframeIndex = -1;
+            }
+            long now = SystemClock.uptimeMillis();
+            boolean isDue = mKeyframeIndex < 0 || now - mKeyframeShownAt >= KEYFRAME_INTERVAL_MS;
+            if (isDue || mKeyframeBitmap == null) {
+                // a trimmed keyframe is decoded again in place
+                int index = isDue ? (mKeyframeIndex + 1) % keyframes.size() : mKeyframeIndex;
+                Bitmap frame = keyframes.decode(index, mKeyframeBitmap);
+                if (frame == null) return;
+                if (mKeyframeBitmap != null && frame != mKeyframeBitmap) mKeyframeBitmap.recycle();
+                mKeyframeBitmap = frame;
+                isKeyframeUploaded = false;
+                if (isDue) {
+                    mKeyframeIndex = index;
+                    mKeyframeShownAt = now;
+                }
+            }
+            float alpha = Math.min(1f, (float) (now - mKeyframeShownAt) / CROSSFADE_MS);
+            synchronized (mSurfaceLock) {
+                if (!mSurfaceReady || mSurfaceHolder == null || mKeyframes != keyframes) return;
+                if (!mKeyframeRenderer.isOpen()) {
+                    if (!mKeyframeRenderer.open(mSurfaceHolder)) return;
+                    isKeyframeSurfaceHeld = true;
+                    isKeyframeUploaded = false;
+                }
+                if (!isKeyframeUploaded) {
+                    if (!mKeyframeRenderer.setImage(mKeyframeBitmap)) return;
+                    isKeyframeUploaded = true;
+                }
+                if (!mKeyframeRenderer.drawFrame(alpha, mConfig.getScaleMode())) return;
+            }
+            onFrameShown();
+            // redraw at AMBIENT_FRAME_RATE while fading, then wait for the next keyframe
+            mRenderThread.setContinuous(alpha < 1f);
+            mRenderThread.removeCallbacks(mNextKeyframe);
+            if (alpha >= 1f && keyframes.size() > 1) {
+                mRenderThread.postDelayed(mNextKeyframe, KEYFRAME_INTERVAL_MS - (now - mKeyframeShownAt));
+            }
+        }
 
-            int original_width = original.getWidth();
-            int original_height = original.getHeight();
+        /**
+         * close the keyframe session and drop the slideshow, render thread only
+         */
+        private void releaseKeyframes() {
+            if (mRenderThread != null) {
+                mRenderThread.removeCallbacks(mNextKeyframe);
+                mRenderThread.setContinuous(false);
+            }
+            boolean wasHeld;
+            synchronized (mSurfaceLock) {
+                wasHeld = isKeyframeSurfaceHeld;
+                mKeyframeRenderer.close();
+                isKeyframeSurfaceHeld = false;
+            }
+            recycleKeyframeBitmap();
+            mShownKeyframes = null;
+            mKeyframeIndex = -1;
+            if (wasHeld) mHandler.post(mKeyframesReleased);
+        }
 
-            int metrics_width = metrics.widthPixels;
-            int metrics_height = metrics.heightPixels;
+        /**
+         * @return bytes released
+         */
+        private long recycleKeyframeBitmap() {
+            if (mKeyframeBitmap == null) return 0;
+            long bytes = mKeyframeBitmap.getByteCount();
+            mKeyframeBitmap.recycle();
+            mKeyframeBitmap = null;
+            return bytes;
+        }
 
-            float scaledWidth = (float) metrics_width/ (float) original_width;
-            float scaledHeight = (float) metrics_height/ (float) original_height;
+        /**
+         * @param config
+         * @return true when the switch to config fades over the image on screen
+         */
+        private boolean isCrossfade(WallpaperConfig config) {
+            PlaylistItem item = config.getPlaylistItem();
+            return item != null && item.getTransition() == PlaylistItem.Transition.CROSSFADE
+                    && mTier.isAnimated() && mImageWallpaper != null && mTiledRenderer == null && mMatrixWidth > 0
+                    && !config.isParallax();
+        }
 
-            //crate a matrix for scaled image
-            Matrix matrix = new Matrix();
-            matrix.postScale(scaledWidth, scaledHeight);
+        /**
+         * start the animation for the current surface size, render thread only
+         * @param source
+         * @param scaleMode
+         * @return false when source is not animated
+         */
+        private boolean openAnimation(Uri source, ScaleMode scaleMode) {
+            ensureSurfaceSize();
+            mAnimatedRenderer.close();
+            mAnimatedRenderer = new AnimatedImageRenderer();
+            mDrawnImage = null;
+            // the ring bitmaps are new, the matrix is computed again at the next draw
+            mMatrixWidth = 0;
+            mMatrixHeight = 0;
+            mDecodedWidth = mSurfaceWidth;
+            mDecodedHeight = mSurfaceHeight;
+            mDecodedScaleMode = scaleMode;
+            return mAnimatedRenderer.open(getContentResolver(), source, mSurfaceWidth, mSurfaceHeight, scaleMode);
+        }
 
-            //recreate bitmap
-            outputBitmap = Bitmap.createBitmap(original, 0, 0, original_width, original_height, matrix, true);
+        /**
+         * redraw at the delay of the next animation frame,
+         * a tier that does not animate keeps the frame on screen
+         */
+        private void scheduleAnimationFrame() {
+            mRenderThread.removeCallbacks(mAnimationFrame);
+            if (mDrawnImage != null && !mTier.isAnimated()) return;
+            long delay = mAnimatedRenderer.getNextFrameDelay(SystemClock.uptimeMillis());
+            if (delay >= 0) mRenderThread.postDelayed(mAnimationFrame, delay);
+        }
 
-        } catch (Exception exc) {
-           Log.e(TAG, "[setScaleToScreenSize] exception error: "+exc.getMessage());
+        /**
+         * @return bytes released
+         */
+        private long releaseFade() {
+            if (mFadeImage == null) return 0;
+            mRenderThread.setContinuous(false);
+            long bytes = mImageCache.release(mFadeImage);
+            mFadeImage = null;
+            return bytes;
         }
-        return outputBitmap;
-    }
 
+        /**
+         * take the next slot as the current image when it was decoded for config
+         * @param config
+         * @return false when the image has to be decoded now
+         */
+        private boolean adoptNextImage(WallpaperConfig config) {
+            ensureSurfaceSize();
+            if (mNextImage == null || mNextImageConfig.isSourceChanged(config) || config.isParallax()
+                    || mNextImageConfig.getScaleMode() != config.getScaleMode()
+                    || mNextDecodedWidth != mSurfaceWidth || mNextDecodedHeight != mSurfaceHeight) {
+                return false;
+            }
+            mImageWallpaper = mNextImage;
+            mImageSource = mNextImageSource;
+            mDecodedWidth = mNextDecodedWidth;
+            mDecodedHeight = mNextDecodedHeight;
+            mDecodedScaleMode = config.getScaleMode();
+            mMatrixWidth = 0;
+            mMatrixHeight = 0;
+            mNextImage = null;
+            mNextImageConfig = null;
+            mNextImageSource = null;
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[adoptNextImage] " + config.getVideoUrl());
+            return true;
+        }
 
+        /**
+         * decode the next playlist image into the next slot, render thread only
+         */
+        private void prefetchNextImage() {
+            WallpaperConfig next = mNextConfig;
+            WallpaperConfig current = mConfig;
+            if (next == null || next.isVideo() || next.getVideoUri() == null || next.isParallax()
+                    || AnimatedImage.isAnimatedType(next.getMimeType())) {
+                // animations are opened when they are shown
+                return;
+            }
+            // the image on screen takes its own prefetched bitmap first
+            if (mFadeImage != null || (!current.isVideo() && mImageConfig != current)) return;
+            ensureSurfaceSize();
+            if (mNextImage != null && !next.isSourceChanged(mNextImageConfig)
+                    && next.getScaleMode() == mNextImageConfig.getScaleMode()
+                    && mNextDecodedWidth == mSurfaceWidth && mNextDecodedHeight == mSurfaceHeight) {
+                mNextImageConfig = next;
+                return;
+            }
+            releaseNextImage();
+            // tried once per item, a failed or downloading image is decoded at the switch
+            mNextImageConfig = next;
+            Uri source = localSource(next.getVideoUri());
+            if (source == null) return;
+            mNextImage = mImageCache.acquire(getContentResolver(), source,
+                    mSurfaceWidth, mSurfaceHeight, next.getScaleMode());
+            if (mNextImage == null) return;
+            mNextImageSource = source;
+            mNextDecodedWidth = mSurfaceWidth;
+            mNextDecodedHeight = mSurfaceHeight;
+            if (WallpaperTrace.isLoggable(Log.INFO)) {
+                Log.i(TAG, "[prefetchNextImage] next slot ready " + next.getVideoUrl());
+            }
+        }
 
-    /**
-     * convert URL to Uri object
-     * @return
-     */
-    private Uri mVideoUrlToUri() {
-        Uri uri = null;
-        try {
-            uri = Uri.parse(mVideoURL);
-        } catch (Exception exc) {
-            Log.e(TAG, "[mVideoUrlToUri] Can not convert URL: "+exc.getMessage());
-        }
-        return uri;
-    }
+        /**
+         * drop the decoded next image, the item counts as prefetched
+         * and is decoded when it is shown
+         * @return bytes released
+         */
+        private long trimNextImage() {
+            if (mNextImage == null) return 0;
+            long bytes = mImageCache.release(mNextImage);
+            mNextImage = null;
+            mNextImageSource = null;
+            return bytes;
+        }
 
-    /**
-     * inner class for engine
-     */
-    class VideoEngine extends Engine {
-        private static final String TAG = "VideoEngine";
-        private SurfaceHolder mSurfaceHolder;
-        private final Handler mHandler = new Handler();
-        private Runnable mDrawThread;
-        private int mFrameRate = 20;
-        private boolean mVisible;
+        private void releaseNextImage() {
+            if (mNextImage != null) {
+                mImageCache.release(mNextImage);
+                mNextImage = null;
+            }
+            mNextImageConfig = null;
+            mNextImageSource = null;
+        }
 
-        public VideoEngine() {
-            super();
-            // image/jpeg video/mp4
-            getSharedPreferencesData();
-            checkFileType();
-            mVideoUri = mVideoUrlToUri();
-            Log.i(TAG, "[Video engine started]");
-            if (mVideoUri != null && isVideo) {
-                Log.i(TAG, "Url is video");
-                try {
-                    mMediaPlayer.setDataSource(getApplicationContext(), mVideoUri);
-                    mMediaPlayer.prepareAsync();
-                    mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-
-                        /**
-                         * call when media player is ready
-                         * @param mp
-                         */
-                        @Override
-                        public void onPrepared(MediaPlayer mp) {
-                            if (mSurfaceHolder != null) {
-                                mp.setSurface(mSurfaceHolder.getSurface());
-                                mp.setLooping(true);
-                                mp.setVolume(0,0);
-                                mp.start();
-                                Log.i(TAG, "media player is started");
-                            } else {
-                                Log.i(TAG, "Surface is not ready");
-                            }
-                        }
-                    });
-
-                    mMediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
-                        /**
-                         * call when error fired
-                         * @param mp
-                         * @param what
-                         * @param extra
-                         * @return
-                         */
-                        @Override
-                        public boolean onError(MediaPlayer mp, int what, int extra) {
-                            Log.e(TAG, "[Error on media player]");
-                            Log.e(TAG, "[mp] "+mp);
-                            Log.e(TAG, "[what] "+what);
-                            Log.e(TAG, "[extra] "+extra);
-                            return false;
-                        }
-                    });
+        /**
+         * display size until the surface reports its own
+         */
+        private void ensureSurfaceSize() {
+            if (mSurfaceWidth > 0 && mSurfaceHeight > 0) return;
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            mSurfaceWidth = metrics.widthPixels;
+            mSurfaceHeight = metrics.heightPixels;
+        }
 
-                    mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                        @Override
-                        public void onCompletion(MediaPlayer mp) {
-                            Log.i(TAG, "media player is completed one loop");
-                            mp.seekTo(0);
-                        }
-                    });
+        /**
+         * decode the image for the current surface size and scale mode,
+         * or share the bitmap another engine already decoded for it,
+         * the previous bitmap is released so only one stays resident
+         */
+        private void setImageWallpaperMatrix(Uri uri, ScaleMode scaleMode) {
+            if (uri == null) {
+                Log.e(TAG, "[setImageWallpaperMatrix] URL is null");
+                return;
+            }
+            ensureSurfaceSize();
+            recycleImageWallpaper();
+            mImageWallpaper = mImageCache.acquire(getContentResolver(), uri,
+                    mSurfaceWidth / mImageDownsample, mSurfaceHeight / mImageDownsample, scaleMode);
+            mDecodedWidth = mSurfaceWidth;
+            mDecodedHeight = mSurfaceHeight;
+            mDecodedScaleMode = scaleMode;
+            // new bitmap, the matrix is computed again at the next draw
+            mMatrixWidth = 0;
+            mMatrixHeight = 0;
+        }
+
+        /**
+         * place the decoded image on a canvas of width x height
+         * with the scale mode it was decoded for
+         * @param width
+         * @param height
+         */
+        private void updateDrawMatrix(int width, int height) {
+            boolean traced = WallpaperTrace.begin(WallpaperTrace.SCALE);
+            ScaleMode scaleMode = mDecodedScaleMode != null ? mDecodedScaleMode : ScaleMode.CENTER_CROP;
+            int bitmapWidth = mDrawnImage.getWidth();
+            int bitmapHeight = mDrawnImage.getHeight();
+            scaleMode.computeTransform(bitmapWidth, bitmapHeight, width, height, mTransform);
+            mDrawMatrix.setScale(mTransform[0], mTransform[1]);
+            mDrawMatrix.postTranslate(mTransform[2], mTransform[3]);
+            isCanvasCovered = scaleMode.coversTarget(bitmapWidth, bitmapHeight, width, height);
+            mMatrixWidth = width;
+            mMatrixHeight = height;
+            WallpaperTrace.end(traced);
+        }
 
+        /**
+         * release the decoded image
+         * @return bytes released
+         */
+        private long recycleImageWallpaper() {
+            if (mImageWallpaper == null) return 0;
+            if (mDrawnImage == mImageWallpaper) mDrawnImage = null;
+            long bytes = mImageCache.release(mImageWallpaper);
+            mImageWallpaper = null;
+            return bytes;
+        }
 
-                } catch (Exception exc) {
-                    Log.e(TAG,"Exception: "+exc.getMessage());
-                }
-            } else if (mVideoUri != null && !isVideo) {
-                Log.i(TAG, "Url is image");
-                mDrawThread = new Runnable() {
-                    @Override
-                    public void run() {
-                        setImageWallpaperMatrix();
-                        try {
-                            Thread.sleep(50);
-                        } catch (Exception exc) {
-                            Log.e(TAG, "[VideoEngine] exception error: "+exc.getMessage());
-                        }
-                        drawFrameToCanvas();
-                    }
-                };
-            }else {
-                Log.e(TAG,"video url is null");
+        /**
+         * release everything decoded for the current image source,
+         * the next source is decoded at full resolution again
+         * @return bytes released
+         */
+        private long releaseImageState() {
+            long bytes = recycleImageWallpaper() + releaseFade();
+            if (mTiledRenderer != null) {
+                bytes += mTiledRenderer.getByteCount();
+                mTiledRenderer.close();
+                mTiledRenderer = null;
+            }
+            if (mAnimatedRenderer != null) {
+                if (mRenderThread != null) mRenderThread.removeCallbacks(mAnimationFrame);
+                bytes += mAnimatedRenderer.getByteCount();
+                mAnimatedRenderer.close();
+                mAnimatedRenderer = null;
+                mDrawnImage = null;
             }
+            mImageConfig = null;
+            mImageSource = null;
+            mImageDownsample = 1;
+            return bytes;
         }
 
         /**
-         * get bitmap image and draw on the canvas
+         * schedule a redraw of the image on the next vsync, invalidations
+         * that arrive before the pending frame is drawn are coalesced
+         */
+        private void requestFrame() {
+            if (mTier == QualityTier.PAUSED) return;
+            forceFrame();
+        }
+
+        /**
+         * redraw even when paused, the image itself or the surface changed
+         */
+        private void forceFrame() {
+            if (mRenderThread == null || !mVisible) return;
+            mRenderThread.requestRender();
+        }
+
+        /**
+         * drop the pending redraw if any
+         */
+        private void cancelFrame() {
+            if (mRenderThread == null) return;
+            mRenderThread.cancelRender();
+            mRenderThread.removeCallbacks(mPrefetchThread);
+            mRenderThread.removeCallbacks(mAnimationFrame);
+            mRenderThread.removeCallbacks(mNextKeyframe);
+        }
+
+        /**
+         * get bitmap image and draw on the canvas, called on the render thread
          */
         private void drawFrameToCanvas() {
+            synchronized (mSurfaceLock) {
+                if (mSurfaceReady) drawFrameToSurface();
+            }
+        }
+
+        private void drawFrameToSurface() {
             Canvas mCanvas = null;
+            long drawStartedAt = 0;
+            boolean isDrawTraced = false;
             try {
                 if (mSurfaceHolder == null) {
                     mSurfaceHolder = getSurfaceHolder();
                 }
                 if (mSurfaceHolder != null) {
-                    mCanvas = mSurfaceHolder.lockCanvas();
-                    if (mCanvas != null && mImageWallpaper != null) {
-                        mCanvas.drawBitmap(mImageWallpaper, 00.0f,00.0f, null);
-                    } else {
+                    long lockStartedAt = System.nanoTime();
+                    boolean isLockTraced = WallpaperTrace.begin(WallpaperTrace.LOCK_CANVAS);
+                    try {
+                        mCanvas = mSurfaceHolder.lockCanvas();
+                    } finally {
+                        WallpaperTrace.end(isLockTraced);
+                    }
+                    drawStartedAt = System.nanoTime();
+                    isDrawTraced = WallpaperTrace.begin(WallpaperTrace.DRAW);
+                    mMetrics.recordNanos(WallpaperMetrics.LOCK_CANVAS, drawStartedAt - lockStartedAt);
+                    if (mCanvas != null && mTiledRenderer != null) {
+                        mTiledRenderer.draw(mCanvas);
+                    } else if (mCanvas != null && mDrawnImage != null) {
+                        if (mCanvas.getWidth() != mMatrixWidth || mCanvas.getHeight() != mMatrixHeight) {
+                            updateDrawMatrix(mCanvas.getWidth(), mCanvas.getHeight());
+                        }
+                        if (!isCanvasCovered || mFadeImage != null) mCanvas.drawColor(Color.BLACK);
+                        if (mFadeImage != null) {
+                            mCanvas.drawBitmap(mFadeImage, mFadeMatrix, mBitmapPaint);
+                            mFadePaint.setAlpha(mFadeAlpha);
+                            mCanvas.drawBitmap(mDrawnImage, mDrawMatrix, mFadePaint);
+                        } else {
+                            mCanvas.drawBitmap(mDrawnImage, mDrawMatrix, mBitmapPaint);
+                        }
+                    } else if (WallpaperTrace.isLoggable(Log.ERROR)) {
                         Log.e(TAG, "[drawFrameToCanvas] canvas is null or bitmap null");
                     }
-                } else {
+                } else if (WallpaperTrace.isLoggable(Log.ERROR)) {
                     Log.e(TAG, "[drawFrameToCanvas] mSurfaceHolder is null");
                 }
             } catch (Exception exc) {
-                Log.e(TAG, "[drawFrameToCanvas] exception error: "+exc.getMessage());
+                if (WallpaperTrace.isLoggable(Log.ERROR)) {
+                    Log.e(TAG, "[drawFrameToCanvas] exception error: "+exc.getMessage());
+                }
             } finally {
-                if (mCanvas != null && mSurfaceHolder != null) mSurfaceHolder.unlockCanvasAndPost(mCanvas);
-            }
-
-            if (mHandler != null) {
-                mHandler.removeCallbacks(mDrawThread);
-                if (mVisible) mHandler.postDelayed(mDrawThread, 1000/mFrameRate);
-            } else {
-                Log.e(TAG, "[drawFrameToCanvas] handler thread is null");
+                WallpaperTrace.end(isDrawTraced);
+                if (mCanvas != null && mSurfaceHolder != null) {
+                    boolean isPostTraced = WallpaperTrace.begin(WallpaperTrace.POST);
+                    try {
+                        mSurfaceHolder.unlockCanvasAndPost(mCanvas);
+                    } finally {
+                        WallpaperTrace.end(isPostTraced);
+                    }
+                    mMetrics.recordNanos(WallpaperMetrics.DRAW, System.nanoTime() - drawStartedAt);
+                    onFrameShown();
+                }
             }
-
         }
 
 
@@ -382,12 +1997,22 @@ public class VideoWallpaperService extends WallpaperService {
         @Override
         public void onVisibilityChanged(boolean visible) {
             mVisible = visible;
-            if (visible && !isVideo) {
-                Log.i(TAG, "Visibility true");
-                drawFrameToCanvas();
+            if (visible) {
+                scheduleAdvance();
+            } else {
+                pauseAdvance();
+            }
+            if (visible && isVideo) {
+                resumePlayback();
+            } else if (!visible && isVideo) {
+                suspendPlayback();
+                if (mAmbientKey != null) cancelFrame();
+            } else if (visible && !isVideo) {
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "Visibility true");
+                requestFrame();
             } else if (!visible && !isVideo) {
-                Log.i(TAG, "visibility false");
-                if (mHandler != null && mDrawThread != null) mHandler.removeCallbacks(mDrawThread);
+                if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "visibility false");
+                cancelFrame();
             }
         }
 
@@ -401,8 +2026,10 @@ public class VideoWallpaperService extends WallpaperService {
         @Override
         public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height){
             super.onSurfaceChanged(holder, format, width, height);
-            if (!isVideo) drawFrameToCanvas();
-            Log.i(TAG, "surface is changed");
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            if (!isVideo) forceFrame();
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "surface is changed");
         }
 
         /**
@@ -411,8 +2038,17 @@ public class VideoWallpaperService extends WallpaperService {
          */
         @Override
         public void onSurfaceCreated(SurfaceHolder holder){
-            this.mSurfaceHolder = holder;
-            Log.i(TAG, "surface is created");
+            synchronized (mSurfaceLock) {
+                this.mSurfaceHolder = holder;
+                mSurfaceReady = true;
+            }
+            if (isVideo) {
+                // the poster covers the time until the first video frame
+                // and stands in for the video while the tier does not decode it
+                drawPoster();
+                startPlayback();
+            }
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "surface is created");
         }
 
         /**
@@ -429,7 +2065,9 @@ public class VideoWallpaperService extends WallpaperService {
                                      float xStep, float yStep, int xPixels, int yPixels) {
             super.onOffsetsChanged(xOffset, yOffset,xStep, yStep,
                     xPixels, yPixels);
-            if (!isVideo) drawFrameToCanvas();
+            mXOffset = xOffset;
+            mYOffset = yOffset;
+            if (!isVideo) requestFrame();
         }
 
 
@@ -441,12 +2079,18 @@ public class VideoWallpaperService extends WallpaperService {
         public void onSurfaceDestroyed(SurfaceHolder holder) {
             super.onSurfaceDestroyed(holder);
             mVisible = false;
-            if (mMediaPlayer != null && isVideo) {
-                mMediaPlayer.setLooping(isLooping);
-            } else if (!isVideo) {
-                mHandler.removeCallbacks(mDrawThread);
+            synchronized (mSurfaceLock) {
+                mSurfaceReady = false;
+                // a new surface opens a new session
+                mKeyframeRenderer.close();
+                isKeyframeSurfaceHeld = false;
+            }
+            if (isVideo) {
+                suspendPlayback();
+            } else {
+                cancelFrame();
             }
-            Log.i(TAG, "surface is destroyed");
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "surface is destroyed");
         }
 
         /**
@@ -455,7 +2099,17 @@ public class VideoWallpaperService extends WallpaperService {
         @Override
         public void onDestroy() {
             super.onDestroy();
-            if (!isVideo && mDrawThread != null) mHandler.removeCallbacks(mDrawThread);
+            mEngines.remove(this);
+            ScreenStateDispatcher.unregister(VideoWallpaperService.this, this);
+            ConfigStore.removeListener(this);
+            mHandler.removeCallbacks(mIdleRelease);
+            mHandler.removeCallbacks(mAdvancePlaylist);
+            resetWatchdog();
+            discardNextPlayer();
+            if (mPlayer != null && mPlayerPool != null) mPlayerPool.release(this, mPlayer);
+            mPlayer = null;
+            // a frame still drawing past the quit timeout releases them itself
+            if (mRenderThread == null || !mRenderThread.quit(mReleaseDrawables)) mReleaseDrawables.run();
         }
     }
 }
@@ -0,0 +1,302 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * immutable snapshot of the wallpaper settings
+ * every saved change gets a higher version
+ */
+final class WallpaperConfig {
+
+    private static final String TAG = "WallpaperConfig";
+
+    private final int mVersion;
+    private final String mVideoUrl;
+    private final String mMimeType;
+    private final boolean isParallax;
+    private final boolean isSeamlessLoop;
+
+    /**
+     * video plays as a keyframe slideshow without a decoder in the REDUCED tier
+     */
+    private final boolean isAmbientMode;
+    private final ScaleMode mScaleMode;
+    private final int mFrameRate;
+    private final long mIdleReleaseTimeout;
+
+    /**
+     * tier set by the app, null to follow the power state
+     */
+    private final QualityTier mQualityTier;
+
+    /**
+     * items of a playlist, empty for a single source
+     */
+    private final List<PlaylistItem> mPlaylist;
+
+    /**
+     * playlist item this snapshot shows, -1 for the playlist as a whole
+     */
+    private final int mPlaylistIndex;
+
+    /**
+     * parsed once, the url never changes in a snapshot
+     */
+    private final Uri mVideoUri;
+
+    private WallpaperConfig(Builder builder) {
+        mVersion = builder.mVersion;
+        mVideoUrl = builder.mVideoUrl;
+        mMimeType = builder.mMimeType;
+        isParallax = builder.isParallax;
+        isSeamlessLoop = builder.isSeamlessLoop;
+        isAmbientMode = builder.isAmbientMode;
+        mScaleMode = builder.mScaleMode;
+        mFrameRate = builder.mFrameRate;
+        mIdleReleaseTimeout = builder.mIdleReleaseTimeout;
+        mQualityTier = builder.mQualityTier;
+        mPlaylist = builder.mPlaylist;
+        mPlaylistIndex = builder.mPlaylistIndex;
+        mVideoUri = parseUrl(mVideoUrl);
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    String getVideoUrl() {
+        return mVideoUrl;
+    }
+
+    Uri getVideoUri() {
+        return mVideoUri;
+    }
+
+    String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @return true for video/* sources, false for images and unknown types
+     */
+    boolean isVideo() {
+        return MediaSignatures.isVideo(mMimeType);
+    }
+
+    boolean isParallax() {
+        return isParallax;
+    }
+
+    boolean isSeamlessLoop() {
+        return isSeamlessLoop;
+    }
+
+    boolean isAmbientMode() {
+        return isAmbientMode;
+    }
+
+    ScaleMode getScaleMode() {
+        return mScaleMode;
+    }
+
+    int getFrameRate() {
+        return mFrameRate;
+    }
+
+    long getIdleReleaseTimeout() {
+        return mIdleReleaseTimeout;
+    }
+
+    QualityTier getQualityTier() {
+        return mQualityTier;
+    }
+
+    boolean hasPlaylist() {
+        return !mPlaylist.isEmpty();
+    }
+
+    List<PlaylistItem> getPlaylist() {
+        return mPlaylist;
+    }
+
+    int getPlaylistIndex() {
+        return mPlaylistIndex;
+    }
+
+    /**
+     * @return the playlist item shown by this snapshot, null if it is not an item snapshot
+     */
+    PlaylistItem getPlaylistItem() {
+        return mPlaylistIndex >= 0 && mPlaylistIndex < mPlaylist.size() ? mPlaylist.get(mPlaylistIndex) : null;
+    }
+
+    /**
+     * @param index
+     * @return snapshot with the same settings showing playlist item index
+     */
+    WallpaperConfig forItem(int index) {
+        PlaylistItem item = mPlaylist.get(index);
+        return buildUpon()
+                .setVideoUrl(item.getUrl())
+                .setMimeType(item.getMimeType())
+                .setPlaylistIndex(index)
+                .build();
+    }
+
+    /**
+     * @return true when a playlist item is not a video
+     */
+    boolean hasImageItem() {
+        for (int i = 0; i < mPlaylist.size(); i++) {
+            if (!MediaSignatures.isVideo(mPlaylist.get(i).getMimeType())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param other
+     * @return true when other has a different playlist
+     */
+    boolean isPlaylistChanged(WallpaperConfig other) {
+        return other == null || !mPlaylist.equals(other.mPlaylist);
+    }
+
+    /**
+     * @param other
+     * @return true when other shows a different source than this snapshot
+     */
+    boolean isSourceChanged(WallpaperConfig other) {
+        return other == null || !equals(mVideoUrl, other.mVideoUrl) || !equals(mMimeType, other.mMimeType);
+    }
+
+    Builder buildUpon() {
+        return new Builder()
+                .setVersion(mVersion)
+                .setVideoUrl(mVideoUrl)
+                .setMimeType(mMimeType)
+                .setParallax(isParallax)
+                .setSeamlessLoop(isSeamlessLoop)
+                .setAmbientMode(isAmbientMode)
+                .setScaleMode(mScaleMode)
+                .setFrameRate(mFrameRate)
+                .setIdleReleaseTimeout(mIdleReleaseTimeout)
+                .setQualityTier(mQualityTier)
+                .setPlaylist(mPlaylist)
+                .setPlaylistIndex(mPlaylistIndex);
+    }
+
+    @Override
+    public String toString() {
+        return "WallpaperConfig{v" + mVersion + " " + mVideoUrl + " " + mMimeType
+                + " parallax=" + isParallax
+                + " seamless=" + isSeamlessLoop + " ambient=" + isAmbientMode + " scale=" + mScaleMode
+                + " fps=" + mFrameRate + " idle=" + mIdleReleaseTimeout
+                + " tier=" + (mQualityTier != null ? mQualityTier : "auto")
+                + (hasPlaylist() ? " item=" + mPlaylistIndex + "/" + mPlaylist.size() : "") + "}";
+    }
+
+    private static Uri parseUrl(String url) {
+        if (url == null || url.isEmpty()) return null;
+        try {
+            return Uri.parse(url);
+        } catch (Exception exc) {
+            Log.e(TAG, "[parseUrl] Can not convert URL: " + exc.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * builder for a new snapshot
+     */
+    static final class Builder {
+        private int mVersion;
+        private String mVideoUrl;
+        private String mMimeType;
+        private boolean isParallax;
+        private boolean isSeamlessLoop;
+        private boolean isAmbientMode;
+        private ScaleMode mScaleMode = ScaleMode.CENTER_CROP;
+        private int mFrameRate = Utility.DEFAULT_FRAME_RATE;
+        private long mIdleReleaseTimeout = Utility.DEFAULT_IDLE_RELEASE_TIMEOUT;
+        private QualityTier mQualityTier;
+        private List<PlaylistItem> mPlaylist = Collections.emptyList();
+        private int mPlaylistIndex = -1;
+
+        Builder setVersion(int version) {
+            mVersion = version;
+            return this;
+        }
+
+        Builder setVideoUrl(String videoUrl) {
+            mVideoUrl = videoUrl;
+            return this;
+        }
+
+        Builder setMimeType(String mimeType) {
+            mMimeType = mimeType;
+            return this;
+        }
+
+        Builder setParallax(boolean parallax) {
+            isParallax = parallax;
+            return this;
+        }
+
+        Builder setSeamlessLoop(boolean seamlessLoop) {
+            isSeamlessLoop = seamlessLoop;
+            return this;
+        }
+
+        Builder setAmbientMode(boolean ambientMode) {
+            isAmbientMode = ambientMode;
+            return this;
+        }
+
+        Builder setScaleMode(ScaleMode scaleMode) {
+            mScaleMode = scaleMode != null ? scaleMode : ScaleMode.CENTER_CROP;
+            return this;
+        }
+
+        Builder setFrameRate(int frameRate) {
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        Builder setIdleReleaseTimeout(long idleReleaseTimeout) {
+            mIdleReleaseTimeout = idleReleaseTimeout;
+            return this;
+        }
+
+        Builder setQualityTier(QualityTier qualityTier) {
+            mQualityTier = qualityTier;
+            return this;
+        }
+
+        Builder setPlaylist(List<PlaylistItem> playlist) {
+            if (playlist == null || playlist.isEmpty()) {
+                mPlaylist = Collections.emptyList();
+            } else {
+                mPlaylist = Collections.unmodifiableList(new ArrayList<>(playlist));
+            }
+            return this;
+        }
+
+        Builder setPlaylistIndex(int playlistIndex) {
+            mPlaylistIndex = playlistIndex;
+            return this;
+        }
+
+        WallpaperConfig build() {
+            return new WallpaperConfig(this);
+        }
+    }
+}
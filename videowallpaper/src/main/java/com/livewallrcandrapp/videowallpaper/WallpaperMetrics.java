@@ -0,0 +1,249 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * process wide render and playback metrics of the wallpaper
+ * recording only updates preallocated arrays, so it is safe on the frame path,
+ * snapshots are copied out for the client listener and dumpsys
+ */
+final class WallpaperMetrics {
+
+    /**
+     * timings, indexes of HISTOGRAM_NAMES
+     */
+    static final int COLD_START = 0;
+    static final int PREPARE = 1;
+    static final int FIRST_FRAME = 2;
+    static final int IMAGE_DECODE = 3;
+    static final int TILE_DECODE = 4;
+    static final int LOCK_CANVAS = 5;
+    static final int DRAW = 6;
+    static final int LOOP_BOUNDARY = 7;
+    static final int RECOVERY = 8;
+
+    static final String[] HISTOGRAM_NAMES = {
+            MetricsSnapshot.COLD_START, MetricsSnapshot.PREPARE, MetricsSnapshot.FIRST_FRAME,
+            MetricsSnapshot.IMAGE_DECODE, MetricsSnapshot.TILE_DECODE, MetricsSnapshot.LOCK_CANVAS,
+            MetricsSnapshot.DRAW, MetricsSnapshot.LOOP_BOUNDARY, MetricsSnapshot.RECOVERY
+    };
+
+    /**
+     * counters, indexes of COUNTER_NAMES
+     */
+    static final int DECODED_BYTES = 0;
+    static final int FRAMES = 1;
+    static final int DROPPED_FRAMES = 2;
+    static final int LATE_FRAMES = 3;
+    static final int PLAYER_ERRORS = 4;
+    static final int TRIMMED_BYTES = 5;
+    static final int PLAYERS = 6;
+    static final int STALLS = 7;
+    static final int POSTER_FALLBACKS = 8;
+
+    static final String[] COUNTER_NAMES = {
+            MetricsSnapshot.DECODED_BYTES, MetricsSnapshot.FRAMES, MetricsSnapshot.DROPPED_FRAMES,
+            MetricsSnapshot.LATE_FRAMES, MetricsSnapshot.PLAYER_ERRORS, MetricsSnapshot.TRIMMED_BYTES,
+            MetricsSnapshot.PLAYERS, MetricsSnapshot.STALLS, MetricsSnapshot.POSTER_FALLBACKS
+    };
+
+    /**
+     * bucket 0 holds 0us, bucket i holds [2^(i-1), 2^i) us,
+     * the last one everything from about 18 minutes up
+     */
+    static final int BUCKET_COUNT = 32;
+
+    /**
+     * delay from the first change to the report of the client listener,
+     * changes until then go in the same report, nothing is posted while nothing changes
+     */
+    static final long REPORT_INTERVAL_MS = 5000;
+
+    private static final WallpaperMetrics sInstance = new WallpaperMetrics();
+
+    private final Object mLock = new Object();
+    private final long[][] mBuckets = new long[HISTOGRAM_NAMES.length][BUCKET_COUNT];
+    private final long[] mCounts = new long[HISTOGRAM_NAMES.length];
+    private final long[] mSums = new long[HISTOGRAM_NAMES.length];
+    private final long[] mMax = new long[HISTOGRAM_NAMES.length];
+    private final long[] mCounters = new long[COUNTER_NAMES.length];
+
+    /**
+     * set on the main thread, read by the recording threads
+     */
+    private volatile Handler mHandler;
+    private volatile VideoWallpaper.MetricsListener mListener;
+
+    /**
+     * a report is posted and has not run yet, guarded by mLock
+     */
+    private boolean isReportPosted;
+
+    private final Runnable mReport = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                isReportPosted = false;
+            }
+            VideoWallpaper.MetricsListener listener = mListener;
+            if (listener != null) listener.onMetrics(snapshot());
+        }
+    };
+
+    /**
+     * @return the metrics shared by the service and the client API
+     */
+    static WallpaperMetrics get() {
+        return sInstance;
+    }
+
+    WallpaperMetrics() {
+    }
+
+    /**
+     * @param histogram timing index
+     * @param micros
+     */
+    void record(int histogram, long micros) {
+        if (micros < 0) micros = 0;
+        int bucket = bucketOf(micros);
+        boolean isReportDue;
+        synchronized (mLock) {
+            mBuckets[histogram][bucket]++;
+            mCounts[histogram]++;
+            mSums[histogram] += micros;
+            if (micros > mMax[histogram]) mMax[histogram] = micros;
+            isReportDue = markReport();
+        }
+        if (isReportDue) postReport();
+    }
+
+    void recordNanos(int histogram, long nanos) {
+        record(histogram, nanos / 1000);
+    }
+
+    void recordMillis(int histogram, long millis) {
+        record(histogram, millis * 1000);
+    }
+
+    /**
+     * @param counter counter index
+     * @param delta
+     */
+    void add(int counter, long delta) {
+        boolean isReportDue;
+        synchronized (mLock) {
+            mCounters[counter] += delta;
+            isReportDue = markReport();
+        }
+        if (isReportDue) postReport();
+    }
+
+    void increment(int counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * @return copy of the current values
+     */
+    MetricsSnapshot snapshot() {
+        synchronized (mLock) {
+            long[][] buckets = new long[mBuckets.length][];
+            for (int i = 0; i < mBuckets.length; i++) {
+                buckets[i] = mBuckets[i].clone();
+            }
+            return new MetricsSnapshot(SystemClock.uptimeMillis(), buckets, mCounts.clone(),
+                    mSums.clone(), mMax.clone(), mCounters.clone());
+        }
+    }
+
+    void reset() {
+        boolean isReportDue;
+        synchronized (mLock) {
+            for (long[] buckets : mBuckets) {
+                Arrays.fill(buckets, 0);
+            }
+            Arrays.fill(mCounts, 0);
+            Arrays.fill(mSums, 0);
+            Arrays.fill(mMax, 0);
+            Arrays.fill(mCounters, 0);
+            isReportDue = markReport();
+        }
+        if (isReportDue) postReport();
+    }
+
+    /**
+     * call under mLock after a change
+     * @return true when the change needs a report to be posted
+     */
+    private boolean markReport() {
+        if (mListener == null || isReportPosted) return false;
+        isReportPosted = true;
+        return true;
+    }
+
+    private void postReport() {
+        Handler handler = mHandler;
+        if (handler != null) handler.postDelayed(mReport, REPORT_INTERVAL_MS);
+    }
+
+    /**
+     * report a snapshot to listener on the main thread now and
+     * REPORT_INTERVAL_MS after each later change, call on the main thread
+     * @param listener null to stop reporting
+     */
+    void setListener(VideoWallpaper.MetricsListener listener) {
+        if (mHandler == null) mHandler = new Handler(Looper.getMainLooper());
+        mHandler.removeCallbacks(mReport);
+        mListener = listener;
+        synchronized (mLock) {
+            isReportPosted = listener != null;
+        }
+        if (listener != null) mHandler.post(mReport);
+    }
+
+    /**
+     * @param writer
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Wallpaper metrics:");
+        writer.print(snapshot());
+    }
+
+    /**
+     * @param micros
+     * @return histogram bucket of micros
+     */
+    static int bucketOf(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @param bucket
+     * @return largest value in microseconds that falls in bucket
+     */
+    static long bucketUpperBound(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    static int histogramIndex(String name) {
+        return indexOf(HISTOGRAM_NAMES, name);
+    }
+
+    static int counterIndex(String name) {
+        return indexOf(COUNTER_NAMES, name);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,476 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * MediaPlayer with its prepare state and position checkpoint,
+ * player callbacks are forwarded to the engine that currently owns it
+ * in seamless loop mode a second MediaPlayer is kept prepared at the start
+ * of the clip and takes over the surface SWAP_LEAD_MS before the current one
+ * reaches the end, timed from its position and duration, so the loop boundary
+ * needs no seek and no decoder flush, the completion is only the fallback
+ */
+final class WallpaperPlayer implements MediaPlayer.OnPreparedListener,
+        MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, MediaPlayer.OnInfoListener {
+
+    private static final String TAG = "WallpaperPlayer";
+
+    /**
+     * output buffers a video decoder typically holds, for the memory estimates
+     */
+    static final int DECODER_BUFFERS = 4;
+
+    /**
+     * the standby player takes the surface this long before the end,
+     * about one frame of 30 fps video, the last frame is cut short instead
+     * of the first frame of the next loop arriving late
+     */
+    static final long SWAP_LEAD_MS = 33;
+
+    /**
+     * callbacks of the owning engine
+     */
+    interface Listener {
+        void onPlayerPrepared(WallpaperPlayer player);
+
+        void onPlayerError(WallpaperPlayer player, int what, int extra);
+
+        void onPlayerCompletion(WallpaperPlayer player);
+
+        void onPlayerInfo(WallpaperPlayer player, int what, int extra);
+
+        /**
+         * the standby player showed its first frame after a loop boundary
+         * @param player
+         * @param latencyMs time from the end of the clip to the first new frame,
+         * 0 when the swap ahead of the end showed it in time
+         */
+        void onPlayerLooped(WallpaperPlayer player, long latencyMs);
+    }
+
+    static final int STATE_IDLE = 0;
+    static final int STATE_PREPARING = 1;
+    static final int STATE_PREPARED = 2;
+    static final int STATE_ERROR = 3;
+    static final int STATE_RELEASED = 4;
+
+    /**
+     * player currently bound to the surface
+     */
+    private MediaPlayer mMediaPlayer;
+    private final Uri mUri;
+    private Context mContext;
+    private int mState = STATE_IDLE;
+    private Listener mListener;
+
+    /**
+     * surface of the current player, handed to the standby player at the swap
+     */
+    private Surface mSurface;
+
+    /**
+     * seamless loop mode, the standby player waits at the start of the clip
+     */
+    private boolean isSeamlessLoop;
+    private MediaPlayer mStandbyPlayer;
+    private int mStandbyState = STATE_IDLE;
+
+    /**
+     * uptime the finished player would have reached its end at,
+     * 0 once the new player showed its first frame
+     */
+    private long mLoopStartedAt;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mSwapCheck = new Runnable() {
+        @Override
+        public void run() {
+            scheduleSwap();
+        }
+    };
+
+    /**
+     * uptime of prepareAsync(), for the prepare latency metric
+     */
+    private long mPrepareStartedAt;
+
+    /**
+     * the prepare trace section is open
+     */
+    private boolean isPrepareTraced;
+
+    /**
+     * MediaPlayer.VIDEO_SCALING_MODE_*, applied to every player that gets the surface
+     */
+    private int mVideoScalingMode = MediaPlayer.VIDEO_SCALING_MODE_SCALE_TO_FIT_WITH_CROPPING;
+
+    /**
+     * playback position saved when the player was last paused
+     */
+    private int mCheckpoint;
+
+    WallpaperPlayer(Uri uri) {
+        mUri = uri;
+        mMediaPlayer = newMediaPlayer();
+    }
+
+    private MediaPlayer newMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        WallpaperMetrics.get().increment(WallpaperMetrics.PLAYERS);
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnInfoListener(this);
+        return mediaPlayer;
+    }
+
+    /**
+     * set the data source and start preparing in the background
+     * @param context
+     * @return false when the source can not be set
+     */
+    boolean prepareAsync(Context context) {
+        if (mState != STATE_IDLE) return mState == STATE_PREPARING || mState == STATE_PREPARED;
+        mContext = context.getApplicationContext();
+        try {
+            mMediaPlayer.setDataSource(context, mUri);
+            mMediaPlayer.setVolume(0, 0);
+            mPrepareStartedAt = SystemClock.uptimeMillis();
+            isPrepareTraced = WallpaperTrace.beginAsync(WallpaperTrace.PREPARE, System.identityHashCode(this));
+            mMediaPlayer.prepareAsync();
+            mState = STATE_PREPARING;
+            return true;
+        } catch (Exception exc) {
+            Log.e(TAG, "[prepareAsync] exception error: " + exc.getMessage());
+            endPrepareTrace();
+            mState = STATE_ERROR;
+            return false;
+        }
+    }
+
+    Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return the player bound to the surface, changes at every seamless loop
+     */
+    MediaPlayer getMediaPlayer() {
+        return mMediaPlayer;
+    }
+
+    boolean isPrepared() {
+        return mState == STATE_PREPARED;
+    }
+
+    boolean isReleased() {
+        return mState == STATE_RELEASED;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * @param listener new owner callbacks, null to detach
+     */
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * bind the video output, null to unbind
+     * @param surface
+     */
+    void setSurface(Surface surface) {
+        if (mState == STATE_RELEASED) return;
+        mSurface = surface;
+        if (surface == null) mHandler.removeCallbacks(mSwapCheck);
+        try {
+            mMediaPlayer.setSurface(surface);
+            if (surface != null && mState == STATE_PREPARED) mMediaPlayer.setVideoScalingMode(mVideoScalingMode);
+        } catch (Exception exc) {
+            Log.e(TAG, "[setSurface] exception error: " + exc.getMessage());
+        }
+    }
+
+    /**
+     * @param videoScalingMode MediaPlayer.VIDEO_SCALING_MODE_*
+     */
+    void setVideoScalingMode(int videoScalingMode) {
+        mVideoScalingMode = videoScalingMode;
+        if (mState != STATE_PREPARED) return;
+        try {
+            mMediaPlayer.setVideoScalingMode(videoScalingMode);
+        } catch (Exception exc) {
+            Log.e(TAG, "[setVideoScalingMode] exception error: " + exc.getMessage());
+        }
+    }
+
+    /**
+     * start or resume playback of a prepared player
+     */
+    void start() {
+        if (mState != STATE_PREPARED) return;
+        try {
+            mMediaPlayer.start();
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[start] exception error: " + exc.getMessage());
+        }
+        scheduleSwap();
+    }
+
+    /**
+     * pause playback and remember the position
+     */
+    void pause() {
+        mHandler.removeCallbacks(mSwapCheck);
+        if (mState != STATE_PREPARED) return;
+        try {
+            mCheckpoint = mMediaPlayer.getCurrentPosition();
+            if (mMediaPlayer.isPlaying()) mMediaPlayer.pause();
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[pause] exception error: " + exc.getMessage());
+        }
+    }
+
+    /**
+     * @return position saved by the last pause()
+     */
+    int getCheckpoint() {
+        return mCheckpoint;
+    }
+
+    /**
+     * switch between seamless looping with a standby player and
+     * single player looping, call once the player is prepared
+     * @param seamlessLoop
+     */
+    void setSeamlessLoop(boolean seamlessLoop) {
+        if (mState != STATE_PREPARED) return;
+        isSeamlessLoop = seamlessLoop;
+        try {
+            mMediaPlayer.setLooping(!seamlessLoop);
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[setSeamlessLoop] exception error: " + exc.getMessage());
+        }
+        if (seamlessLoop) {
+            prepareStandby();
+        } else {
+            releaseStandby();
+        }
+    }
+
+    boolean isSeamlessLoop() {
+        return isSeamlessLoop;
+    }
+
+    /**
+     * estimate of the decoder memory of the bound player,
+     * its output buffers of YUV 4:2:0 frames at the video size
+     * @return bytes, 0 while not prepared
+     */
+    long getDecoderBytes() {
+        if (mState != STATE_PREPARED) return 0;
+        try {
+            return (long) mMediaPlayer.getVideoWidth() * mMediaPlayer.getVideoHeight() * 3 / 2 * DECODER_BUFFERS;
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[getDecoderBytes] exception error: " + exc.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return estimate of the decoder memory of the standby player, 0 without one
+     */
+    long getStandbyBytes() {
+        return mStandbyPlayer != null ? getDecoderBytes() : 0;
+    }
+
+    /**
+     * prepare the second decoder on the same source, it waits at position 0
+     */
+    private void prepareStandby() {
+        if (mStandbyPlayer != null || mContext == null) return;
+        mStandbyPlayer = newMediaPlayer();
+        try {
+            mStandbyPlayer.setDataSource(mContext, mUri);
+            mStandbyPlayer.setVolume(0, 0);
+            mStandbyPlayer.prepareAsync();
+            mStandbyState = STATE_PREPARING;
+        } catch (Exception exc) {
+            Log.e(TAG, "[prepareStandby] exception error: " + exc.getMessage());
+            fallBackToSinglePlayer();
+        }
+    }
+
+    private void releaseStandby() {
+        mHandler.removeCallbacks(mSwapCheck);
+        if (mStandbyPlayer == null) return;
+        mStandbyPlayer.release();
+        mStandbyPlayer = null;
+        mStandbyState = STATE_IDLE;
+    }
+
+    /**
+     * standby player failed, loop the current player on its own
+     */
+    private void fallBackToSinglePlayer() {
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[fallBackToSinglePlayer] looping with one player");
+        releaseStandby();
+        isSeamlessLoop = false;
+        try {
+            mMediaPlayer.setLooping(true);
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[fallBackToSinglePlayer] exception error: " + exc.getMessage());
+        }
+    }
+
+    /**
+     * swap SWAP_LEAD_MS before the end of the current player, or check again then,
+     * called when playback starts, after a swap and once the standby is ready
+     */
+    private void scheduleSwap() {
+        mHandler.removeCallbacks(mSwapCheck);
+        if (!isSeamlessLoop || mStandbyState != STATE_PREPARED || mSurface == null
+                || mState != STATE_PREPARED) {
+            return;
+        }
+        long remaining;
+        try {
+            if (!mMediaPlayer.isPlaying()) return;
+            remaining = mMediaPlayer.getDuration() - mMediaPlayer.getCurrentPosition();
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[scheduleSwap] exception error: " + exc.getMessage());
+            return;
+        }
+        // unknown duration or already at the end, the completion swaps
+        if (remaining <= 0) return;
+        if (remaining <= SWAP_LEAD_MS) {
+            swapToStandby(remaining);
+            return;
+        }
+        // the position drifts with stalls, it is read again when the delay is over
+        mHandler.postDelayed(mSwapCheck, remaining - SWAP_LEAD_MS);
+    }
+
+    /**
+     * hand the surface to the standby player and start it, a surface takes
+     * one producer at a time so the current player lets go of it first,
+     * setNextMediaPlayer() would need the surface on both players before it
+     * @param remainingMs time the current player still had to play, 0 at the completion
+     * @return false when the standby player is not ready and the completion
+     * is left to the listener, true when the swap was done or failed for good
+     */
+    private boolean swapToStandby(long remainingMs) {
+        mHandler.removeCallbacks(mSwapCheck);
+        if (!isSeamlessLoop || mStandbyState != STATE_PREPARED || mSurface == null) return false;
+        mLoopStartedAt = SystemClock.uptimeMillis() + remainingMs;
+        MediaPlayer finished = mMediaPlayer;
+        try {
+            finished.setSurface(null);
+            mStandbyPlayer.setSurface(mSurface);
+            mStandbyPlayer.setVideoScalingMode(mVideoScalingMode);
+            mStandbyPlayer.start();
+        } catch (IllegalStateException | IllegalArgumentException exc) {
+            Log.e(TAG, "[swapToStandby] exception error: " + exc.getMessage());
+            mLoopStartedAt = 0;
+            // the standby may already be connected, it lets go of the surface first
+            fallBackToSinglePlayer();
+            try {
+                finished.setSurface(mSurface);
+            } catch (IllegalStateException | IllegalArgumentException reattachExc) {
+                Log.e(TAG, "[swapToStandby] reattach exception error: " + reattachExc.getMessage());
+                mState = STATE_ERROR;
+                if (mListener != null) mListener.onPlayerError(this, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
+                return true;
+            }
+            return false;
+        }
+        mMediaPlayer = mStandbyPlayer;
+        // the finished player waits at the start for the next boundary
+        mStandbyPlayer = finished;
+        try {
+            if (finished.isPlaying()) finished.pause();
+            finished.seekTo(0);
+        } catch (IllegalStateException exc) {
+            Log.e(TAG, "[swapToStandby] rewind exception error: " + exc.getMessage());
+        }
+        scheduleSwap();
+        return true;
+    }
+
+    void release() {
+        if (mState == STATE_RELEASED) return;
+        mState = STATE_RELEASED;
+        mHandler.removeCallbacks(mSwapCheck);
+        endPrepareTrace();
+        mListener = null;
+        mSurface = null;
+        releaseStandby();
+        mMediaPlayer.release();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if (mp == mStandbyPlayer) {
+            mStandbyState = STATE_PREPARED;
+            if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onPrepared] standby ready " + mUri);
+            scheduleSwap();
+            return;
+        }
+        mState = STATE_PREPARED;
+        endPrepareTrace();
+        WallpaperMetrics.get().recordMillis(WallpaperMetrics.PREPARE,
+                SystemClock.uptimeMillis() - mPrepareStartedAt);
+        if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "[onPrepared] " + mUri);
+        if (mListener != null) mListener.onPlayerPrepared(this);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        if (mp == mStandbyPlayer) {
+            Log.e(TAG, "[onError] standby what: " + what + " extra: " + extra);
+            fallBackToSinglePlayer();
+            return true;
+        }
+        Log.e(TAG, "[onError] what: " + what + " extra: " + extra);
+        mState = STATE_ERROR;
+        endPrepareTrace();
+        if (mListener != null) mListener.onPlayerError(this, what, extra);
+        return true;
+    }
+
+    private void endPrepareTrace() {
+        WallpaperTrace.endAsync(isPrepareTraced, WallpaperTrace.PREPARE, System.identityHashCode(this));
+        isPrepareTraced = false;
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        if (mp != mMediaPlayer) return;
+        if (swapToStandby(0)) return;
+        if (mListener != null) mListener.onPlayerCompletion(this);
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (mp != mMediaPlayer) return false;
+        if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START && mLoopStartedAt != 0) {
+            // a swap ahead of the end shows the first frame before it is due
+            long latency = Math.max(0, SystemClock.uptimeMillis() - mLoopStartedAt);
+            mLoopStartedAt = 0;
+            if (mListener != null) mListener.onPlayerLooped(this, latency);
+        }
+        if (mListener != null) mListener.onPlayerInfo(this, what, extra);
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * trace sections of the wallpaper work for systrace and Perfetto captures
+ * and the level gate of the log output, both switched at runtime from VideoWallpaper
+ * a disabled section costs one volatile read, log calls check isLoggable()
+ * before the message is built
+ * usage:
+ *     boolean traced = WallpaperTrace.begin(WallpaperTrace.DRAW);
+ *     try { ... } finally { WallpaperTrace.end(traced); }
+ *     if (WallpaperTrace.isLoggable(Log.INFO)) Log.i(TAG, "..." + value);
+ */
+final class WallpaperTrace {
+
+    /**
+     * section names, all share one prefix to find the wallpaper work in a capture
+     */
+    static final String ENGINE_CREATE = "VideoWallpaper:engineCreate";
+    static final String RENDER_FRAME = "VideoWallpaper:renderFrame";
+    static final String DECODE = "VideoWallpaper:decode";
+    static final String DECODE_TILE = "VideoWallpaper:decodeTile";
+    static final String DECODE_ANIMATION = "VideoWallpaper:decodeAnimationFrame";
+    static final String SCALE = "VideoWallpaper:scale";
+    static final String LOCK_CANVAS = "VideoWallpaper:lockCanvas";
+    static final String DRAW = "VideoWallpaper:draw";
+    static final String POST = "VideoWallpaper:post";
+    static final String SCREEN_STATE = "VideoWallpaper:screenState";
+
+    /**
+     * async section from prepareAsync() to the prepared or error callback,
+     * Android 10 and up
+     */
+    static final String PREPARE = "VideoWallpaper:prepare";
+
+    private static volatile boolean sEnabled;
+
+    /**
+     * lowest android.util.Log priority that is written
+     */
+    private static volatile int sLogLevel = Log.INFO;
+
+    private WallpaperTrace() {
+    }
+
+    /**
+     * @param enabled write trace sections, off by default
+     */
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @param priority android.util.Log priority, Log.ASSERT turns the log output off
+     */
+    static void setLogLevel(int priority) {
+        sLogLevel = priority;
+    }
+
+    static int getLogLevel() {
+        return sLogLevel;
+    }
+
+    /**
+     * @param priority android.util.Log priority
+     * @return true when a message of priority is written
+     */
+    static boolean isLoggable(int priority) {
+        return priority >= sLogLevel;
+    }
+
+    /**
+     * open a section on the current thread
+     * @param section one of the names above
+     * @return token for end(), the section stays balanced
+     * when tracing is switched in between
+     */
+    static boolean begin(String section) {
+        if (!sEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return false;
+        Trace.beginSection(section);
+        return true;
+    }
+
+    /**
+     * close the section opened by begin()
+     * @param begun token of begin()
+     */
+    static void end(boolean begun) {
+        if (begun) Trace.endSection();
+    }
+
+    /**
+     * open a section that may end on another thread
+     * @param section
+     * @param cookie tells apart the sections of the same name
+     * @return token for endAsync()
+     */
+    static boolean beginAsync(String section, int cookie) {
+        if (!sEnabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) return false;
+        Trace.beginAsyncSection(section, cookie);
+        return true;
+    }
+
+    /**
+     * @param begun token of beginAsync()
+     * @param section
+     * @param cookie
+     */
+    static void endAsync(boolean begun, String section, int cookie) {
+        if (begun) Trace.endAsyncSection(section, cookie);
+    }
+}
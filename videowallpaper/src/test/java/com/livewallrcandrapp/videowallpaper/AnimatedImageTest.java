@@ -0,0 +1,191 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * frame index and single frame files of small hand built GIF and WebP animations
+ */
+public class AnimatedImageTest {
+
+    @Test
+    public void gif_framesDelaysAndLoops() {
+        byte[] gif = gif(true);
+        AnimatedImage image = AnimatedImage.parse(gif, gif.length);
+        assertNotNull(image);
+        assertEquals(4, image.getWidth());
+        assertEquals(3, image.getHeight());
+        assertEquals(0, image.getLoopCount());
+        assertEquals(2, image.getFrameCount());
+
+        AnimatedImage.Frame first = image.getFrame(0);
+        assertEquals(50, first.delayMs);
+        assertEquals(AnimatedImage.DISPOSE_BACKGROUND, first.disposal);
+        AnimatedImage.Frame second = image.getFrame(1);
+        assertEquals(1, second.x);
+        assertEquals(2, second.y);
+        assertEquals(2, second.width);
+        assertEquals(1, second.height);
+        // a zero delay is played at the browser default
+        assertEquals(AnimatedImage.DEFAULT_DELAY_MS, second.delayMs);
+        assertEquals(AnimatedImage.DISPOSE_PREVIOUS, second.disposal);
+    }
+
+    @Test
+    public void gif_frameFileIsPlacedAtOrigin() {
+        byte[] gif = gif(true);
+        AnimatedImage image = AnimatedImage.parse(gif, gif.length);
+        byte[] out = new byte[image.getEncodedSize(1)];
+        int length = image.writeFrame(1, out);
+        assertTrue(length <= out.length);
+        assertEquals("GIF89a", new String(out, 0, 6));
+        // logical screen of the frame size with the global color table
+        assertEquals(2, out[6]);
+        assertEquals(1, out[8]);
+        assertEquals((byte) 0x80, out[10]);
+        // graphic control without disposal or delay, transparency kept
+        int control = 13 + 6;
+        assertEquals(0x21, out[control]);
+        assertEquals((byte) 0xF9, out[control + 1]);
+        assertEquals(1, out[control + 3]);
+        assertEquals(0, out[control + 4]);
+        assertEquals(1, out[control + 6]);
+        int descriptor = control + 8;
+        assertEquals(0x2C, out[descriptor]);
+        assertEquals(0, out[descriptor + 1]);
+        assertEquals(0, out[descriptor + 3]);
+        assertEquals(2, out[descriptor + 5]);
+        assertEquals(0x3B, out[length - 1]);
+    }
+
+    @Test
+    public void gif_singleFrameIsStill() {
+        byte[] gif = gif(false);
+        assertNull(AnimatedImage.parse(gif, gif.length));
+        assertNull(AnimatedImage.parse(gif, 20));
+    }
+
+    @Test
+    public void webp_framesAndFrameFiles() {
+        byte[] webp = webp();
+        AnimatedImage image = AnimatedImage.parse(webp, webp.length);
+        assertNotNull(image);
+        assertEquals(8, image.getWidth());
+        assertEquals(6, image.getHeight());
+        assertEquals(3, image.getLoopCount());
+        assertEquals(2, image.getFrameCount());
+        AnimatedImage.Frame second = image.getFrame(1);
+        assertEquals(2, second.x);
+        assertEquals(4, second.y);
+        assertEquals(80, second.delayMs);
+        assertFalse(second.isBlended);
+        assertEquals(AnimatedImage.DISPOSE_BACKGROUND, second.disposal);
+
+        // lossless frame: RIFF header and its VP8L chunk with padding
+        byte[] out = new byte[image.getEncodedSize(0)];
+        int length = image.writeFrame(0, out);
+        assertEquals(12 + 8 + 6, length);
+        assertEquals("VP8L", new String(out, 12, 4));
+        assertEquals(length - 8, out[4]);
+
+        // lossy frame with alpha: extended header, ALPH, VP8
+        out = new byte[image.getEncodedSize(1)];
+        length = image.writeFrame(1, out);
+        assertEquals("VP8X", new String(out, 12, 4));
+        assertEquals(0x10, out[20]);
+        assertEquals(1, out[24]);
+        assertEquals(0, out[27]);
+        assertEquals("ALPH", new String(out, 30, 4));
+        assertEquals("VP8 ", new String(out, 30 + 8 + 4, 4));
+        assertEquals(length - 8, out[4]);
+    }
+
+    @Test
+    public void types() {
+        assertTrue(AnimatedImage.isAnimatedType("image/gif"));
+        assertTrue(AnimatedImage.isAnimatedType("image/webp"));
+        assertFalse(AnimatedImage.isAnimatedType("image/png"));
+        assertFalse(AnimatedImage.isAnimatedType(null));
+    }
+
+    /**
+     * 4x3 GIF, looping for ever, with a second frame at 1,2 when animated
+     */
+    private static byte[] gif(boolean animated) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ascii(out, "GIF89a");
+        bytes(out, 4, 0, 3, 0, 0x80, 0, 0);
+        bytes(out, 0, 0, 0, 255, 255, 255);
+        bytes(out, 0x21, 0xFF, 11);
+        ascii(out, "NETSCAPE2.0");
+        bytes(out, 3, 1, 0, 0, 0);
+        // 50 ms, restore to background
+        bytes(out, 0x21, 0xF9, 4, 2 << 2, 5, 0, 0, 0);
+        bytes(out, 0x2C, 0, 0, 0, 0, 4, 0, 3, 0, 0);
+        bytes(out, 2, 2, 0x44, 0x01, 0);
+        if (animated) {
+            // a comment is skipped
+            bytes(out, 0x21, 0xFE, 2, 'h', 'i', 0);
+            // no delay, restore to previous, transparent index 1
+            bytes(out, 0x21, 0xF9, 4, (3 << 2) | 1, 0, 0, 1, 0);
+            bytes(out, 0x2C, 1, 0, 2, 0, 2, 0, 1, 0, 0);
+            bytes(out, 2, 2, 0x4C, 0x01, 0);
+        }
+        bytes(out, 0x3B);
+        return out.toByteArray();
+    }
+
+    /**
+     * 8x6 animation playing three times, a lossless frame and a lossy one with alpha
+     */
+    private static byte[] webp() {
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        chunk(chunks, "VP8X", 0x12, 0, 0, 0, 7, 0, 0, 5, 0, 0);
+        chunk(chunks, "ANIM", 0, 0, 0, 0, 3, 0);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        bytes(frame, 0, 0, 0, 0, 0, 0, 7, 0, 0, 5, 0, 0, 100, 0, 0, 0);
+        chunk(frame, "VP8L", 0x2F, 1, 2, 3, 4);
+        chunk(chunks, "ANMF", frame.toByteArray());
+
+        frame = new ByteArrayOutputStream();
+        // at 2,4, 80 ms, no blend, dispose to background
+        bytes(frame, 1, 0, 0, 2, 0, 0, 1, 0, 0, 0, 0, 0, 80, 0, 0, 0x03);
+        chunk(frame, "ALPH", 0, 9, 9);
+        chunk(frame, "VP8 ", 1, 2, 3, 4);
+        chunk(chunks, "ANMF", frame.toByteArray());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ascii(out, "RIFF");
+        int size = chunks.size() + 4;
+        bytes(out, size, size >> 8, size >> 16, size >> 24);
+        ascii(out, "WEBP");
+        byte[] body = chunks.toByteArray();
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String fourCc, int... payload) {
+        byte[] data = new byte[payload.length];
+        for (int i = 0; i < payload.length; i++) data[i] = (byte) payload[i];
+        chunk(out, fourCc, data);
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String fourCc, byte[] payload) {
+        ascii(out, fourCc);
+        bytes(out, payload.length, payload.length >> 8, payload.length >> 16, payload.length >> 24);
+        out.write(payload, 0, payload.length);
+        if ((payload.length & 1) != 0) out.write(0);
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) out.write(ascii.charAt(i));
+    }
+
+    private static void bytes(ByteArrayOutputStream out, int... values) {
+        for (int value : values) out.write(value);
+    }
+}
@@ -0,0 +1,61 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * keyframe sampling and the keyframe file format
+ */
+public class KeyframeCacheTest {
+
+    @Test
+    public void sampleTimesUs_spreadsOverTheDuration() {
+        long[] times = KeyframeCache.sampleTimesUs(8000, 4);
+        assertArrayEquals(new long[]{1000000, 3000000, 5000000, 7000000}, times);
+        assertArrayEquals(new long[]{0}, KeyframeCache.sampleTimesUs(0, 4));
+    }
+
+    @Test
+    public void frames_surviveAWriteAndRead() throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(new byte[]{1, 2, 3});
+        frames.add(new byte[]{4});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KeyframeCache.writeFrames(out, frames);
+
+        List<byte[]> read = KeyframeCache.readFrames(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(2, read.size());
+        assertTrue(Arrays.equals(frames.get(0), read.get(0)));
+        assertTrue(Arrays.equals(frames.get(1), read.get(1)));
+    }
+
+    @Test
+    public void readFrames_rejectsOtherFiles() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(KeyframeCache.MAGIC);
+        data.writeInt(KeyframeCache.VERSION + 1);
+        data.writeInt(0);
+        assertNull(KeyframeCache.readFrames(new ByteArrayInputStream(out.toByteArray())));
+
+        out.reset();
+        data.writeInt(KeyframeCache.MAGIC);
+        data.writeInt(KeyframeCache.VERSION);
+        data.writeInt(1);
+        data.writeInt(KeyframeCache.MAX_FRAME_BYTES + 1);
+        try {
+            KeyframeCache.readFrames(new ByteArrayInputStream(out.toByteArray()));
+            fail("damaged length read");
+        } catch (IOException expected) {
+        }
+    }
+}
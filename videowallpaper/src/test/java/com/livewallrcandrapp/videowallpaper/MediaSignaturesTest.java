@@ -0,0 +1,131 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * media type detection from sample file headers
+ */
+public class MediaSignaturesTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0; i < text.length(); i++) {
+            data[i] = (byte) text.charAt(i);
+        }
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return data;
+    }
+
+    private static byte[] ftyp(String majorBrand, String... compatibleBrands) {
+        int size = 16 + 4 * compatibleBrands.length;
+        byte[] data = concat(bytes(0, 0, 0, size), ascii("ftyp"), ascii(majorBrand), bytes(0, 0, 0, 0));
+        for (String brand : compatibleBrands) {
+            data = concat(data, ascii(brand));
+        }
+        return data;
+    }
+
+    private static String sniff(byte[] header) {
+        return MediaSignatures.sniff(header, header.length);
+    }
+
+    @Test
+    public void jpeg_isDetected() {
+        assertEquals("image/jpeg", sniff(bytes(0xFF, 0xD8, 0xFF, 0xE0, 0, 0x10, 'J', 'F', 'I', 'F')));
+    }
+
+    @Test
+    public void png_isDetected() {
+        assertEquals("image/png", sniff(bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D)));
+    }
+
+    @Test
+    public void gif_isDetected() {
+        assertEquals("image/gif", sniff(ascii("GIF89a\u0001\u0000")));
+        assertEquals("image/gif", sniff(ascii("GIF87a\u0001\u0000")));
+    }
+
+    @Test
+    public void webp_isDetected() {
+        assertEquals("image/webp", sniff(concat(ascii("RIFF"), bytes(0x24, 0, 0, 0), ascii("WEBPVP8 "))));
+    }
+
+    @Test
+    public void riffWithoutWebp_isNotDetected() {
+        assertNull(sniff(concat(ascii("RIFF"), bytes(0x24, 0, 0, 0), ascii("AVI LIST"))));
+    }
+
+    @Test
+    public void mp4_isDetected() {
+        assertEquals("video/mp4", sniff(ftyp("isom", "isom", "iso2", "avc1", "mp41")));
+        assertEquals("video/mp4", sniff(ftyp("mp42", "mp42", "isom")));
+    }
+
+    @Test
+    public void threeGp_isDetected() {
+        assertEquals("video/3gpp", sniff(ftyp("3gp4", "isom", "3gp4")));
+    }
+
+    @Test
+    public void heif_isDetected() {
+        assertEquals("image/heic", sniff(ftyp("heic", "mif1", "heic")));
+        assertEquals("image/heif", sniff(ftyp("mif1", "mif1")));
+        assertEquals("image/heic", sniff(ftyp("avis", "msf1", "heic")));
+    }
+
+    @Test
+    public void webm_isDetected() {
+        byte[] header = concat(bytes(0x1A, 0x45, 0xDF, 0xA3, 0x9F, 0x42, 0x86, 0x81, 0x01, 0x42, 0x82, 0x84),
+                ascii("webm"), bytes(0x42, 0x87, 0x81, 0x04));
+        assertEquals("video/webm", sniff(header));
+    }
+
+    @Test
+    public void matroska_isDetected() {
+        byte[] header = concat(bytes(0x1A, 0x45, 0xDF, 0xA3, 0xA3, 0x42, 0x86, 0x81, 0x01, 0x42, 0x82, 0x88),
+                ascii("matroska"), bytes(0x42, 0x87, 0x81, 0x04));
+        assertEquals("video/x-matroska", sniff(header));
+    }
+
+    @Test
+    public void shortOrUnknownHeaders_areNotDetected() {
+        assertNull(sniff(new byte[0]));
+        assertNull(sniff(bytes(0xFF, 0xD8)));
+        assertNull(sniff(ascii("<html><body>")));
+        assertNull(MediaSignatures.sniff(null, 0));
+    }
+
+    @Test
+    public void length_limitsTheBytesLookedAt() {
+        byte[] header = bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+        assertNull(MediaSignatures.sniff(header, 4));
+    }
+
+    @Test
+    public void isVideo_matchesVideoTypesOnly() {
+        assertTrue(MediaSignatures.isVideo("video/mp4"));
+        assertFalse(MediaSignatures.isVideo("image/gif"));
+        assertFalse(MediaSignatures.isVideo(null));
+    }
+}
@@ -0,0 +1,41 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * per uri cache of detected media types
+ */
+public class MediaTypeDetectorTest {
+
+    @After
+    public void tearDown() {
+        MediaTypeDetector.clearCache();
+    }
+
+    @Test
+    public void remembered_typeIsFoundForSameVersion() {
+        MediaTypeDetector.remember("file:///sdcard/a.bin", 100L, "video/mp4");
+        assertEquals("video/mp4", MediaTypeDetector.lookup("file:///sdcard/a.bin", 100L));
+    }
+
+    @Test
+    public void modifiedFile_isNotServedFromCache() {
+        MediaTypeDetector.remember("file:///sdcard/a.bin", 100L, "video/mp4");
+        assertNull(MediaTypeDetector.lookup("file:///sdcard/a.bin", 200L));
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsed() {
+        MediaTypeDetector.remember("content://media/0", 1L, "image/png");
+        for (int i = 1; i <= MediaTypeDetector.CACHE_SIZE; i++) {
+            // keep the first entry recently used
+            MediaTypeDetector.lookup("content://media/0", 1L);
+            MediaTypeDetector.remember("content://media/" + i, 1L, "image/jpeg");
+        }
+        assertEquals("image/png", MediaTypeDetector.lookup("content://media/0", 1L));
+        assertNull(MediaTypeDetector.lookup("content://media/1", 1L));
+    }
+}
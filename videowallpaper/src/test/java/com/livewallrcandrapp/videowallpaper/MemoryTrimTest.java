@@ -0,0 +1,42 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * trim levels to tiers and the release report of a trim
+ */
+public class MemoryTrimTest {
+
+    @Test
+    public void tierOf_growsWithTheLevel() {
+        assertEquals(MemoryTrim.NONE, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(MemoryTrim.NONE, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(MemoryTrim.SECONDARY, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(MemoryTrim.SECONDARY, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(MemoryTrim.DOWNSAMPLE, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(MemoryTrim.PLAYER, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(MemoryTrim.PLAYER, MemoryTrim.tierOf(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void finish_reportsOnceEveryStepIsDone() {
+        MemoryTrim trim = new MemoryTrim(MemoryTrim.SECONDARY, null);
+        trim.add(100);
+        trim.begin();
+        trim.begin();
+        trim.finish();
+        assertFalse(trim.isFinished());
+
+        trim.add(20);
+        trim.add(-5);
+        trim.finish();
+        assertFalse(trim.isFinished());
+        trim.finish();
+        assertTrue(trim.isFinished());
+        assertEquals(120, trim.getReleasedBytes());
+    }
+}
@@ -0,0 +1,84 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * stall detection, backoff and recovery time of the playback watchdog
+ */
+public class PlaybackWatchdogTest {
+
+    @Test
+    public void backoffMs_doublesUpToTheCap() {
+        assertEquals(250, PlaybackWatchdog.backoffMs(1));
+        assertEquals(500, PlaybackWatchdog.backoffMs(2));
+        assertEquals(1000, PlaybackWatchdog.backoffMs(3));
+        assertEquals(PlaybackWatchdog.MAX_BACKOFF_MS, PlaybackWatchdog.backoffMs(10));
+        assertEquals(PlaybackWatchdog.MAX_BACKOFF_MS, PlaybackWatchdog.backoffMs(100));
+    }
+
+    @Test
+    public void isStalled_onlyWhenThePositionStopsWhileWatched() {
+        PlaybackWatchdog watchdog = new PlaybackWatchdog();
+        assertFalse(watchdog.isStalled(100000));
+
+        watchdog.onStarted(1000);
+        assertFalse(watchdog.onPosition(0));
+        assertTrue(watchdog.onPosition(900));
+        watchdog.onFrame(2000);
+        assertFalse(watchdog.onPosition(900));
+        assertFalse(watchdog.isStalled(2000 + PlaybackWatchdog.STALL_TIMEOUT_MS - 1));
+        assertTrue(watchdog.isStalled(2000 + PlaybackWatchdog.STALL_TIMEOUT_MS));
+        assertEquals(900, watchdog.getLastPosition());
+
+        watchdog.onStopped();
+        assertFalse(watchdog.isStalled(100000));
+        assertFalse(watchdog.onPosition(1000));
+    }
+
+    @Test
+    public void onFailure_givesUpAfterMaxAttempts() {
+        PlaybackWatchdog watchdog = new PlaybackWatchdog();
+        long now = 1000;
+        for (int attempt = 1; attempt <= PlaybackWatchdog.MAX_ATTEMPTS; attempt++) {
+            assertEquals(PlaybackWatchdog.backoffMs(attempt), watchdog.onFailure(now));
+            assertTrue(watchdog.isRecovering());
+            now += 10000;
+        }
+        assertEquals(-1, watchdog.onFailure(now));
+
+        watchdog.reset();
+        assertFalse(watchdog.isRecovering());
+        assertEquals(PlaybackWatchdog.BASE_BACKOFF_MS, watchdog.onFailure(now));
+    }
+
+    @Test
+    public void onFrame_measuresFromTheFirstFailure() {
+        PlaybackWatchdog watchdog = new PlaybackWatchdog();
+        assertEquals(-1, watchdog.onFrame(500));
+        watchdog.onFailure(1000);
+        watchdog.onStarted(1250);
+        watchdog.onFailure(5250);
+        watchdog.onStarted(5750);
+        assertEquals(5000, watchdog.onFrame(6000));
+        assertFalse(watchdog.isRecovering());
+        assertEquals(-1, watchdog.onFrame(6100));
+        assertEquals(2, watchdog.getAttempts());
+
+        // a long enough run after the recovery starts a new series
+        watchdog.onFrame(6000 + PlaybackWatchdog.STABLE_MS);
+        assertEquals(0, watchdog.getAttempts());
+    }
+
+    @Test
+    public void cancelRecovery_keepsTheAttempts() {
+        PlaybackWatchdog watchdog = new PlaybackWatchdog();
+        watchdog.onFailure(1000);
+        watchdog.cancelRecovery();
+        assertFalse(watchdog.isRecovering());
+        assertEquals(1, watchdog.getAttempts());
+        assertEquals(-1, watchdog.onFrame(90000));
+        assertEquals(PlaybackWatchdog.backoffMs(2), watchdog.onFailure(90000));
+    }
+}
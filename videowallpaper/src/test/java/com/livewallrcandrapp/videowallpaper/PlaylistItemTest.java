@@ -0,0 +1,45 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * visible time and identity of playlist items
+ */
+public class PlaylistItemTest {
+
+    @Test
+    public void imageWithoutDuration_getsTheDefault() {
+        PlaylistItem item = new PlaylistItem("file:///a.jpg", 0, PlaylistItem.Transition.CROSSFADE)
+                .withMimeType(MediaSignatures.IMAGE_JPEG);
+        assertEquals(PlaylistItem.DEFAULT_IMAGE_DURATION_MS, item.getShownMillis());
+    }
+
+    @Test
+    public void videoWithoutDuration_playsOnce() {
+        PlaylistItem item = new PlaylistItem("file:///a.mp4", 0, null)
+                .withMimeType(MediaSignatures.VIDEO_MP4);
+        assertEquals(0, item.getShownMillis());
+        assertEquals(PlaylistItem.Transition.NONE, item.getTransition());
+    }
+
+    @Test
+    public void duration_isKept() {
+        PlaylistItem item = new PlaylistItem("file:///a.mp4", 5000, PlaylistItem.Transition.NONE)
+                .withMimeType(MediaSignatures.VIDEO_MP4);
+        assertEquals(5000, item.getShownMillis());
+        assertEquals(0, new PlaylistItem("file:///a.mp4", -1, null).getDurationMillis());
+    }
+
+    @Test
+    public void equals_comparesEveryField() {
+        PlaylistItem item = new PlaylistItem("file:///a.jpg", 3000, PlaylistItem.Transition.CROSSFADE);
+        assertEquals(item, new PlaylistItem("file:///a.jpg", 3000, PlaylistItem.Transition.CROSSFADE));
+        assertEquals(item.hashCode(),
+                new PlaylistItem("file:///a.jpg", 3000, PlaylistItem.Transition.CROSSFADE).hashCode());
+        assertNotEquals(item, new PlaylistItem("file:///a.jpg", 4000, PlaylistItem.Transition.CROSSFADE));
+        assertNotEquals(item, new PlaylistItem("file:///a.jpg", 3000, PlaylistItem.Transition.NONE));
+        assertNotEquals(item, item.withMimeType(MediaSignatures.IMAGE_JPEG));
+    }
+}
@@ -0,0 +1,61 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * disk bound of PosterCache
+ */
+public class PosterCacheTest {
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("posters").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private File poster(int index) throws IOException {
+        File file = new File(mDirectory, "poster" + index + PosterCache.SUFFIX);
+        Files.write(file.toPath(), new byte[16]);
+        file.setLastModified(1000000L * (index + 1));
+        return file;
+    }
+
+    @Test
+    public void trim_keepsTheMostRecentlyUsedPosters() throws IOException {
+        File[] files = new File[PosterCache.MAX_POSTERS + 3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = poster(i);
+        }
+        new PosterCache(null, mDirectory).trim();
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(files[i].getName(), i >= 3, files[i].exists());
+        }
+    }
+
+    @Test
+    public void trim_leavesASmallCacheAlone() throws IOException {
+        File file = poster(0);
+        new PosterCache(null, mDirectory).trim();
+        assertTrue(file.exists());
+    }
+}
@@ -0,0 +1,61 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * the automatic tier policy and what each tier allows
+ */
+public class QualityTierTest {
+
+    @Test
+    public void select_fullWhenChargingOrUnknown() {
+        assertEquals(QualityTier.FULL, QualityTier.select(false, 80, false));
+        assertEquals(QualityTier.FULL, QualityTier.select(true, 3, true));
+        assertEquals(QualityTier.FULL, QualityTier.select(false, -1, false));
+    }
+
+    @Test
+    public void select_lowersWithSaverAndBattery() {
+        assertEquals(QualityTier.REDUCED, QualityTier.select(true, 80, false));
+        assertEquals(QualityTier.REDUCED, QualityTier.select(true, -1, false));
+        assertEquals(QualityTier.REDUCED, QualityTier.select(false, 15, false));
+        assertEquals(QualityTier.POSTER_ONLY, QualityTier.select(true, 15, false));
+        assertEquals(QualityTier.PAUSED, QualityTier.select(false, 5, false));
+        assertEquals(QualityTier.PAUSED, QualityTier.select(true, 0, false));
+    }
+
+    @Test
+    public void frameRate_capsAllButFull() {
+        assertEquals(60, QualityTier.FULL.frameRate(60));
+        assertEquals(0, QualityTier.FULL.frameRate(0));
+        assertEquals(10, QualityTier.REDUCED.frameRate(60));
+        assertEquals(10, QualityTier.REDUCED.frameRate(0));
+        assertEquals(6, QualityTier.REDUCED.frameRate(12));
+        assertEquals(1, QualityTier.REDUCED.frameRate(1));
+    }
+
+    @Test
+    public void frameRate_reducedCutsTheDefault() {
+        int full = QualityTier.FULL.frameRate(Utility.DEFAULT_FRAME_RATE);
+        int reduced = QualityTier.REDUCED.frameRate(Utility.DEFAULT_FRAME_RATE);
+        assertTrue(reduced + " < " + full, reduced < full);
+    }
+
+    @Test
+    public void playback_onlyInFullAndReduced() {
+        assertTrue(QualityTier.FULL.isPlaybackAllowed());
+        assertTrue(QualityTier.REDUCED.isPlaybackAllowed());
+        assertFalse(QualityTier.POSTER_ONLY.isPlaybackAllowed());
+        assertFalse(QualityTier.PAUSED.isPlaybackAllowed());
+        assertFalse(QualityTier.POSTER_ONLY.isAnimated());
+    }
+
+    @Test
+    public void fromName_nullForUnknown() {
+        assertEquals(QualityTier.POSTER_ONLY, QualityTier.fromName("POSTER_ONLY"));
+        assertNull(QualityTier.fromName("HIGH"));
+        assertNull(QualityTier.fromName(null));
+    }
+}
@@ -0,0 +1,304 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * RemoteMediaCache against a local http server that serves byte ranges
+ */
+public class RemoteMediaCacheTest {
+
+    private static final int CLIP_SIZE = 200 * 1024;
+
+    private HttpServer mServer;
+    private File mDirectory;
+    private byte[] mClip;
+
+    /**
+     * Range header of every request, null for requests without one
+     */
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * bytes served before the connection is cut, -1 for whole responses
+     */
+    private volatile int mCutAfter = -1;
+    private volatile boolean isRangeSupported = true;
+    private volatile int mStatus = 200;
+
+    /**
+     * ETag of the clip, null to send none
+     */
+    private volatile String mETag = "\"v1\"";
+
+    /**
+     * whole responses are sent chunked, without Content-Length
+     */
+    private volatile boolean isChunked;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("media-cache").toFile();
+        mClip = new byte[CLIP_SIZE];
+        for (int i = 0; i < mClip.length; i++) {
+            mClip[i] = (byte) (i * 31);
+        }
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        mRanges.add(range);
+        if (mStatus != 200) {
+            exchange.sendResponseHeaders(mStatus, -1);
+            exchange.close();
+            return;
+        }
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (mETag != null) exchange.getResponseHeaders().add("ETag", mETag);
+        int start = 0;
+        if (range != null && isRangeSupported && (ifRange == null || ifRange.equals(mETag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + (mClip.length - 1) + "/" + mClip.length);
+            exchange.sendResponseHeaders(206, mClip.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, isChunked ? 0 : mClip.length);
+        }
+        OutputStream body = exchange.getResponseBody();
+        int end = mCutAfter >= 0 ? Math.min(mClip.length, start + mCutAfter) : mClip.length;
+        try {
+            body.write(mClip, start, end - start);
+            body.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private RemoteMediaCache newCache(long maxBytes) {
+        return new RemoteMediaCache(mDirectory, maxBytes);
+    }
+
+    @Test
+    public void fetch_downloadsAndCommitsTheWholeFile() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<File> result = new AtomicReference<>();
+        cache.fetch(url("/clip.mp4"), new RemoteMediaCache.Listener() {
+            @Override
+            public void onCached(String url, File file) {
+                result.set(file);
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(String url, Exception exc) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+        assertArrayEquals(mClip, Files.readAllBytes(result.get().toPath()));
+        assertFalse(new File(mDirectory, result.get().getName() + RemoteMediaCache.PART_SUFFIX).exists());
+        assertEquals(result.get(), cache.getCachedFile(url("/clip.mp4")));
+    }
+
+    @Test
+    public void cachedFile_isNotDownloadedAgain() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        cache.download(url("/clip.mp4"));
+        cache.download(url("/clip.mp4"));
+        assertEquals(1, mRanges.size());
+    }
+
+    @Test
+    public void interruptedDownload_isResumedWithRange() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        mCutAfter = 64 * 1024;
+        try {
+            cache.download(url("/clip.mp4"));
+            fail("a cut connection must not commit");
+        } catch (IOException expected) {
+        }
+        assertNull(cache.getCachedFile(url("/clip.mp4")));
+        File part = new File(mDirectory, cache.fileFor(url("/clip.mp4")).getName() + RemoteMediaCache.PART_SUFFIX);
+        long resumeAt = part.length();
+        assertTrue(resumeAt > 0);
+
+        mCutAfter = -1;
+        File file = cache.download(url("/clip.mp4"));
+        assertEquals("bytes=" + resumeAt + "-", mRanges.get(mRanges.size() - 1));
+        assertArrayEquals(mClip, Files.readAllBytes(file.toPath()));
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void changedSource_isDownloadedAgainFromTheStart() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        mCutAfter = 64 * 1024;
+        try {
+            cache.download(url("/clip.mp4"));
+            fail("a cut connection must not commit");
+        } catch (IOException expected) {
+        }
+
+        // the source is replaced between the attempts
+        for (int i = 0; i < mClip.length; i++) {
+            mClip[i] = (byte) (i * 7);
+        }
+        mETag = "\"v2\"";
+        mCutAfter = -1;
+        File file = cache.download(url("/clip.mp4"));
+        assertArrayEquals(mClip, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void partWithoutValidator_isNotResumed() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        mETag = null;
+        mCutAfter = 64 * 1024;
+        try {
+            cache.download(url("/clip.mp4"));
+            fail("a cut connection must not commit");
+        } catch (IOException expected) {
+        }
+        mCutAfter = -1;
+        File file = cache.download(url("/clip.mp4"));
+        assertNull(mRanges.get(mRanges.size() - 1));
+        assertArrayEquals(mClip, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void bodyWithoutLength_isNotCommitted() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        isChunked = true;
+        mCutAfter = 64 * 1024;
+        try {
+            cache.download(url("/clip.mp4"));
+            fail("a body of unknown length must not commit");
+        } catch (IOException expected) {
+        }
+        assertNull(cache.getCachedFile(url("/clip.mp4")));
+    }
+
+    @Test
+    public void serverWithoutRanges_restartsFromTheBeginning() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        File part = new File(mDirectory, cache.fileFor(url("/clip.mp4")).getName() + RemoteMediaCache.PART_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(part);
+        outputStream.write(new byte[1000]);
+        outputStream.close();
+
+        isRangeSupported = false;
+        File file = cache.download(url("/clip.mp4"));
+        assertArrayEquals(mClip, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void failedResponse_reportsFailureAndCommitsNothing() throws Exception {
+        RemoteMediaCache cache = newCache(RemoteMediaCache.DEFAULT_MAX_BYTES);
+        mStatus = 500;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        cache.fetch(url("/clip.mp4"), new RemoteMediaCache.Listener() {
+            @Override
+            public void onCached(String url, File file) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(String url, Exception exc) {
+                error.set(exc);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNotNull(error.get());
+        assertNull(cache.getCachedFile(url("/clip.mp4")));
+    }
+
+    @Test
+    public void trim_evictsLeastRecentlyUsedFiles() throws Exception {
+        RemoteMediaCache cache = newCache(2L * CLIP_SIZE);
+        File first = cache.download(url("/first.mp4"));
+        File second = cache.download(url("/second.mp4"));
+        first.setLastModified(1000000L);
+        second.setLastModified(2000000L);
+        // using the first file makes the second one the oldest
+        assertNotNull(cache.getCachedFile(url("/first.mp4")));
+
+        File third = cache.download(url("/third.mp4"));
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+    }
+
+    @Test
+    public void trim_keepsAFileLargerThanTheCache() throws Exception {
+        RemoteMediaCache cache = newCache(CLIP_SIZE / 2);
+        File file = cache.download(url("/clip.mp4"));
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void isRemote_acceptsHttpOnly() {
+        assertTrue(RemoteMediaCache.isRemote("http://example.com/a.mp4"));
+        assertTrue(RemoteMediaCache.isRemote("HTTPS://example.com/a.mp4"));
+        assertFalse(RemoteMediaCache.isRemote("content://media/external/video/1"));
+        assertFalse(RemoteMediaCache.isRemote("/sdcard/a.mp4"));
+        assertFalse(RemoteMediaCache.isRemote(null));
+    }
+
+    @Test
+    public void rangeStart_parsesContentRange() {
+        assertEquals(100, RemoteMediaCache.rangeStart("bytes 100-999/1000"));
+        assertEquals(-1, RemoteMediaCache.rangeStart("bytes */1000"));
+        assertEquals(-1, RemoteMediaCache.rangeStart(null));
+        assertEquals(1000, RemoteMediaCache.rangeTotal("bytes 100-999/1000"));
+        assertEquals(-1, RemoteMediaCache.rangeTotal("bytes 100-999/*"));
+        assertEquals(-1, RemoteMediaCache.rangeTotal(null));
+    }
+}
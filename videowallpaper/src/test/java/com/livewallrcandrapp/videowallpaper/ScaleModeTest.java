@@ -0,0 +1,69 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * placement of a 2000x1000 landscape image on a 1000x2000 portrait screen
+ */
+public class ScaleModeTest {
+
+    private static final float DELTA = 0.001f;
+
+    private final float[] mTransform = new float[4];
+
+    @Test
+    public void centerCrop_coversAndCentres() {
+        ScaleMode.CENTER_CROP.computeTransform(2000, 1000, 1000, 2000, mTransform);
+        assertEquals(2f, mTransform[0], DELTA);
+        assertEquals(2f, mTransform[1], DELTA);
+        assertEquals(-1500f, mTransform[2], DELTA);
+        assertEquals(0f, mTransform[3], DELTA);
+        assertTrue(ScaleMode.CENTER_CROP.coversTarget(2000, 1000, 1000, 2000));
+    }
+
+    @Test
+    public void fit_showsEverythingWithBars() {
+        ScaleMode.FIT.computeTransform(2000, 1000, 1000, 2000, mTransform);
+        assertEquals(0.5f, mTransform[0], DELTA);
+        assertEquals(0.5f, mTransform[1], DELTA);
+        assertEquals(0f, mTransform[2], DELTA);
+        assertEquals(750f, mTransform[3], DELTA);
+        assertFalse(ScaleMode.FIT.coversTarget(2000, 1000, 1000, 2000));
+    }
+
+    @Test
+    public void fill_matchesTheHeight() {
+        ScaleMode.FILL.computeTransform(1000, 1000, 2000, 1000, mTransform);
+        assertEquals(1f, mTransform[0], DELTA);
+        assertEquals(1f, mTransform[1], DELTA);
+        assertEquals(500f, mTransform[2], DELTA);
+        assertEquals(0f, mTransform[3], DELTA);
+        assertFalse(ScaleMode.FILL.coversTarget(1000, 1000, 2000, 1000));
+    }
+
+    @Test
+    public void stretch_matchesBothEdges() {
+        ScaleMode.STRETCH.computeTransform(2000, 1000, 1000, 2000, mTransform);
+        assertEquals(0.5f, mTransform[0], DELTA);
+        assertEquals(2f, mTransform[1], DELTA);
+        assertEquals(0f, mTransform[2], DELTA);
+        assertEquals(0f, mTransform[3], DELTA);
+        assertTrue(ScaleMode.STRETCH.coversTarget(2000, 1000, 1000, 2000));
+    }
+
+    @Test
+    public void requiredScale_isTheLargestAxisScale() {
+        assertEquals(2f, ScaleMode.CENTER_CROP.requiredScale(2000, 1000, 1000, 2000), DELTA);
+        assertEquals(0.5f, ScaleMode.FIT.requiredScale(2000, 1000, 1000, 2000), DELTA);
+        assertEquals(2f, ScaleMode.STRETCH.requiredScale(2000, 1000, 1000, 2000), DELTA);
+    }
+
+    @Test
+    public void fromName_fallsBackToCenterCrop() {
+        assertEquals(ScaleMode.FIT, ScaleMode.fromName("FIT"));
+        assertEquals(ScaleMode.CENTER_CROP, ScaleMode.fromName(null));
+        assertEquals(ScaleMode.CENTER_CROP, ScaleMode.fromName("ZOOM"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * histogram buckets, percentiles and counters of WallpaperMetrics
+ */
+public class WallpaperMetricsTest {
+
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void bucketOf_usesPowerOfTwoBuckets() {
+        assertEquals(0, WallpaperMetrics.bucketOf(0));
+        assertEquals(1, WallpaperMetrics.bucketOf(1));
+        assertEquals(2, WallpaperMetrics.bucketOf(2));
+        assertEquals(2, WallpaperMetrics.bucketOf(3));
+        assertEquals(11, WallpaperMetrics.bucketOf(1024));
+        assertEquals(WallpaperMetrics.BUCKET_COUNT - 1, WallpaperMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketUpperBound_coversItsBucket() {
+        for (int bucket = 0; bucket < WallpaperMetrics.BUCKET_COUNT - 1; bucket++) {
+            long upper = WallpaperMetrics.bucketUpperBound(bucket);
+            assertEquals(bucket, WallpaperMetrics.bucketOf(upper));
+            assertEquals(bucket + 1, WallpaperMetrics.bucketOf(upper + 1));
+        }
+    }
+
+    @Test
+    public void snapshot_reportsCountAverageAndMax() {
+        WallpaperMetrics metrics = new WallpaperMetrics();
+        metrics.recordMillis(WallpaperMetrics.PREPARE, 10);
+        metrics.recordMillis(WallpaperMetrics.PREPARE, 30);
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getCount(MetricsSnapshot.PREPARE));
+        assertEquals(20.0, snapshot.getAverageMillis(MetricsSnapshot.PREPARE), DELTA);
+        assertEquals(30.0, snapshot.getMaxMillis(MetricsSnapshot.PREPARE), DELTA);
+        assertEquals(0, snapshot.getCount(MetricsSnapshot.DRAW));
+        assertEquals(0.0, snapshot.getPercentileMillis(MetricsSnapshot.DRAW, 50), DELTA);
+    }
+
+    @Test
+    public void percentile_isTheUpperBoundOfItsBucket() {
+        WallpaperMetrics metrics = new WallpaperMetrics();
+        for (int i = 0; i < 90; i++) {
+            metrics.record(WallpaperMetrics.DRAW, 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.record(WallpaperMetrics.DRAW, 40000);
+        }
+        MetricsSnapshot snapshot = metrics.snapshot();
+        // 1000us falls in [512, 1024), 40000us in [32768, 65536) capped by the max
+        assertEquals(1.023, snapshot.getPercentileMillis(MetricsSnapshot.DRAW, 50), DELTA);
+        assertEquals(1.023, snapshot.getPercentileMillis(MetricsSnapshot.DRAW, 90), DELTA);
+        assertEquals(40.0, snapshot.getPercentileMillis(MetricsSnapshot.DRAW, 91), DELTA);
+        assertEquals(40.0, snapshot.getPercentileMillis(MetricsSnapshot.DRAW, 99), DELTA);
+    }
+
+    @Test
+    public void snapshot_isNotChangedByLaterRecords() {
+        WallpaperMetrics metrics = new WallpaperMetrics();
+        metrics.add(WallpaperMetrics.DECODED_BYTES, 4096);
+        metrics.increment(WallpaperMetrics.PLAYER_ERRORS);
+        MetricsSnapshot snapshot = metrics.snapshot();
+        metrics.add(WallpaperMetrics.DECODED_BYTES, 4096);
+        metrics.record(WallpaperMetrics.COLD_START, 5000);
+        assertEquals(4096, snapshot.getCounter(MetricsSnapshot.DECODED_BYTES));
+        assertEquals(1, snapshot.getCounter(MetricsSnapshot.PLAYER_ERRORS));
+        assertEquals(0, snapshot.getCount(MetricsSnapshot.COLD_START));
+        assertEquals(8192, metrics.snapshot().getCounter(MetricsSnapshot.DECODED_BYTES));
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        WallpaperMetrics metrics = new WallpaperMetrics();
+        metrics.record(WallpaperMetrics.LOCK_CANVAS, 250);
+        metrics.increment(WallpaperMetrics.LATE_FRAMES);
+        metrics.reset();
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getCount(MetricsSnapshot.LOCK_CANVAS));
+        assertEquals(0, snapshot.getCounter(MetricsSnapshot.LATE_FRAMES));
+    }
+
+    @Test
+    public void unknownNames_readAsZero() {
+        MetricsSnapshot snapshot = new WallpaperMetrics().snapshot();
+        assertEquals(0, snapshot.getCount("missing"));
+        assertEquals(0, snapshot.getCounter("missing"));
+        assertTrue(snapshot.toString().contains(MetricsSnapshot.LOOP_BOUNDARY));
+    }
+}
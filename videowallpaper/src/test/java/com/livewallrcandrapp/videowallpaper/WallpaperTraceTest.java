@@ -0,0 +1,43 @@
+package com.livewallrcandrapp.videowallpaper;
+
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * log level gate and disabled trace sections
+ */
+public class WallpaperTraceTest {
+
+    @After
+    public void restoreDefaults() {
+        WallpaperTrace.setEnabled(false);
+        WallpaperTrace.setLogLevel(Log.INFO);
+    }
+
+    @Test
+    public void isLoggable_followsTheLevel() {
+        assertTrue(WallpaperTrace.isLoggable(Log.INFO));
+        assertTrue(WallpaperTrace.isLoggable(Log.ERROR));
+        assertFalse(WallpaperTrace.isLoggable(Log.DEBUG));
+
+        WallpaperTrace.setLogLevel(Log.ERROR);
+        assertFalse(WallpaperTrace.isLoggable(Log.INFO));
+        assertTrue(WallpaperTrace.isLoggable(Log.ERROR));
+
+        WallpaperTrace.setLogLevel(Log.ASSERT);
+        assertFalse(WallpaperTrace.isLoggable(Log.ERROR));
+    }
+
+    @Test
+    public void begin_opensNothingWhileDisabled() {
+        assertFalse(WallpaperTrace.begin(WallpaperTrace.DRAW));
+        assertFalse(WallpaperTrace.beginAsync(WallpaperTrace.PREPARE, 1));
+        // balanced with the token of begin
+        WallpaperTrace.end(false);
+        WallpaperTrace.endAsync(false, WallpaperTrace.PREPARE, 1);
+    }
+}